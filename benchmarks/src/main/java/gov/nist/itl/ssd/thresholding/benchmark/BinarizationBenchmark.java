@@ -0,0 +1,119 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import gov.nist.itl.ssd.thresholding.Binarizer;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Compares the getPixel/putPixel binarization loop previously used by the
+ * ThresholdingProcessor with the Binarizer kernels, on random 8bpp and
+ * 16bpp images.
+ *
+ * Usage: java -cp wipp-thresholding-plugin.jar
+ *   gov.nist.itl.ssd.thresholding.benchmark.BinarizationBenchmark [size] [iterations]
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class BinarizationBenchmark {
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		System.out.println("Image size: " + size + "x" + size + ", " + iterations + " iterations");
+		run(8, size, iterations);
+		run(16, size, iterations);
+	}
+
+	private static void run(int bitDepth, int size, int iterations) {
+		Random random = new Random(42);
+		int maxValue = bitDepth == 8 ? 255 : 65535;
+		double threshold = maxValue / 2;
+
+		ImageProcessor source = bitDepth == 8 ? new ByteProcessor(size, size) : new ShortProcessor(size, size);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				source.set(x, y, random.nextInt(maxValue + 1));
+			}
+		}
+
+		// Warm up both implementations before measuring
+		for (int i = 0; i < 3; i++) {
+			legacyLoop(source.duplicate(), threshold, maxValue);
+			kernel(source.duplicate(), threshold, bitDepth);
+		}
+
+		long legacy = 0;
+		long kernel = 0;
+		for (int i = 0; i < iterations; i++) {
+			ImageProcessor ip = source.duplicate();
+			long start = System.nanoTime();
+			legacyLoop(ip, threshold, maxValue);
+			legacy += System.nanoTime() - start;
+
+			ImageProcessor ip2 = source.duplicate();
+			start = System.nanoTime();
+			kernel(ip2, threshold, bitDepth);
+			kernel += System.nanoTime() - start;
+
+			if (i == 0 && !Arrays.equals(pixelsOf(ip), pixelsOf(ip2))) {
+				throw new IllegalStateException("The kernel and the legacy loop results differ");
+			}
+		}
+
+		double pixels = (double) size * size * iterations;
+		System.out.println(String.format("%2d bpp: getPixel/putPixel %8.2f ms (%7.1f Mpixels/s), "
+				+ "kernel %8.2f ms (%7.1f Mpixels/s), speedup x%.1f",
+				bitDepth,
+				legacy / 1e6 / iterations, pixels / (legacy / 1e3),
+				kernel / 1e6 / iterations, pixels / (kernel / 1e3),
+				(double) legacy / kernel));
+	}
+
+	// Loop used by the ThresholdingProcessor before the Binarizer kernels
+	private static void legacyLoop(ImageProcessor ip, double threshold, int maxValue) {
+		int xe = ip.getWidth();
+		int ye = ip.getHeight();
+		for (int y = 0; y < ye; y++) {
+			for (int x = 0; x < xe; x++) {
+				if (ip.getPixel(x, y) > threshold)
+					ip.putPixel(x, y, maxValue);
+				else
+					ip.putPixel(x, y, 0);
+			}
+		}
+	}
+
+	private static void kernel(ImageProcessor ip, double threshold, int bitDepth) {
+		int nbPixels = ip.getWidth() * ip.getHeight();
+		if (bitDepth == 8) {
+			new Binarizer(threshold, 8).binarize((byte[]) ip.getPixels(), 0, nbPixels);
+		} else {
+			new Binarizer(threshold, 16).binarize((short[]) ip.getPixels(), 0, nbPixels);
+		}
+	}
+
+	private static int[] pixelsOf(ImageProcessor ip) {
+		int[] values = new int[ip.getPixelCount()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = ip.get(i);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import gov.nist.itl.ssd.thresholding.Binarizer;
+import gov.nist.itl.ssd.thresholding.utils.BioFormatsUtils;
+import gov.nist.itl.ssd.thresholding.utils.TileCompression;
+import gov.nist.itl.ssd.thresholding.utils.TileEncoders;
+import gov.nist.itl.ssd.thresholding.utils.TiledTiffWriter;
+import ij.process.ImageProcessor;
+import loci.formats.IFormatReader;
+import loci.formats.ome.OMEXMLMetadata;
+
+/**
+ * Compares the tile compression profiles on a sample image: for each profile,
+ * reports the single thread encoding speed and the size of the output file
+ * written with all the available processors.
+ *
+ * The image is binarized before being encoded if a threshold is given, so
+ * that the sizes match the ones of the plugin masks.
+ *
+ * Usage: java -cp wipp-thresholding-plugin.jar
+ *   gov.nist.itl.ssd.thresholding.benchmark.CompressionBenchmark image [tilesize] [threshold]
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class CompressionBenchmark {
+
+	// Profiles compared, from the fastest to the smallest
+	private static final TileCompression[] COMPRESSIONS = {
+			TileCompression.UNCOMPRESSED, TileCompression.LZW, TileCompression.ZLIB,
+			TileCompression.ZLIB, TileCompression.ZLIB };
+	private static final int[] LEVELS = { 0, 0, 1, 6, 9 };
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: CompressionBenchmark image [tilesize] [threshold]");
+			System.exit(1);
+		}
+		File image = new File(args[0]);
+		int tileSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+		OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+		ImageProcessor ip;
+		try (IFormatReader reader = BioFormatsUtils.openReader(image.getAbsolutePath(), metadata)) {
+			ip = BioFormatsUtils.readImage(reader);
+		}
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		int bpp = ip.getPixels() instanceof byte[] ? 1 : 2;
+		if (args.length > 2) {
+			Binarizer binarizer = new Binarizer(Double.parseDouble(args[2]), bpp * 8);
+			if (bpp == 1) {
+				binarizer.binarize((byte[]) ip.getPixels(), 0, width * height);
+			} else {
+				binarizer.binarize((short[]) ip.getPixels(), 0, width * height);
+			}
+		}
+
+		List<byte[]> tiles = splitTiles(ip.getPixels(), width, height, bpp, tileSize);
+		double megabytes = (double) tiles.size() * tiles.get(0).length / (1024 * 1024);
+		System.out.println(String.format("Image %s: %dx%d, %d bpp, %d tiles of %dx%d (%.1f MB)",
+				image.getName(), width, height, bpp * 8, tiles.size(), tileSize, tileSize, megabytes));
+
+		int nbCpus = Runtime.getRuntime().availableProcessors();
+		TileEncoders encoders = new TileEncoders(nbCpus, 2 * nbCpus);
+		try {
+			for (int p = 0; p < COMPRESSIONS.length; p++) {
+				TileCompression compression = COMPRESSIONS[p];
+				int level = LEVELS[p];
+				String name = compression + (compression == TileCompression.ZLIB ? "-" + level : "");
+
+				// Warm up, then measure the encoding speed on a single thread
+				for (byte[] tile : tiles) {
+					compression.compress(tile, level);
+				}
+				long start = System.nanoTime();
+				for (byte[] tile : tiles) {
+					compression.compress(tile, level);
+				}
+				long encode = System.nanoTime() - start;
+
+				// Size and write time of the output file
+				File output = File.createTempFile("compression-benchmark", ".ome.tif");
+				try {
+					start = System.nanoTime();
+					try (TiledTiffWriter writer = new TiledTiffWriter(output, metadata, tileSize,
+							compression, level, encoders)) {
+						for (byte[] tile : tiles) {
+							byte[] buf = writer.newTileBuffer();
+							System.arraycopy(tile, 0, buf, 0, tile.length);
+							writer.writeTile(buf);
+						}
+					}
+					long write = System.nanoTime() - start;
+
+					System.out.println(String.format("%-7s encode %8.1f MB/s, write %8.1f MB/s "
+							+ "(%d threads), output %10d bytes (ratio %.2f)",
+							name, megabytes / (encode / 1e9), megabytes / (write / 1e9), nbCpus,
+							output.length(), megabytes * 1024 * 1024 / output.length()));
+				} finally {
+					output.delete();
+				}
+			}
+		} finally {
+			encoders.close();
+		}
+	}
+
+	/**
+	 * Splits the image into little endian tiles padded to the tile size, in
+	 * the order expected by the TiledTiffWriter.
+	 */
+	private static List<byte[]> splitTiles(Object pixels, int width, int height, int bpp,
+			int tileSize) {
+		List<byte[]> tiles = new ArrayList<>();
+		for (int tileY = 0; tileY < height; tileY += tileSize) {
+			for (int tileX = 0; tileX < width; tileX += tileSize) {
+				byte[] tile = new byte[tileSize * tileSize * bpp];
+				int tileWidth = Math.min(tileSize, width - tileX);
+				int tileHeight = Math.min(tileSize, height - tileY);
+				for (int row = 0; row < tileHeight; row++) {
+					int src = (tileY + row) * width + tileX;
+					int dst = row * tileSize * bpp;
+					if (bpp == 1) {
+						System.arraycopy((byte[]) pixels, src, tile, dst, tileWidth);
+					} else {
+						short[] shorts = (short[]) pixels;
+						for (int x = 0; x < tileWidth; x++) {
+							tile[dst + 2 * x] = (byte) shorts[src + x];
+							tile[dst + 2 * x + 1] = (byte) (shorts[src + x] >> 8);
+						}
+					}
+				}
+				tiles.add(tile);
+			}
+		}
+		return tiles;
+	}
+}
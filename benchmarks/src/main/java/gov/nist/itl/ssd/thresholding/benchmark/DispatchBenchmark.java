@@ -0,0 +1,83 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gov.nist.itl.ssd.thresholding.HistogramStatistics;
+import gov.nist.itl.ssd.thresholding.ThresholdingMethods;
+import gov.nist.itl.ssd.thresholding.ThresholdingProcessor;
+import gov.nist.itl.ssd.thresholding.ThresholdingType;
+
+/**
+ * Cost of going from the histogram of an image to its threshold, as done by
+ * the ThresholdingProcessor for every image (bracketing of the histogram,
+ * statistics and dispatch to the selected method), compared with calling the
+ * method directly on precomputed statistics.
+ *
+ * A cheap 8bpp histogram is used by default so that the overhead of the
+ * dispatch is not hidden by the method itself.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+	@Param({"IJDefault", "Huang", "Huang2", "Intermodes", "IsoData", "Li", "MaxEntropy", "Mean",
+			"MinErrorI", "Minimum", "Moments", "Otsu", "Percentile", "RenyiEntropy", "Shanbhag",
+			"Triangle", "Yen"})
+	public String method;
+
+	@Param({Histograms.EIGHT_BIT})
+	public String shape;
+
+	private int[] histogram;
+	private ThresholdingType type;
+	private HistogramStatistics stats;
+	private ThresholdingProcessor processor;
+
+	@Setup
+	public void setup() {
+		histogram = Histograms.create(shape);
+		type = ThresholdingType.valueOf(method);
+		stats = new HistogramStatistics(Histograms.bracket(histogram));
+		processor = new ThresholdingProcessor(null, null, type, 0, 1);
+	}
+
+	@Benchmark
+	public double processor() {
+		return processor.computeThreshold(histogram);
+	}
+
+	@Benchmark
+	public int direct() {
+		return ThresholdingMethods.compute(type, stats);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.benchmark;
+
+import java.util.Random;
+
+/**
+ * Deterministic histograms representative of the images thresholded by the
+ * plugin, all of them holding the pixels of a 4096x4096 image.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public final class Histograms {
+
+	// Names of the shapes, as used by the benchmark parameters
+	public static final String EIGHT_BIT = "8bit";
+	public static final String FULL_16_BIT = "full16";
+	public static final String TWELVE_IN_16 = "12in16";
+	public static final String BIMODAL = "bimodal";
+	public static final String UNIMODAL = "unimodal";
+	public static final String SPARSE = "sparse";
+	public static final String SKEWED = "skewed";
+
+	private static final long NB_PIXELS = 4096L * 4096L;
+
+	private Histograms() {
+	}
+
+	/**
+	 * @param shape one of the shape names of this class
+	 * @return a new histogram of 256 bins (8bit) or 65536 bins (all the
+	 *         other shapes)
+	 */
+	public static int[] create(String shape) {
+		Random random = new Random(42);
+		switch (shape) {
+			case EIGHT_BIT:
+				// Dark background and brighter objects
+				return fill(256, x -> gaussian(x, 40, 12) + 0.3 * gaussian(x, 170, 25), random);
+			case FULL_16_BIT:
+				// Every value used, noisy wide background and objects
+				return fill(65536, x -> 1e-6 + gaussian(x, 12000, 6000) + 0.5 * gaussian(x, 45000, 9000), random);
+			case TWELVE_IN_16:
+				// 12bpp camera data stored in 16bpp images
+				return fill(65536, x -> x < 4096 ? gaussian(x, 600, 150) + 0.2 * gaussian(x, 2500, 300) : 0,
+						random);
+			case BIMODAL:
+				return fill(65536, x -> gaussian(x, 15000, 2500) + gaussian(x, 40000, 4000), random);
+			case UNIMODAL:
+				return fill(65536, x -> gaussian(x, 30000, 5000), random);
+			case SPARSE:
+				// Rescaled data: one value out of 64 is used over the whole range
+				return fill(65536, x -> x % 64 == 0 ? gaussian(x, 20000, 8000) + 0.4 * gaussian(x, 50000, 5000) : 0,
+						random);
+			case SKEWED:
+				// Almost all the pixels are dark, a few saturated ones
+				int[] data = fill(65536, x -> Math.exp(-x / 300.0), random);
+				data[65535] += 50;
+				return data;
+			default:
+				throw new IllegalArgumentException("Unknown histogram shape: " + shape);
+		}
+	}
+
+	/**
+	 * Brackets a histogram to the range of its non-empty bins, as done by the
+	 * ThresholdingProcessor before calling the thresholding methods.
+	 */
+	public static int[] bracket(int[] data) {
+		int min = 0;
+		while (min < data.length - 1 && data[min] == 0) min++;
+		int max = data.length - 1;
+		while (max > min && data[max] == 0) max--;
+		int[] bracketed = new int[max - min + 1];
+		System.arraycopy(data, min, bracketed, 0, bracketed.length);
+		return bracketed;
+	}
+
+	private interface Density {
+		double at(int x);
+	}
+
+	private static double gaussian(double x, double mean, double sigma) {
+		double d = (x - mean) / sigma;
+		return Math.exp(-0.5 * d * d) / sigma;
+	}
+
+	// Distributes NB_PIXELS according to the density, with a 5% multiplicative noise
+	private static int[] fill(int nbBins, Density density, Random random) {
+		double[] weights = new double[nbBins];
+		double sum = 0;
+		for (int i = 0; i < nbBins; i++) {
+			weights[i] = density.at(i);
+			sum += weights[i];
+		}
+		int[] data = new int[nbBins];
+		for (int i = 0; i < nbBins; i++) {
+			double count = NB_PIXELS * weights[i] / sum * (1 + 0.05 * random.nextGaussian());
+			data[i] = (int) Math.max(0, Math.round(count));
+		}
+		return data;
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import gov.nist.itl.ssd.thresholding.StageTimer;
+import gov.nist.itl.ssd.thresholding.StageTimer.Stage;
+import gov.nist.itl.ssd.thresholding.ThreadMode;
+import gov.nist.itl.ssd.thresholding.ThresholdingProcessor;
+import gov.nist.itl.ssd.thresholding.ThresholdingType;
+import gov.nist.itl.ssd.thresholding.ThresholdingTypeHandler;
+import gov.nist.itl.ssd.thresholding.utils.TileCompression;
+
+/**
+ * End-to-end benchmark of the ThresholdingProcessor: generates a collection
+ * of synthetic images with the SyntheticImageGenerator, runs the full
+ * read, histogram, threshold and write pipeline on it and reports the
+ * throughput, the peak memory and the time spent in each stage.
+ *
+ * The images are generated again for each run from the seed, so the results
+ * only depend on the machine.
+ *
+ * Usage: java -cp wipp-thresholding-plugin.jar
+ *   gov.nist.itl.ssd.thresholding.benchmark.PipelineBenchmark [options]
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class PipelineBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		addOption(options, "images", "number of images (default: 8)");
+		addOption(options, "width", "width of the images, up to 50000 (default: 4096)");
+		addOption(options, "height", "height of the images, up to 50000 (default: 4096)");
+		addOption(options, "bitdepth", "bit depth of the images, 8 or 16 (default: 16)");
+		addOption(options, "inputtilesize", "tile size of the generated images (default: 1024)");
+		addOption(options, "inputcompression", "compression of the generated images, none, lzw or zlib (default: lzw)");
+		addOption(options, "seed", "seed of the generated images (default: 42)");
+		addOption(options, "thresholdtype", "threshold method type (default: Otsu)");
+		addOption(options, "nbcpus", "number of images processed in parallel (default: number of available processors)");
+		addOption(options, "streaming", "process the images tile by tile (true or false, default: false)");
+		addOption(options, "threadmode", "threads processing the images, platform or virtual (default: platform)");
+		addOption(options, "tilesize", "tile size of the output images (default: 1024)");
+		addOption(options, "compression", "compression of the output images, none, lzw or zlib (default: lzw)");
+		addOption(options, "workdir", "folder of the generated and output images (default: temporary folder, deleted at the end)");
+
+		CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			new HelpFormatter().printHelp("PipelineBenchmark", options);
+			System.exit(1);
+			return;
+		}
+
+		int nbImages = Integer.parseInt(cmd.getOptionValue("images", "8"));
+		int width = Integer.parseInt(cmd.getOptionValue("width", "4096"));
+		int height = Integer.parseInt(cmd.getOptionValue("height", "4096"));
+		int bitDepth = Integer.parseInt(cmd.getOptionValue("bitdepth", "16"));
+		int inputTileSize = Integer.parseInt(cmd.getOptionValue("inputtilesize", "1024"));
+		TileCompression inputCompression = TileCompression.fromString(cmd.getOptionValue("inputcompression", "lzw"));
+		long seed = Long.parseLong(cmd.getOptionValue("seed", "42"));
+		ThresholdingType type = ThresholdingTypeHandler.matchThresholdingType(cmd.getOptionValue("thresholdtype", "Otsu"));
+		int nbCpus = Integer.parseInt(cmd.getOptionValue("nbcpus",
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		boolean streaming = Boolean.parseBoolean(cmd.getOptionValue("streaming", "false"));
+		ThreadMode threadMode = ThreadMode.fromString(cmd.getOptionValue("threadmode", "platform"));
+		int tileSize = Integer.parseInt(cmd.getOptionValue("tilesize", "1024"));
+		TileCompression compression = TileCompression.fromString(cmd.getOptionValue("compression", "lzw"));
+		if (inputCompression == null || compression == null || threadMode == null
+				|| type == ThresholdingType.Invalid || type == ThresholdingType.Manual) {
+			System.out.println("Invalid compression, thread mode or threshold method type");
+			System.exit(1);
+		}
+
+		boolean temporary = !cmd.hasOption("workdir");
+		File workDir = temporary ? Files.createTempDirectory("pipeline-benchmark").toFile()
+				: new File(cmd.getOptionValue("workdir"));
+		File inputs = new File(workDir, "inputs");
+		File outputs = new File(workDir, "outputs");
+
+		try {
+			double megabytes = (double) nbImages * width * height * (bitDepth / 8) / (1024 * 1024);
+			System.out.println(String.format("Images: %d x %dx%d %dbpp, %s tiles of %d (%.1f MB of pixels)",
+					nbImages, width, height, bitDepth, inputCompression, inputTileSize, megabytes));
+
+			long start = System.nanoTime();
+			SyntheticImageGenerator.generate(inputs, nbImages, width, height, bitDepth, inputTileSize,
+					inputCompression, TileCompression.DEFAULT_LEVEL, seed);
+			System.out.println(String.format("Generation: %.2f s", (System.nanoTime() - start) / 1e9));
+
+			// Only the memory used by the processing is reported
+			boolean rssReset = resetPeakRss();
+			resetPeakHeap();
+
+			ThresholdingProcessor processor = new ThresholdingProcessor(inputs, outputs, type, 0, nbCpus);
+			processor.streaming = streaming;
+			processor.threadMode = threadMode;
+			processor.tileSize = tileSize;
+			processor.compression = compression;
+			// Every run processes all the images, even in an existing workdir
+			processor.resume = false;
+
+			start = System.nanoTime();
+			processor.runTresh();
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.println(String.format("Processing (%s, %d cpus, %s threads%s, %s tiles of %d): "
+					+ "%.2f s, %.1f MB/s, %.2f images/s",
+					type, nbCpus, threadMode, streaming ? ", streaming" : "", compression, tileSize,
+					seconds, megabytes / seconds, nbImages / seconds));
+
+			long peakRss = getPeakRss();
+			System.out.println(String.format("Peak RSS: %s%s, peak heap: %.1f MB",
+					peakRss < 0 ? "unavailable" : String.format("%.1f MB", peakRss / 1024.0),
+					rssReset || peakRss < 0 ? "" : " (including the generation)",
+					getPeakHeap() / (1024.0 * 1024)));
+
+			StageTimer timer = processor.timer;
+			long total = 0;
+			for (Stage stage : Stage.values()) {
+				total += timer.getNanos(stage);
+			}
+			System.out.println("Stage times, summed over the image threads:");
+			for (Stage stage : Stage.values()) {
+				long nanos = timer.getNanos(stage);
+				System.out.println(String.format("  %-9s %9.2f s %5.1f%%", stage.name().toLowerCase(),
+						nanos / 1e9, total == 0 ? 0 : 100.0 * nanos / total));
+			}
+		} finally {
+			if (temporary) {
+				deleteFolder(workDir);
+			}
+		}
+	}
+
+	private static void addOption(Options options, String name, String description) {
+		Option option = new Option(name, name, true, description);
+		option.setRequired(false);
+		options.addOption(option);
+	}
+
+	/**
+	 * Resets the peak resident set size of the process, available on Linux
+	 * only.
+	 *
+	 * @return true if the peak was reset
+	 */
+	private static boolean resetPeakRss() {
+		try (FileOutputStream out = new FileOutputStream("/proc/self/clear_refs")) {
+			out.write("5".getBytes(StandardCharsets.US_ASCII));
+			return true;
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the peak resident set size of the process in kB (VmHWM), or -1
+	 *         if it is not available
+	 */
+	private static long getPeakRss() {
+		try {
+			for (String line : Files.readAllLines(new File("/proc/self/status").toPath())) {
+				if (line.startsWith("VmHWM:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", ""));
+				}
+			}
+		} catch (IOException | NumberFormatException ex) {
+			// Not a Linux system
+		}
+		return -1;
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+	}
+
+	// Sum of the peaks of the heap pools, an upper bound of the peak heap usage
+	private static long getPeakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private static void deleteFolder(File folder) {
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteFolder(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		folder.delete();
+	}
+}
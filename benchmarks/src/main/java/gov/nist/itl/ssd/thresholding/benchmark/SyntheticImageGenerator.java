@@ -0,0 +1,213 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import gov.nist.itl.ssd.thresholding.utils.BioFormatsUtils;
+import gov.nist.itl.ssd.thresholding.utils.TileCompression;
+import gov.nist.itl.ssd.thresholding.utils.TileEncoders;
+import gov.nist.itl.ssd.thresholding.utils.TiledTiffWriter;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.ome.OMEXMLMetadata;
+
+/**
+ * Generator of synthetic tiled OME-TIFF images looking like fluorescence
+ * microscopy fields: a noisy dark background and bright round objects.
+ *
+ * The value of each pixel only depends on the seed and on its coordinates,
+ * so the images are identical whatever the tile size, the compression or the
+ * machine, and any size can be generated with a bounded memory.
+ *
+ * Usage: java -cp wipp-thresholding-plugin.jar
+ *   gov.nist.itl.ssd.thresholding.benchmark.SyntheticImageGenerator
+ *   outputFolder nbImages width height [bitdepth] [tilesize] [compression] [seed]
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class SyntheticImageGenerator {
+
+	// Objects are placed on a grid, at most one per cell
+	private static final int CELL_SIZE = 64;
+
+	private final long seed;
+	private final int bitDepth;
+	private final int maxValue;
+
+	/**
+	 * @param seed the seed of the image
+	 * @param bitDepth 8 or 16
+	 */
+	public SyntheticImageGenerator(long seed, int bitDepth) {
+		if (bitDepth != 8 && bitDepth != 16) {
+			throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+		}
+		this.seed = seed;
+		this.bitDepth = bitDepth;
+		this.maxValue = (1 << bitDepth) - 1;
+	}
+
+	/**
+	 * @return the value of the pixel (x, y)
+	 */
+	public int valueAt(int x, int y) {
+		// Uniform noise of +/- 3% of the range
+		double noise = 0.06 * (unit(hash(seed, x, y)) - 0.5);
+		double level = 0.1;
+
+		// 3 cells out of 4 hold an object of random position, size and intensity
+		int cellX = x / CELL_SIZE;
+		int cellY = y / CELL_SIZE;
+		long cell = hash(seed ^ 0x5DEECE66DL, cellX, cellY);
+		if ((cell & 3) != 0) {
+			int centerX = cellX * CELL_SIZE + 16 + (int) ((cell >>> 8) & 31);
+			int centerY = cellY * CELL_SIZE + 16 + (int) ((cell >>> 16) & 31);
+			int radius = 6 + (int) ((cell >>> 24) & 15);
+			int dx = x - centerX;
+			int dy = y - centerY;
+			if (dx * dx + dy * dy <= radius * radius) {
+				level = 0.45 + 0.35 * ((cell >>> 40) & 255) / 255.0;
+			}
+		}
+		double value = (level + noise) * maxValue;
+		return (int) Math.max(0, Math.min(maxValue, Math.round(value)));
+	}
+
+	/**
+	 * Writes a synthetic image.
+	 *
+	 * @param file the output file
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param tileSize the tile size, multiple of 16
+	 * @param compression the compression of the tiles
+	 * @param compressionLevel the compression level, used by ZLIB only
+	 * @param encoders the threads compressing the tiles
+	 * @throws IOException
+	 */
+	public void write(File file, int width, int height, int tileSize, TileCompression compression,
+			int compressionLevel, TileEncoders encoders) throws IOException {
+		OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+		int pixelType = bitDepth == 8 ? FormatTools.UINT8 : FormatTools.UINT16;
+		MetadataTools.populateMetadata(metadata, 0, file.getName(), true, "XYZCT",
+				FormatTools.getPixelTypeString(pixelType), width, height, 1, 1, 1, 1);
+
+		int bpp = bitDepth / 8;
+		try (TiledTiffWriter writer = new TiledTiffWriter(file, metadata, tileSize, compression,
+				compressionLevel, encoders)) {
+			for (int tileY = 0; tileY < height; tileY += tileSize) {
+				for (int tileX = 0; tileX < width; tileX += tileSize) {
+					byte[] buf = writer.newTileBuffer();
+					int tileWidth = Math.min(tileSize, width - tileX);
+					int tileHeight = Math.min(tileSize, height - tileY);
+					for (int row = 0; row < tileHeight; row++) {
+						int i = row * tileSize * bpp;
+						for (int x = 0; x < tileWidth; x++) {
+							int value = valueAt(tileX + x, tileY + row);
+							buf[i++] = (byte) value;
+							if (bpp == 2) {
+								buf[i++] = (byte) (value >> 8);
+							}
+						}
+					}
+					writer.writeTile(buf);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes nbImages synthetic images named synthetic-NNNN.ome.tif, in
+	 * parallel. Image i uses the seed seed + i.
+	 *
+	 * @return the generated files
+	 */
+	public static List<File> generate(File folder, int nbImages, int width, int height, int bitDepth,
+			int tileSize, TileCompression compression, int compressionLevel, long seed)
+			throws Exception {
+		if (!folder.isDirectory() && !folder.mkdirs()) {
+			throw new IOException("Can not create folder " + folder);
+		}
+		int nbCpus = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(nbCpus);
+		TileEncoders encoders = new TileEncoders(nbCpus, 2 * nbCpus);
+		try {
+			List<File> files = new ArrayList<>();
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < nbImages; i++) {
+				final File file = new File(folder, String.format("synthetic-%04d.ome.tif", i));
+				final SyntheticImageGenerator generator = new SyntheticImageGenerator(seed + i, bitDepth);
+				files.add(file);
+				futures.add(executor.submit(() -> {
+					generator.write(file, width, height, tileSize, compression, compressionLevel,
+							encoders);
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			return files;
+		} finally {
+			executor.shutdownNow();
+			encoders.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.out.println("Usage: SyntheticImageGenerator outputFolder nbImages width height "
+					+ "[bitdepth] [tilesize] [compression] [seed]");
+			System.exit(1);
+		}
+		File folder = new File(args[0]);
+		int nbImages = Integer.parseInt(args[1]);
+		int width = Integer.parseInt(args[2]);
+		int height = Integer.parseInt(args[3]);
+		int bitDepth = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+		int tileSize = args.length > 5 ? Integer.parseInt(args[5]) : 1024;
+		TileCompression compression = args.length > 6 ? TileCompression.fromString(args[6])
+				: TileCompression.LZW;
+		long seed = args.length > 7 ? Long.parseLong(args[7]) : 42;
+		if (compression == null) {
+			System.out.println("Unknown compression: " + args[6]);
+			System.exit(1);
+		}
+
+		long start = System.nanoTime();
+		generate(folder, nbImages, width, height, bitDepth, tileSize, compression,
+				TileCompression.DEFAULT_LEVEL, seed);
+		System.out.println(String.format("%d images of %dx%d %dbpp written to %s in %.1f s",
+				nbImages, width, height, bitDepth, folder, (System.nanoTime() - start) / 1e9));
+	}
+
+	// SplitMix64 finalizer of the seed and the coordinates
+	private static long hash(long seed, int x, int y) {
+		long z = seed + 0x9E3779B97F4A7C15L * (((long) x << 32) ^ (y & 0xffffffffL)) + 0x632BE59BD9B4E019L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	// Uniform value in [0, 1) from the high bits of a hash
+	private static double unit(long hash) {
+		return (hash >>> 11) * 0x1.0p-53;
+	}
+}
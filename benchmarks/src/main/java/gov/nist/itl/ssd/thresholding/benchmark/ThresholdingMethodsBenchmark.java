@@ -0,0 +1,72 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gov.nist.itl.ssd.thresholding.HistogramStatistics;
+import gov.nist.itl.ssd.thresholding.ThresholdingMethods;
+import gov.nist.itl.ssd.thresholding.ThresholdingType;
+
+/**
+ * Time of each of the 17 automatic thresholding methods on the histogram
+ * shapes of the Histograms class, once the histogram statistics are known.
+ *
+ * Some methods take seconds per call on dense 16bpp histograms, hence the
+ * short warmup and measurement phases.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ThresholdingMethodsBenchmark {
+
+	@Param({"IJDefault", "Huang", "Huang2", "Intermodes", "IsoData", "Li", "MaxEntropy", "Mean",
+			"MinErrorI", "Minimum", "Moments", "Otsu", "Percentile", "RenyiEntropy", "Shanbhag",
+			"Triangle", "Yen"})
+	public String method;
+
+	@Param({Histograms.EIGHT_BIT, Histograms.FULL_16_BIT, Histograms.TWELVE_IN_16,
+			Histograms.BIMODAL, Histograms.UNIMODAL, Histograms.SPARSE, Histograms.SKEWED})
+	public String shape;
+
+	private ThresholdingType type;
+	private HistogramStatistics stats;
+
+	@Setup
+	public void setup() {
+		type = ThresholdingType.valueOf(method);
+		stats = new HistogramStatistics(Histograms.bracket(Histograms.create(shape)));
+	}
+
+	@Benchmark
+	public int threshold() {
+		return ThresholdingMethods.compute(type, stats);
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+/**
+ * Binarization kernels working directly on the pixel arrays.
+ * Pixels above the threshold are set to the max value of the bit depth
+ * (255 or 65535), the other pixels are set to 0.
+ *
+ * A binarizer is immutable once created and can be shared between threads.
+ * None of the binarization methods allocates memory.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class Binarizer {
+
+	private final int bitDepth;
+
+	// Highest 8bpp value that is set to the background
+	private final int cutoff;
+
+	// Lookup table giving the output value of each 16bpp value
+	private final short[] lut;
+
+	/**
+	 * @param threshold the threshold, pixels strictly above are foreground
+	 * @param bitDepth 8 or 16
+	 */
+	public Binarizer(double threshold, int bitDepth) {
+		if (bitDepth != 8 && bitDepth != 16) {
+			throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+		}
+		this.bitDepth = bitDepth;
+		// For integer values v, v > threshold is equivalent to v > floor(threshold)
+		this.cutoff = (int) Math.max(-1, Math.min(65535, Math.floor(threshold)));
+		if (bitDepth == 16) {
+			this.lut = new short[65536];
+			for (int i = cutoff + 1; i < lut.length; i++) {
+				lut[i] = (short) 0xffff;
+			}
+		} else {
+			this.lut = null;
+		}
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	/**
+	 * Binarizes in place the 8bpp pixels between from (inclusive) and to
+	 * (exclusive).
+	 */
+	public void binarize(byte[] pixels, int from, int to) {
+		final int c = cutoff;
+		for (int i = from; i < to; i++) {
+			pixels[i] = (pixels[i] & 0xff) > c ? (byte) 0xff : 0;
+		}
+	}
+
+	/**
+	 * Binarizes in place the 16bpp pixels between from (inclusive) and to
+	 * (exclusive).
+	 */
+	public void binarize(short[] pixels, int from, int to) {
+		final short[] l = lut;
+		for (int i = from; i < to; i++) {
+			pixels[i] = l[pixels[i] & 0xffff];
+		}
+	}
+
+	/**
+	 * Binarizes in place the first nbPixels pixels of a buffer returned by
+	 * Bio-Formats, i.e. bytesPerPixel bytes per pixel in the given byte order.
+	 */
+	public void binarize(byte[] buf, int nbPixels, boolean littleEndian) {
+		if (bitDepth == 8) {
+			binarize(buf, 0, nbPixels);
+			return;
+		}
+		final short[] l = lut;
+		final int hi = littleEndian ? 1 : 0;
+		final int lo = 1 - hi;
+		for (int i = 0, j = 0; i < nbPixels; i++, j += 2) {
+			short value = l[((buf[j + hi] & 0xff) << 8) | (buf[j + lo] & 0xff)];
+			buf[j + hi] = (byte) (value >> 8);
+			buf[j + lo] = (byte) value;
+		}
+	}
+}
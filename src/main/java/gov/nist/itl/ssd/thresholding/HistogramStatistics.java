@@ -0,0 +1,175 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+/**
+ * Statistics of a histogram shared by the ThresholdingMethods: cumulative
+ * counts, cumulative first and second moments, normalized histogram and its
+ * cumulative sum, first and last non-empty bins.
+ *
+ * Everything is computed once, in the constructor, so that the methods can
+ * get the count or the moment of any range of bins in constant time instead
+ * of summing the histogram again. The cumulative sums are accumulated from
+ * bin 0 upwards, in the same order as the ThresholdingMethods used to, so
+ * the thresholds do not change. Counts and first moments are kept in longs
+ * and do not overflow on large 16bpp images.
+ *
+ * The statistics are immutable and can be shared between threads.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class HistogramStatistics {
+
+	private final int[] histogram;
+	private final long total;
+
+	// Sums of the bins 0 to i of h[i], i * h[i] and i * i * h[i]
+	private final long[] cumulativeCounts;
+	private final long[] cumulativeSums;
+	private final double[] cumulativeSquares;
+
+	// h[i] / total and its cumulative sum
+	private final double[] normalized;
+	private final double[] cumulativeNormalized;
+
+	private final int firstBin;
+	private final int lastBin;
+	private final int[] nonZeroBins;
+
+	/**
+	 * @param histogram the histogram, which is not copied and must not be
+	 *                  modified afterwards
+	 */
+	public HistogramStatistics(int[] histogram) {
+		this.histogram = histogram;
+		int n = histogram.length;
+
+		cumulativeCounts = new long[n];
+		cumulativeSums = new long[n];
+		cumulativeSquares = new double[n];
+		long count = 0;
+		long sum = 0;
+		double squares = 0;
+		int nbNonZero = 0;
+		for (int i = 0; i < n; i++) {
+			count += histogram[i];
+			sum += (long) i * histogram[i];
+			squares += (double) i * i * histogram[i];
+			cumulativeCounts[i] = count;
+			cumulativeSums[i] = sum;
+			cumulativeSquares[i] = squares;
+			if (histogram[i] != 0) {
+				nbNonZero++;
+			}
+		}
+		total = count;
+
+		normalized = new double[n];
+		cumulativeNormalized = new double[n];
+		for (int i = 0; i < n; i++) {
+			normalized[i] = (double) histogram[i] / total;
+			cumulativeNormalized[i] = i == 0 ? normalized[0] : cumulativeNormalized[i - 1] + normalized[i];
+		}
+
+		nonZeroBins = new int[nbNonZero];
+		for (int i = 0, j = 0; i < n; i++) {
+			if (histogram[i] != 0) {
+				nonZeroBins[j++] = i;
+			}
+		}
+		firstBin = nbNonZero > 0 ? nonZeroBins[0] : -1;
+		lastBin = nbNonZero > 0 ? nonZeroBins[nbNonZero - 1] : -1;
+	}
+
+	/**
+	 * @return the histogram, which must not be modified
+	 */
+	public int[] getHistogram() {
+		return histogram;
+	}
+
+	public int size() {
+		return histogram.length;
+	}
+
+	/**
+	 * @return the number of pixels of the histogram
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return the number of pixels in the bins 0 to j, j being clamped to
+	 *         the histogram range
+	 */
+	public long getCumulativeCount(int j) {
+		if (j < 0) return 0;
+		return cumulativeCounts[Math.min(j, histogram.length - 1)];
+	}
+
+	/**
+	 * @return the sum of i * h[i] over the bins 0 to j, j being clamped to
+	 *         the histogram range
+	 */
+	public long getCumulativeSum(int j) {
+		if (j < 0) return 0;
+		return cumulativeSums[Math.min(j, histogram.length - 1)];
+	}
+
+	/**
+	 * @return the sum of i * i * h[i] over the bins 0 to j, j being clamped
+	 *         to the histogram range
+	 */
+	public double getCumulativeSquares(int j) {
+		if (j < 0) return 0;
+		return cumulativeSquares[Math.min(j, histogram.length - 1)];
+	}
+
+	/**
+	 * @return the normalized histogram, h[i] / total, which must not be
+	 *         modified
+	 */
+	public double[] getNormalized() {
+		return normalized;
+	}
+
+	/**
+	 * @return the cumulative normalized histogram, which must not be modified
+	 */
+	public double[] getCumulativeNormalized() {
+		return cumulativeNormalized;
+	}
+
+	/**
+	 * @return the first non-empty bin, or -1 if the histogram is empty
+	 */
+	public int getFirstBin() {
+		return firstBin;
+	}
+
+	/**
+	 * @return the last non-empty bin, or -1 if the histogram is empty
+	 */
+	public int getLastBin() {
+		return lastBin;
+	}
+
+	/**
+	 * @return the indexes of the non-empty bins in increasing order, which
+	 *         must not be modified
+	 */
+	public int[] getNonZeroBins() {
+		return nonZeroBins;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import gov.nist.itl.ssd.thresholding.StageTimer.Stage;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event classes of the PipelineEvents. This class is only
+ * loaded by JVMs with Flight Recorder.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+final class JfrEvents {
+
+	private static final EventType IMAGE_TYPE = EventType.getEventType(ImageEvent.class);
+	private static final EventType STAGE_TYPE = EventType.getEventType(StageEvent.class);
+
+	private JfrEvents() {
+	}
+
+	@Name("gov.nist.thresholding.Image")
+	@Label("Image")
+	@Category({"WIPP", "Thresholding"})
+	@Description("Processing of an image by a task of the thresholding plugin")
+	static class ImageEvent extends Event {
+		@Label("Image")
+		String image;
+		@Label("Task")
+		String task;
+		@Label("Width")
+		int width;
+		@Label("Height")
+		int height;
+		@Label("Bit Depth")
+		int bitDepth;
+		@Label("Method")
+		String method;
+		@Label("Threshold")
+		double threshold;
+	}
+
+	@Name("gov.nist.thresholding.Stage")
+	@Label("Stage")
+	@Category({"WIPP", "Thresholding"})
+	@Description("Stage of the processing of a tile, or of an image if the tile is -1")
+	@StackTrace(false)
+	static class StageEvent extends Event {
+		@Label("Stage")
+		String stage;
+		@Label("Image")
+		String image;
+		@Label("Width")
+		int width;
+		@Label("Height")
+		int height;
+		@Label("Bit Depth")
+		int bitDepth;
+		@Label("Method")
+		String method;
+		@Label("Threshold")
+		double threshold;
+		@Label("Tile X")
+		int tileX;
+		@Label("Tile Y")
+		int tileY;
+		@Label("Tile Width")
+		int tileWidth;
+		@Label("Tile Height")
+		int tileHeight;
+	}
+
+	static boolean isAvailable() {
+		return FlightRecorder.isAvailable();
+	}
+
+	/**
+	 * @return the started event of an image, or null if it is not recorded
+	 */
+	static Object beginImage() {
+		if (!IMAGE_TYPE.isEnabled()) {
+			return null;
+		}
+		ImageEvent event = new ImageEvent();
+		event.begin();
+		return event;
+	}
+
+	static void commitImage(Object imageEvent, PipelineEvents.Context context) {
+		ImageEvent event = (ImageEvent) imageEvent;
+		event.end();
+		if (event.shouldCommit()) {
+			event.image = context.image;
+			event.task = context.task;
+			event.width = context.width;
+			event.height = context.height;
+			event.bitDepth = context.bitDepth;
+			event.method = context.method;
+			event.threshold = context.threshold;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return the started event of a stage, or null if it is not recorded
+	 */
+	static Object beginStage() {
+		if (!STAGE_TYPE.isEnabled()) {
+			return null;
+		}
+		StageEvent event = new StageEvent();
+		event.begin();
+		return event;
+	}
+
+	static void commitStage(Object stageEvent, Stage stage, PipelineEvents.Context context) {
+		StageEvent event = (StageEvent) stageEvent;
+		event.end();
+		if (event.shouldCommit()) {
+			event.stage = stage.name().toLowerCase();
+			event.image = context.image;
+			event.width = context.width;
+			event.height = context.height;
+			event.bitDepth = context.bitDepth;
+			event.method = context.method;
+			event.threshold = context.threshold;
+			event.tileX = context.tileX;
+			event.tileY = context.tileY;
+			event.tileWidth = context.tileWidth;
+			event.tileHeight = context.tileHeight;
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import ome.xml.model.enums.PixelType;
+
+/**
+ * Pixel format of the output masks.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public enum OutputFormat {
+	// Same bit depth as the input image, masks are 0/255 or 0/65535
+	Same("same"),
+	// 8bpp masks (0/255) whatever the input bit depth
+	EightBit("8bit"),
+	// 1bpp bilevel masks, 8 pixels per byte
+	OneBit("1bit");
+
+	private final String name;
+
+	private OutputFormat(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * @param text the name of the format, as given on the command line
+	 * @return the matching format, or null if no format has this name
+	 */
+	public static OutputFormat fromString(String text) {
+		for (OutputFormat format : values()) {
+			if (format.name.equals(text)) {
+				return format;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param inputType the pixel type of the input image
+	 * @return the pixel type of the output image
+	 */
+	public PixelType getPixelType(PixelType inputType) {
+		switch (this) {
+			case EightBit:
+				return PixelType.UINT8;
+			case OneBit:
+				return PixelType.BIT;
+			case Same:
+			default:
+				return inputType;
+		}
+	}
+
+	/**
+	 * Writes a row of binarized pixels in this format. The input pixels are
+	 * 0 or 0xff bytes, srcStep bytes apart (the first byte of each pixel of a
+	 * binarized buffer).
+	 *
+	 * @param src the binarized pixels
+	 * @param srcOffset the index of the first pixel in src
+	 * @param srcStep the number of bytes between two pixels in src
+	 * @param nbPixels the number of pixels of the row
+	 * @param dst the output buffer
+	 * @param dstOffset the index of the first byte of the row in dst
+	 */
+	public void packRow(byte[] src, int srcOffset, int srcStep, int nbPixels, byte[] dst, int dstOffset) {
+		if (this == OneBit) {
+			// Bits are stored from the most significant one, as in TIFF FillOrder 1
+			int i = srcOffset;
+			for (int x = 0; x < nbPixels; x += 8) {
+				int bits = 0;
+				int n = Math.min(8, nbPixels - x);
+				for (int b = 0; b < n; b++, i += srcStep) {
+					bits |= (src[i] & 0x80) >> b;
+				}
+				dst[dstOffset + (x >> 3)] = (byte) bits;
+			}
+		} else {
+			for (int x = 0, i = srcOffset; x < nbPixels; x++, i += srcStep) {
+				dst[dstOffset + x] = src[i];
+			}
+		}
+	}
+
+	/**
+	 * Writes a row of binarized 16bpp pixels (0 or 0xffff) in this format.
+	 *
+	 * @see #packRow(byte[], int, int, int, byte[], int)
+	 */
+	public void packRow(short[] src, int srcOffset, int nbPixels, byte[] dst, int dstOffset) {
+		if (this == OneBit) {
+			int i = srcOffset;
+			for (int x = 0; x < nbPixels; x += 8) {
+				int bits = 0;
+				int n = Math.min(8, nbPixels - x);
+				for (int b = 0; b < n; b++, i++) {
+					bits |= (src[i] & 0x80) >> b;
+				}
+				dst[dstOffset + (x >> 3)] = (byte) bits;
+			}
+		} else {
+			for (int x = 0; x < nbPixels; x++) {
+				dst[dstOffset + x] = (byte) src[srcOffset + x];
+			}
+		}
+	}
+}
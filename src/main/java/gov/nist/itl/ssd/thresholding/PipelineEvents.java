@@ -0,0 +1,220 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import gov.nist.itl.ssd.thresholding.StageTimer.Stage;
+
+/**
+ * Java Flight Recorder events of the ThresholdingProcessor: one event per
+ * image task, and one event per stage of the processing of each tile (read,
+ * histogram, binarize, write) or of each image (threshold). The events carry
+ * the name, size and bit depth of the image, the method and the threshold, so
+ * that the samples of a recording can be sliced by image and by stage.
+ *
+ * The image and tile being processed are kept per thread, the stage events
+ * are emitted by the StageTimer. Nothing is allocated when no recording is
+ * running, and all the methods do nothing on JVMs without Flight Recorder,
+ * whose classes are only loaded if they are available.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public final class PipelineEvents {
+
+	private static final boolean AVAILABLE = isFlightRecorderAvailable();
+
+	private static final ThreadLocal<Context> CONTEXT = new ThreadLocal<Context>() {
+		@Override
+		protected Context initialValue() {
+			return new Context();
+		}
+	};
+
+	/**
+	 * Image and tile processed by a thread, and its pending events.
+	 */
+	static class Context {
+		String task = "";
+		String image = "";
+		String method = "";
+		int width = -1;
+		int height = -1;
+		int bitDepth = -1;
+		double threshold = Double.NaN;
+		int tileX = -1;
+		int tileY = -1;
+		int tileWidth = -1;
+		int tileHeight = -1;
+		// Event of the image task, null if no recording was running when the
+		// task started
+		Object imageEvent;
+		// Event of the stage started at stageStart, null if none
+		Object stageEvent;
+		long stageStart;
+	}
+
+	private PipelineEvents() {
+	}
+
+	/**
+	 * Starts the task of the calling thread on an image.
+	 *
+	 * @param image the name of the image
+	 * @param task the name of the task
+	 * @param method the thresholding method
+	 */
+	public static void startImage(String image, String task, String method) {
+		if (!AVAILABLE) {
+			return;
+		}
+		Context context = CONTEXT.get();
+		context.image = image;
+		context.task = task;
+		context.method = method;
+		context.width = -1;
+		context.height = -1;
+		context.bitDepth = -1;
+		context.threshold = Double.NaN;
+		clearTile();
+		context.imageEvent = JfrEvents.beginImage();
+		context.stageEvent = null;
+	}
+
+	/**
+	 * @return the image of the task of the calling thread, to be given to
+	 *         joinImage by the threads helping it
+	 */
+	public static Object getImage() {
+		return AVAILABLE ? CONTEXT.get() : null;
+	}
+
+	/**
+	 * Starts a thread helping the task of another thread, e.g. decoding its
+	 * tiles ahead: the stages of the calling thread are reported for the
+	 * same image, without another image event. endImage ends it.
+	 *
+	 * @param image the image returned by getImage in the thread of the task
+	 */
+	public static void joinImage(Object image) {
+		if (!AVAILABLE || image == null) {
+			return;
+		}
+		Context task = (Context) image;
+		Context context = CONTEXT.get();
+		context.image = task.image;
+		context.task = task.task;
+		context.method = task.method;
+		context.width = task.width;
+		context.height = task.height;
+		context.bitDepth = task.bitDepth;
+		context.threshold = task.threshold;
+		clearTile();
+		context.imageEvent = null;
+		context.stageEvent = null;
+	}
+
+	/**
+	 * Sets the size and bit depth of the image of the calling thread.
+	 */
+	public static void setImageSize(int width, int height, int bitDepth) {
+		if (!AVAILABLE) {
+			return;
+		}
+		Context context = CONTEXT.get();
+		context.width = width;
+		context.height = height;
+		context.bitDepth = bitDepth;
+	}
+
+	/**
+	 * Sets the threshold of the image of the calling thread.
+	 */
+	public static void setThreshold(double threshold) {
+		if (AVAILABLE) {
+			CONTEXT.get().threshold = threshold;
+		}
+	}
+
+	/**
+	 * Sets the tile processed by the calling thread.
+	 */
+	public static void setTile(int tileX, int tileY, int tileWidth, int tileHeight) {
+		if (!AVAILABLE) {
+			return;
+		}
+		Context context = CONTEXT.get();
+		context.tileX = tileX;
+		context.tileY = tileY;
+		context.tileWidth = tileWidth;
+		context.tileHeight = tileHeight;
+	}
+
+	/**
+	 * Records that the calling thread no longer processes a tile, e.g. once
+	 * the loop over the tiles is done.
+	 */
+	public static void clearTile() {
+		setTile(-1, -1, -1, -1);
+	}
+
+	/**
+	 * Ends the task of the calling thread and emits its event.
+	 */
+	public static void endImage() {
+		if (!AVAILABLE) {
+			return;
+		}
+		Context context = CONTEXT.get();
+		if (context.imageEvent != null) {
+			JfrEvents.commitImage(context.imageEvent, context);
+		}
+		CONTEXT.remove();
+	}
+
+	/**
+	 * Called by the StageTimer when a stage starts at the given time.
+	 */
+	static void startStage(long start) {
+		if (!AVAILABLE) {
+			return;
+		}
+		Context context = CONTEXT.get();
+		context.stageEvent = JfrEvents.beginStage();
+		context.stageStart = start;
+	}
+
+	/**
+	 * Called by the StageTimer when the stage started at start ends at now.
+	 * The next stage is assumed to start at now, as the timer returns it to
+	 * the caller as the start of the next stage.
+	 */
+	static void stopStage(Stage stage, long start, long now) {
+		if (!AVAILABLE) {
+			return;
+		}
+		Context context = CONTEXT.get();
+		if (context.stageEvent != null && context.stageStart == start) {
+			JfrEvents.commitStage(context.stageEvent, stage, context);
+		}
+		context.stageEvent = JfrEvents.beginStage();
+		context.stageStart = now;
+	}
+
+	private static boolean isFlightRecorderAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return JfrEvents.isAvailable();
+		} catch (ClassNotFoundException | LinkageError ex) {
+			return false;
+		}
+	}
+}
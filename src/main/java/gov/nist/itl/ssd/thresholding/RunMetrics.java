@@ -0,0 +1,546 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gov.nist.itl.ssd.thresholding.StageTimer.Stage;
+
+/**
+ * Metrics of a run of the ThresholdingProcessor: the time spent in each stage
+ * and the pixels, tiles and bytes read and written, for each image task and
+ * for the whole run, written as JSON and in the Prometheus text format at the
+ * end of the run.
+ *
+ * Each image task is recorded between startImage and endImage, on the thread
+ * running it. The counters are added to the task of the calling thread, so
+ * the tile loops do not need to know which image they process. The
+ * allocations are those of the thread of the task, the compression and
+ * decoding threads shared by all the images are not included.
+ *
+ * The occupancy of the queues between the stages of the pipeline is recorded
+ * as well, summed over the images, to size them.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class RunMetrics {
+
+	private static final String PREFIX = "wipp_thresholding_";
+
+	private final StageTimer timer;
+	private final long[] startStageNanos = new long[Stage.values().length];
+	private final long startNanos;
+	private final long startGcMillis;
+	private long wallNanos = -1;
+	private long gcMillis = 0;
+
+	private final List<ImageMetrics> images = new ArrayList<>();
+	private final ThreadLocal<ImageMetrics> current = new ThreadLocal<>();
+	private final Map<String, QueueMetrics> queues = new LinkedHashMap<>();
+
+	/**
+	 * Starts the metrics of a run.
+	 *
+	 * @param timer the timer of the processor, the times of the stages are
+	 *              those added to it during the run
+	 */
+	public RunMetrics(StageTimer timer) {
+		this.timer = timer;
+		for (Stage stage : Stage.values()) {
+			startStageNanos[stage.ordinal()] = timer.getNanos(stage);
+		}
+		this.startNanos = System.nanoTime();
+		this.startGcMillis = getGcMillis();
+	}
+
+	/**
+	 * Metrics of the processing of an image by a task.
+	 */
+	public static class ImageMetrics {
+		private final String image;
+		private final String task;
+		private final long inputBytes;
+		private final long[] stageNanos = new long[Stage.values().length];
+		private final long startNanos = System.nanoTime();
+		private final long startAllocatedBytes = getAllocatedBytes();
+		private long wallNanos;
+		private long allocatedBytes = -1;
+		private String status = "ok";
+		private double threshold = Double.NaN;
+		private long pixelsRead;
+		private long bytesDecoded;
+		private long tilesRead;
+		private long tilesWritten;
+		private long outputBytes;
+
+		private ImageMetrics(File image, String task) {
+			this.image = image.getName();
+			this.task = task;
+			this.inputBytes = image.length();
+		}
+	}
+
+	/**
+	 * Occupancy of a bounded queue between two stages, e.g. the tiles decoded
+	 * ahead of the binarization: its depth, sampled each time an element is
+	 * added, and the time its producer waited for room (the consumer is the
+	 * slowest stage) and its consumer waited for an element (the producer is
+	 * the slowest stage).
+	 */
+	public static class QueueMetrics {
+		private final String name;
+		private final AtomicLong capacity = new AtomicLong();
+		private final AtomicLong samples = new AtomicLong();
+		private final AtomicLong depthSum = new AtomicLong();
+		private final AtomicLong maxDepth = new AtomicLong();
+		private final AtomicLong fullNanos = new AtomicLong();
+		private final AtomicLong emptyNanos = new AtomicLong();
+
+		private QueueMetrics(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Records the depth of the queue after an element was added.
+		 */
+		public void sample(int depth) {
+			samples.incrementAndGet();
+			depthSum.addAndGet(depth);
+			maxDepth.accumulateAndGet(depth, Math::max);
+		}
+
+		/**
+		 * Adds the time the producer waited for room in the queue.
+		 */
+		public void addFullNanos(long nanos) {
+			fullNanos.addAndGet(nanos);
+		}
+
+		/**
+		 * Adds the time the consumer waited for an element of the queue.
+		 */
+		public void addEmptyNanos(long nanos) {
+			emptyNanos.addAndGet(nanos);
+		}
+
+		private double getMeanDepth() {
+			long n = samples.get();
+			return n == 0 ? 0 : (double) depthSum.get() / n;
+		}
+	}
+
+	/**
+	 * @param name the name of the queue, e.g. "decoded"
+	 * @param capacity the capacity of the queue, the largest one is reported
+	 *                 if it differs between the images
+	 * @return the metrics of the queue, shared by all the images
+	 */
+	public QueueMetrics getQueue(String name, int capacity) {
+		QueueMetrics queue;
+		synchronized (queues) {
+			queue = queues.get(name);
+			if (queue == null) {
+				queue = new QueueMetrics(name);
+				queues.put(name, queue);
+			}
+		}
+		queue.capacity.accumulateAndGet(capacity, Math::max);
+		return queue;
+	}
+
+	/**
+	 * Starts the metrics of an image task on the calling thread.
+	 *
+	 * @param image the image
+	 * @param task the name of the task, e.g. "threshold" or "histogram"
+	 * @return the metrics of the task, to be given to endImage
+	 */
+	public ImageMetrics startImage(File image, String task) {
+		ImageMetrics metrics = new ImageMetrics(image, task);
+		current.set(metrics);
+		timer.setImageNanos(metrics.stageNanos);
+		return metrics;
+	}
+
+	/**
+	 * Ends the metrics of an image task started on the calling thread.
+	 *
+	 * @param metrics the metrics returned by startImage
+	 * @param failed true if the task failed
+	 */
+	public void endImage(ImageMetrics metrics, boolean failed) {
+		timer.setImageNanos(null);
+		current.remove();
+		metrics.wallNanos = System.nanoTime() - metrics.startNanos;
+		long allocated = getAllocatedBytes();
+		if (allocated >= 0 && metrics.startAllocatedBytes >= 0) {
+			metrics.allocatedBytes = allocated - metrics.startAllocatedBytes;
+		}
+		if (failed) {
+			metrics.status = "failed";
+		}
+		synchronized (images) {
+			images.add(metrics);
+		}
+	}
+
+	/**
+	 * Records that the image of the calling thread was skipped, e.g. because
+	 * it had already been processed.
+	 */
+	public void skipped() {
+		ImageMetrics metrics = current.get();
+		if (metrics != null) {
+			metrics.status = "skipped";
+		}
+	}
+
+	/**
+	 * Records the threshold of the image of the calling thread.
+	 */
+	public void setThreshold(double threshold) {
+		ImageMetrics metrics = current.get();
+		if (metrics != null) {
+			metrics.threshold = threshold;
+		}
+	}
+
+	/**
+	 * Adds pixels decoded by the calling thread.
+	 *
+	 * @param tiles the number of tiles read, 0 if the pixels were not read by
+	 *              tile
+	 * @param pixels the number of pixels
+	 * @param bytes the number of bytes of the decoded pixels
+	 */
+	public void addRead(int tiles, long pixels, long bytes) {
+		ImageMetrics metrics = current.get();
+		if (metrics != null) {
+			metrics.tilesRead += tiles;
+			metrics.pixelsRead += pixels;
+			metrics.bytesDecoded += bytes;
+		}
+	}
+
+	/**
+	 * Adds tiles handed to a writer by the calling thread.
+	 */
+	public void addTilesWritten(int tiles) {
+		ImageMetrics metrics = current.get();
+		if (metrics != null) {
+			metrics.tilesWritten += tiles;
+		}
+	}
+
+	/**
+	 * Adds the size of a file written by the calling thread.
+	 */
+	public void addOutput(long bytes) {
+		ImageMetrics metrics = current.get();
+		if (metrics != null) {
+			metrics.outputBytes += bytes;
+		}
+	}
+
+	/**
+	 * Ends the run.
+	 */
+	public void end() {
+		wallNanos = System.nanoTime() - startNanos;
+		gcMillis = getGcMillis() - startGcMillis;
+	}
+
+	/**
+	 * @return a one line summary of the run, for the log
+	 */
+	public String getSummary() {
+		long[] totals = getTotals();
+		double seconds = getWallNanos() / 1e9;
+		return String.format("%d images (%d failed, %d skipped) in %.2f s: %.1f Mpixels/s, "
+				+ "%.1f tiles/s, %.1f MB/s read, %.1f MB/s written", count("ok"), count("failed"),
+				count("skipped"), seconds, totals[0] / seconds / 1e6, totals[2] / seconds,
+				totals[4] / seconds / (1024 * 1024), totals[5] / seconds / (1024 * 1024));
+	}
+
+	/**
+	 * Writes the metrics as JSON:
+	 * {"run": {...}, "queues": {"decoded": {...}, ...},
+	 * "images": [{"image": "name", "task": "threshold", ...}, ...]}
+	 */
+	public void writeJson(File file) throws IOException {
+		List<ImageMetrics> records = getImages();
+		long[] totals = getTotals();
+		double seconds = getWallNanos() / 1e9;
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(),
+				StandardCharsets.UTF_8))) {
+			out.print("{\n  \"run\": {\"seconds\": " + jsonNumber(seconds)
+					+ ", \"images\": " + count("ok") + ", \"failed\": " + count("failed")
+					+ ", \"skipped\": " + count("skipped")
+					+ ", \"stageSeconds\": " + jsonStages(getRunStageNanos())
+					+ ", \"pixelsRead\": " + totals[0] + ", \"bytesDecoded\": " + totals[1]
+					+ ", \"tilesRead\": " + totals[2] + ", \"tilesWritten\": " + totals[3]
+					+ ", \"inputBytes\": " + totals[4] + ", \"outputBytes\": " + totals[5]
+					+ ", \"allocatedBytes\": " + totals[6] + ", \"gcSeconds\": " + gcMillis / 1e3
+					+ ", \"pixelsPerSecond\": " + jsonNumber(totals[0] / seconds)
+					+ ", \"tilesPerSecond\": " + jsonNumber(totals[2] / seconds) + "},\n");
+			out.print("  \"queues\": {");
+			boolean firstQueue = true;
+			for (QueueMetrics q : getQueues()) {
+				out.print((firstQueue ? "" : ", ") + jsonString(q.name) + ": {\"capacity\": "
+						+ q.capacity.get() + ", \"meanDepth\": " + jsonNumber(q.getMeanDepth())
+						+ ", \"maxDepth\": " + q.maxDepth.get()
+						+ ", \"fullSeconds\": " + jsonNumber(q.fullNanos.get() / 1e9)
+						+ ", \"emptySeconds\": " + jsonNumber(q.emptyNanos.get() / 1e9) + "}");
+				firstQueue = false;
+			}
+			out.print("},\n");
+			out.print("  \"images\": [");
+			boolean first = true;
+			for (ImageMetrics m : records) {
+				double imageSeconds = m.wallNanos / 1e9;
+				out.print((first ? "\n" : ",\n") + "    {\"image\": " + jsonString(m.image)
+						+ ", \"task\": " + jsonString(m.task) + ", \"status\": " + jsonString(m.status)
+						+ ", \"threshold\": " + jsonNumber(m.threshold)
+						+ ", \"seconds\": " + jsonNumber(imageSeconds)
+						+ ", \"stageSeconds\": " + jsonStages(m.stageNanos)
+						+ ", \"pixelsRead\": " + m.pixelsRead + ", \"bytesDecoded\": " + m.bytesDecoded
+						+ ", \"tilesRead\": " + m.tilesRead + ", \"tilesWritten\": " + m.tilesWritten
+						+ ", \"inputBytes\": " + m.inputBytes + ", \"outputBytes\": " + m.outputBytes
+						+ ", \"allocatedBytes\": " + (m.allocatedBytes < 0 ? "null" : m.allocatedBytes)
+						+ ", \"pixelsPerSecond\": " + jsonNumber(m.pixelsRead / imageSeconds)
+						+ ", \"tilesPerSecond\": " + jsonNumber(m.tilesRead / imageSeconds) + "}");
+				first = false;
+			}
+			out.print(first ? "]\n}\n" : "\n  ]\n}\n");
+		}
+	}
+
+	/**
+	 * Writes the metrics in the Prometheus text exposition format, e.g. for
+	 * the textfile collector of the node exporter.
+	 */
+	public void writePrometheus(File file) throws IOException {
+		List<ImageMetrics> records = getImages();
+		long[] totals = getTotals();
+		double seconds = getWallNanos() / 1e9;
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(),
+				StandardCharsets.UTF_8))) {
+			metric(out, "run_seconds", "gauge", "Wall time of the run");
+			out.print(PREFIX + "run_seconds " + seconds + "\n");
+			metric(out, "images", "gauge", "Number of image tasks of the run by status");
+			for (String status : new String[] {"ok", "failed", "skipped"}) {
+				out.print(PREFIX + "images{status=\"" + status + "\"} " + count(status) + "\n");
+			}
+			metric(out, "stage_seconds_total", "counter", "Time spent in each stage, summed over the threads");
+			long[] stageNanos = getRunStageNanos();
+			for (Stage stage : Stage.values()) {
+				out.print(PREFIX + "stage_seconds_total{stage=\"" + stage.name().toLowerCase() + "\"} "
+						+ stageNanos[stage.ordinal()] / 1e9 + "\n");
+			}
+			String[][] counters = {
+					{"pixels_read_total", "Pixels decoded"},
+					{"decoded_bytes_total", "Bytes of the decoded pixels"},
+					{"tiles_read_total", "Tiles decoded"},
+					{"tiles_written_total", "Tiles written"},
+					{"input_bytes_total", "Size of the input images"},
+					{"output_bytes_total", "Size of the files written"},
+					{"allocated_bytes_total", "Bytes allocated by the threads of the image tasks"}};
+			for (int i = 0; i < counters.length; i++) {
+				metric(out, counters[i][0], "counter", counters[i][1]);
+				out.print(PREFIX + counters[i][0] + " " + totals[i] + "\n");
+			}
+			metric(out, "gc_seconds_total", "counter", "Time spent in garbage collection during the run");
+			out.print(PREFIX + "gc_seconds_total " + gcMillis / 1e3 + "\n");
+			metric(out, "pixels_per_second", "gauge", "Pixels decoded per second of wall time");
+			out.print(PREFIX + "pixels_per_second " + totals[0] / seconds + "\n");
+			metric(out, "tiles_per_second", "gauge", "Tiles decoded per second of wall time");
+			out.print(PREFIX + "tiles_per_second " + totals[2] / seconds + "\n");
+
+			List<QueueMetrics> queueRecords = getQueues();
+			metric(out, "queue_capacity", "gauge", "Capacity of the queues between the stages");
+			for (QueueMetrics q : queueRecords) {
+				out.print(PREFIX + "queue_capacity{queue=\"" + q.name + "\"} " + q.capacity.get() + "\n");
+			}
+			metric(out, "queue_depth_mean", "gauge", "Mean depth of the queues when an element is added");
+			for (QueueMetrics q : queueRecords) {
+				out.print(PREFIX + "queue_depth_mean{queue=\"" + q.name + "\"} " + q.getMeanDepth() + "\n");
+			}
+			metric(out, "queue_depth_max", "gauge", "Max depth of the queues");
+			for (QueueMetrics q : queueRecords) {
+				out.print(PREFIX + "queue_depth_max{queue=\"" + q.name + "\"} " + q.maxDepth.get() + "\n");
+			}
+			metric(out, "queue_full_seconds_total", "counter", "Time the producers waited for room in the queues");
+			for (QueueMetrics q : queueRecords) {
+				out.print(PREFIX + "queue_full_seconds_total{queue=\"" + q.name + "\"} "
+						+ q.fullNanos.get() / 1e9 + "\n");
+			}
+			metric(out, "queue_empty_seconds_total", "counter", "Time the consumers waited for an element of the queues");
+			for (QueueMetrics q : queueRecords) {
+				out.print(PREFIX + "queue_empty_seconds_total{queue=\"" + q.name + "\"} "
+						+ q.emptyNanos.get() / 1e9 + "\n");
+			}
+
+			metric(out, "image_seconds", "gauge", "Wall time of each image task");
+			for (ImageMetrics m : records) {
+				out.print(PREFIX + "image_seconds" + labels(m, null) + " " + m.wallNanos / 1e9 + "\n");
+			}
+			metric(out, "image_stage_seconds", "gauge", "Time spent in each stage by each image task");
+			for (ImageMetrics m : records) {
+				for (Stage stage : Stage.values()) {
+					out.print(PREFIX + "image_stage_seconds" + labels(m, stage) + " "
+							+ m.stageNanos[stage.ordinal()] / 1e9 + "\n");
+				}
+			}
+			metric(out, "image_pixels_read", "gauge", "Pixels decoded by each image task");
+			for (ImageMetrics m : records) {
+				out.print(PREFIX + "image_pixels_read" + labels(m, null) + " " + m.pixelsRead + "\n");
+			}
+			metric(out, "image_output_bytes", "gauge", "Size of the files written by each image task");
+			for (ImageMetrics m : records) {
+				out.print(PREFIX + "image_output_bytes" + labels(m, null) + " " + m.outputBytes + "\n");
+			}
+		}
+	}
+
+	private List<ImageMetrics> getImages() {
+		synchronized (images) {
+			List<ImageMetrics> copy = new ArrayList<>(images);
+			copy.sort((a, b) -> a.image.equals(b.image) ? a.task.compareTo(b.task)
+					: a.image.compareTo(b.image));
+			return copy;
+		}
+	}
+
+	private List<QueueMetrics> getQueues() {
+		synchronized (queues) {
+			return new ArrayList<>(queues.values());
+		}
+	}
+
+	private int count(String status) {
+		int n = 0;
+		for (ImageMetrics m : getImages()) {
+			if (m.status.equals(status)) n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return the sums over the image tasks of the pixels read, the bytes
+	 *         decoded, the tiles read and written, the input and output bytes
+	 *         and the allocated bytes
+	 */
+	private long[] getTotals() {
+		long[] totals = new long[7];
+		for (ImageMetrics m : getImages()) {
+			totals[0] += m.pixelsRead;
+			totals[1] += m.bytesDecoded;
+			totals[2] += m.tilesRead;
+			totals[3] += m.tilesWritten;
+			totals[4] += m.status.equals("skipped") ? 0 : m.inputBytes;
+			totals[5] += m.outputBytes;
+			totals[6] += Math.max(0, m.allocatedBytes);
+		}
+		return totals;
+	}
+
+	private long[] getRunStageNanos() {
+		long[] stageNanos = new long[startStageNanos.length];
+		for (Stage stage : Stage.values()) {
+			stageNanos[stage.ordinal()] = timer.getNanos(stage) - startStageNanos[stage.ordinal()];
+		}
+		return stageNanos;
+	}
+
+	private long getWallNanos() {
+		return wallNanos >= 0 ? wallNanos : System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * @return the bytes allocated by the calling thread, or -1 if the JVM does
+	 *         not measure them
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+			if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+				return sunThreads.getThreadAllocatedBytes(Thread.currentThread().threadId());
+			}
+		}
+		return -1;
+	}
+
+	private static long getGcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static void metric(PrintWriter out, String name, String type, String help) {
+		out.print("# HELP " + PREFIX + name + " " + help + "\n");
+		out.print("# TYPE " + PREFIX + name + " " + type + "\n");
+	}
+
+	private static String labels(ImageMetrics m, Stage stage) {
+		return "{image=\"" + labelValue(m.image) + "\",task=\"" + labelValue(m.task)
+				+ (stage == null ? "" : "\",stage=\"" + stage.name().toLowerCase()) + "\"}";
+	}
+
+	private static String labelValue(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String jsonStages(long[] stageNanos) {
+		StringBuilder sb = new StringBuilder("{");
+		for (Stage stage : Stage.values()) {
+			sb.append(sb.length() == 1 ? "" : ", ").append('"').append(stage.name().toLowerCase())
+					.append("\": ").append(stageNanos[stage.ordinal()] / 1e9);
+		}
+		return sb.append('}').toString();
+	}
+
+	private static String jsonString(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	// NaN and infinities are not valid JSON numbers
+	private static String jsonNumber(double value) {
+		return Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value);
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Histogram estimated from a sample of the tiles of one or several images.
+ *
+ * The sampled tiles are dealt in turn into NB_GROUPS partial histograms. The
+ * estimated histogram is their sum, and the standard error of a threshold
+ * computed from it is estimated by the delete-a-group jackknife: the
+ * threshold is computed again without each group in turn. Since whole tiles
+ * are the sampling units, the error accounts for the correlation between
+ * the neighbouring pixels.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class SampledHistogram {
+
+	public static final int NB_GROUPS = 8;
+
+	private final long[][] groups;
+	private int nbTiles = 0;
+	private long sampledPixels = 0;
+	private long totalPixels = 0;
+
+	/**
+	 * @param nbBins the number of bins, 256 or 65536
+	 */
+	public SampledHistogram(int nbBins) {
+		this.groups = new long[NB_GROUPS][nbBins];
+	}
+
+	public int getNbBins() {
+		return groups[0].length;
+	}
+
+	/**
+	 * Adds a sampled tile.
+	 *
+	 * @param tileHistogram the histogram of the tile, with getNbBins() bins
+	 */
+	public void addTile(int[] tileHistogram) {
+		long[] group = groups[nbTiles % NB_GROUPS];
+		for (int i = 0; i < tileHistogram.length; i++) {
+			group[i] += tileHistogram[i];
+			sampledPixels += tileHistogram[i];
+		}
+		nbTiles++;
+	}
+
+	/**
+	 * Adds the pixels of a sampled image, sampled or not, to the number of
+	 * pixels the histogram is estimated for.
+	 */
+	public void addPixels(long nbPixels) {
+		totalPixels += nbPixels;
+	}
+
+	/**
+	 * Merges another sample into this one, e.g. the samples of several images.
+	 * The other sample may have fewer bins.
+	 */
+	public void merge(SampledHistogram other) {
+		if (other.getNbBins() > getNbBins()) {
+			throw new IllegalArgumentException("Too many bins in the merged histogram");
+		}
+		for (int g = 0; g < NB_GROUPS; g++) {
+			long[] group = groups[(nbTiles + g) % NB_GROUPS];
+			long[] otherGroup = other.groups[g];
+			for (int i = 0; i < otherGroup.length; i++) {
+				group[i] += otherGroup[i];
+			}
+		}
+		nbTiles += other.nbTiles;
+		sampledPixels += other.sampledPixels;
+		totalPixels += other.totalPixels;
+	}
+
+	/**
+	 * @return the estimated histogram, the sum of all the sampled tiles
+	 */
+	public long[] getHistogram() {
+		return getHistogramWithout(-1);
+	}
+
+	/**
+	 * @return the fraction of the pixels of the images that has been sampled
+	 */
+	public double getSampledFraction() {
+		return totalPixels == 0 ? 0 : (double) sampledPixels / totalPixels;
+	}
+
+	public int getNbTiles() {
+		return nbTiles;
+	}
+
+	/**
+	 * Estimates the standard error of a threshold computed from this
+	 * histogram with the delete-a-group jackknife.
+	 *
+	 * @param threshold computes a threshold from a histogram
+	 * @return the standard error, in pixel values, or NaN if fewer than 2
+	 *         tiles have been sampled
+	 */
+	public double getStandardError(ToDoubleFunction<long[]> threshold) {
+		int nbGroups = Math.min(nbTiles, NB_GROUPS);
+		if (nbGroups < 2) {
+			return Double.NaN;
+		}
+		double[] thresholds = new double[nbGroups];
+		double mean = 0;
+		for (int g = 0; g < nbGroups; g++) {
+			thresholds[g] = threshold.applyAsDouble(getHistogramWithout(g));
+			mean += thresholds[g];
+		}
+		mean /= nbGroups;
+		double sum = 0;
+		for (double t : thresholds) {
+			sum += (t - mean) * (t - mean);
+		}
+		return Math.sqrt((nbGroups - 1) * sum / nbGroups);
+	}
+
+	private long[] getHistogramWithout(int excluded) {
+		long[] histogram = new long[getNbBins()];
+		for (int g = 0; g < NB_GROUPS; g++) {
+			if (g != excluded) {
+				long[] group = groups[g];
+				for (int i = 0; i < histogram.length; i++) {
+					histogram[i] += group[i];
+				}
+			}
+		}
+		return histogram;
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+/**
+ * Selection of the pixels used to estimate the histogram of an image when
+ * its exact histogram is not required.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public enum SamplingMode {
+	// One random tile in each run of consecutive tiles, so that the sample
+	// covers the whole image
+	Stratified("stratified"),
+	// Tiles drawn at random over the whole image
+	Random("random"),
+	// All the tiles of a lower resolution of the image pyramid
+	Pyramid("pyramid");
+
+	private final String name;
+
+	private SamplingMode(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * @param text the name of the mode, as given on the command line
+	 * @return the matching mode, or null if no mode has this name
+	 */
+	public static SamplingMode fromString(String text) {
+		for (SamplingMode mode : values()) {
+			if (mode.name.equals(text)) {
+				return mode;
+			}
+		}
+		return null;
+	}
+}
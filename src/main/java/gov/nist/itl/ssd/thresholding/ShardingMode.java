@@ -0,0 +1,107 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Partition of a collection of images into shards processed by separate
+ * runs of the plugin, e.g. on several nodes. The partition only depends on
+ * the names of the images, and on their sizes in Size mode, so every run
+ * computes the same partition and each image belongs to exactly one shard.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public enum ShardingMode {
+	// Shard given by a hash of the name of the image: an image stays in the
+	// same shard when images are added to the collection
+	Hash("hash"),
+	// Images assigned from the largest to the least loaded shard, so that
+	// the shards hold about the same number of bytes and finish together
+	Size("size");
+
+	private final String name;
+
+	private ShardingMode(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * @param text the name of the mode, as given on the command line
+	 * @return the matching mode, or null if no mode has this name
+	 */
+	public static ShardingMode fromString(String text) {
+		for (ShardingMode mode : values()) {
+			if (mode.name.equals(text)) {
+				return mode;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Selects the images of a shard.
+	 *
+	 * @param images the images of the collection
+	 * @param shardIndex the index of the shard, from 0 to shardCount - 1
+	 * @param shardCount the number of shards
+	 * @return the images of the shard, sorted by name
+	 */
+	public File[] select(File[] images, int shardIndex, int shardCount) {
+		File[] sorted = images.clone();
+		Arrays.sort(sorted, Comparator.comparing(File::getName));
+		List<File> shard = new ArrayList<>();
+		if (this == Hash) {
+			for (File image : sorted) {
+				CRC32 crc = new CRC32();
+				crc.update(image.getName().getBytes(StandardCharsets.UTF_8));
+				if (crc.getValue() % shardCount == shardIndex) {
+					shard.add(image);
+				}
+			}
+			return shard.toArray(new File[0]);
+		}
+
+		// Longest processing time first, ties broken by name
+		File[] bySize = sorted.clone();
+		Arrays.sort(bySize, Comparator.comparingLong(File::length).reversed()
+				.thenComparing(File::getName));
+		long[] loads = new long[shardCount];
+		for (File image : bySize) {
+			int target = 0;
+			for (int s = 1; s < shardCount; s++) {
+				if (loads[s] < loads[target]) {
+					target = s;
+				}
+			}
+			loads[target] += image.length();
+			if (target == shardIndex) {
+				shard.add(image);
+			}
+		}
+		File[] result = shard.toArray(new File[0]);
+		Arrays.sort(result, Comparator.comparing(File::getName));
+		return result;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+/**
+ * Step of the processing of a large image split into ranges of tiles, each
+ * range being processed by a separate job.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public enum SplitStep {
+	// Histogram of a range of tiles, written to a snapshot file
+	Histogram("histogram"),
+	// Merge of the snapshots of all the ranges and threshold of the image
+	Reduce("reduce"),
+	// Binarization of a range of tiles, written to a fragment file
+	Binarize("binarize"),
+	// Concatenation of the fragments of all the ranges into the output image
+	Assemble("assemble");
+
+	private final String name;
+
+	private SplitStep(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * @param text the name of the step, as given on the command line
+	 * @return the matching step, or null if no step has this name
+	 */
+	public static SplitStep fromString(String text) {
+		for (SplitStep step : values()) {
+			if (step.name.equals(text)) {
+				return step;
+			}
+		}
+		return null;
+	}
+}
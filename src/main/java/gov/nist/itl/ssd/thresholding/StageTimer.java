@@ -0,0 +1,113 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time spent by the ThresholdingProcessor in each stage of the processing of
+ * the images, summed over all the images and all the threads.
+ *
+ * The timer is thread safe; the image tasks add their times to it
+ * concurrently. The times of a thread can also be attributed to the image it
+ * is processing, see setImageNanos. Each stage is also reported to the
+ * PipelineEvents as a Flight Recorder event.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class StageTimer {
+
+	public enum Stage {
+		// Decoding of the input pixels
+		READ,
+		// Computation of the histograms
+		HISTOGRAM,
+		// Computation of the thresholds from the histograms
+		THRESHOLD,
+		// Binarization of the pixels
+		BINARIZE,
+		// Tiling, compression and writing of the output images
+		WRITE
+	}
+
+	private final AtomicLongArray nanos = new AtomicLongArray(Stage.values().length);
+	// Times of the image processed by each thread, indexed by stage
+	private final ThreadLocal<long[]> imageNanos = new ThreadLocal<>();
+
+	/**
+	 * Starts a stage.
+	 *
+	 * @return the current time, given by System.nanoTime(), to be given to
+	 *         stop at the end of the stage
+	 */
+	public long start() {
+		long now = System.nanoTime();
+		PipelineEvents.startStage(now);
+		return now;
+	}
+
+	/**
+	 * Adds the time elapsed since start to a stage.
+	 *
+	 * @param stage the stage
+	 * @param start the start time of the stage, given by start(), by
+	 *              System.nanoTime() or by the end of the previous stage
+	 * @return the current time, to be used as the start of the next stage
+	 */
+	public long stop(Stage stage, long start) {
+		long now = System.nanoTime();
+		nanos.addAndGet(stage.ordinal(), now - start);
+		long[] image = imageNanos.get();
+		if (image != null) {
+			image[stage.ordinal()] += now - start;
+		}
+		PipelineEvents.stopStage(stage, start, now);
+		return now;
+	}
+
+	/**
+	 * Adds the times of the calling thread to the times of an image as well,
+	 * until this method is called again.
+	 *
+	 * @param image the times of the image, indexed by stage ordinal, or null
+	 *              to stop
+	 */
+	public void setImageNanos(long[] image) {
+		if (image == null) {
+			imageNanos.remove();
+		} else {
+			imageNanos.set(image);
+		}
+	}
+
+	/**
+	 * @return the times of the image of the calling thread, as given to
+	 *         setImageNanos, or null
+	 */
+	public long[] getImageNanos() {
+		return imageNanos.get();
+	}
+
+	/**
+	 * @return the time spent in a stage, in nanoseconds
+	 */
+	public long getNanos(Stage stage) {
+		return nanos.get(stage.ordinal());
+	}
+
+	public void reset() {
+		for (int i = 0; i < nanos.length(); i++) {
+			nanos.set(i, 0);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+/**
+ * Threads running the image tasks and decoding their tiles.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public enum ThreadMode {
+	// A pool of nbCpus platform threads: at most nbCpus images at a time
+	Platform("platform"),
+	// A virtual thread per image and per tile decoder, so that many images
+	// can wait for slow storage at the same time while the compression
+	// keeps running on nbCpus platform threads
+	Virtual("virtual");
+
+	private final String name;
+
+	private ThreadMode(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * @param text the name of the mode, as given on the command line
+	 * @return the matching mode, or null if no mode has this name
+	 */
+	public static ThreadMode fromString(String text) {
+		for (ThreadMode mode : values()) {
+			if (mode.name.equals(text)) {
+				return mode;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Thresholds of a collection of images computed with several methods, as
+ * produced by the sweep mode of the ThresholdingProcessor. The rows are the
+ * images, sorted by name, and the columns the methods.
+ *
+ * Rows can be added concurrently by the image tasks.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class ThresholdTable {
+
+	private final ThresholdingType[] methods;
+	private final Map<String, double[]> rows = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @param methods the methods, in the order of the columns
+	 */
+	public ThresholdTable(ThresholdingType[] methods) {
+		this.methods = methods.clone();
+	}
+
+	/**
+	 * @param image the name of the image
+	 * @param thresholds the threshold of the image for each method
+	 */
+	public void put(String image, double[] thresholds) {
+		if (thresholds.length != methods.length) {
+			throw new IllegalArgumentException("Expected " + methods.length + " thresholds, got "
+					+ thresholds.length);
+		}
+		rows.put(image, thresholds.clone());
+	}
+
+	/**
+	 * @return the thresholds of an image, or null if the image is not in the
+	 *         table
+	 */
+	public double[] get(String image) {
+		double[] thresholds = rows.get(image);
+		return thresholds == null ? null : thresholds.clone();
+	}
+
+	/**
+	 * Writes the table as CSV: a header line "image,method1,method2,..." then
+	 * one line per image.
+	 */
+	public void writeCsv(File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(),
+				StandardCharsets.UTF_8))) {
+			StringBuilder line = new StringBuilder("image");
+			for (ThresholdingType method : methods) {
+				line.append(',').append(method);
+			}
+			out.print(line.append('\n'));
+			for (Map.Entry<String, double[]> row : rows.entrySet()) {
+				line.setLength(0);
+				line.append(csvField(row.getKey()));
+				for (double threshold : row.getValue()) {
+					line.append(',').append(threshold);
+				}
+				out.print(line.append('\n'));
+			}
+		}
+	}
+
+	/**
+	 * Writes the table as JSON:
+	 * {"methods": [...], "images": [{"image": "name", "thresholds": {"method": value, ...}}, ...]}
+	 */
+	public void writeJson(File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(),
+				StandardCharsets.UTF_8))) {
+			out.print("{\n  \"methods\": [");
+			for (int i = 0; i < methods.length; i++) {
+				out.print((i == 0 ? "" : ", ") + jsonString(methods[i].name()));
+			}
+			out.print("],\n  \"images\": [");
+			boolean first = true;
+			for (Map.Entry<String, double[]> row : rows.entrySet()) {
+				out.print((first ? "\n" : ",\n") + "    {\"image\": " + jsonString(row.getKey())
+						+ ", \"thresholds\": {");
+				double[] thresholds = row.getValue();
+				for (int i = 0; i < methods.length; i++) {
+					out.print((i == 0 ? "" : ", ") + jsonString(methods[i].name()) + ": "
+							+ jsonNumber(thresholds[i]));
+				}
+				out.print("}}");
+				first = false;
+			}
+			out.print(first ? "]\n}\n" : "\n  ]\n}\n");
+		}
+	}
+
+	private static String csvField(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	private static String jsonString(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	// NaN and infinities are not valid JSON numbers
+	private static String jsonNumber(double value) {
+		return Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value);
+	}
+}
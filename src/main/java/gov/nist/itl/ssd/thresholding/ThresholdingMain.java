@@ -13,9 +13,13 @@ package gov.nist.itl.ssd.thresholding;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import gov.nist.itl.ssd.thresholding.utils.TileCompression;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -48,14 +52,110 @@ public class ThresholdingMain {
 		output.setRequired(true);
 		options.addOption(output);
 
-		Option thresholdType = new Option("ttype", "thresholdtype", true, "threshold method type");
-		thresholdType.setRequired(true);
+		Option thresholdType = new Option("ttype", "thresholdtype", true, "threshold method type (ignored in sweep mode)");
+		thresholdType.setRequired(false);
 		options.addOption(thresholdType);
 
 		Option thresholdValue = new Option("tvalue", "thresholdvalue", true, "threshold value for Manual threshold method type");
 		thresholdValue.setRequired(false);
 		options.addOption(thresholdValue);	        
 
+		Option nbCpusOpt = new Option("nbcpus", "nbcpus", true, "number of images processed in parallel (default: number of available processors)");
+		nbCpusOpt.setRequired(false);
+		options.addOption(nbCpusOpt);
+
+		Option streamingOpt = new Option("streaming", "streaming", true, "process the images tile by tile with a bounded memory (true or false, default: false)");
+		streamingOpt.setRequired(false);
+		options.addOption(streamingOpt);
+
+		Option outputFormatOpt = new Option("outputformat", "outputformat", true, "pixel format of the masks (same, 8bit or 1bit, default: same)");
+		outputFormatOpt.setRequired(false);
+		options.addOption(outputFormatOpt);
+
+		Option tileSizeOpt = new Option("tilesize", "tilesize", true, "width and height of the output tiles, multiple of 16 (default: 1024)");
+		tileSizeOpt.setRequired(false);
+		options.addOption(tileSizeOpt);
+
+		Option compressionOpt = new Option("compression", "compression", true, "compression of the output tiles (none, lzw or zlib, default: lzw)");
+		compressionOpt.setRequired(false);
+		options.addOption(compressionOpt);
+
+		Option compressionLevelOpt = new Option("compressionlevel", "compressionlevel", true, "zlib compression level, from 1 (fastest) to 9 (smallest) (default: 6)");
+		compressionLevelOpt.setRequired(false);
+		options.addOption(compressionLevelOpt);
+
+		Option globalThresholdOpt = new Option("globalthreshold", "globalthreshold", true, "compute a single threshold from the histograms of all the images (true or false, default: false)");
+		globalThresholdOpt.setRequired(false);
+		options.addOption(globalThresholdOpt);
+
+		Option histogramCacheOpt = new Option("histogramcache", "histogramcache", true, "folder of the persistent histogram cache, reused by the following runs on the same images (default: no cache)");
+		histogramCacheOpt.setRequired(false);
+		options.addOption(histogramCacheOpt);
+
+		Option sweepOpt = new Option("sweep", "sweep", true, "sweep mode: comma separated list of methods, or all, whose thresholds are written to thresholds.csv and thresholds.json (default: no sweep)");
+		sweepOpt.setRequired(false);
+		options.addOption(sweepOpt);
+
+		Option sweepMasksOpt = new Option("sweepmasks", "sweepmasks", true, "sweep mode: comma separated list of methods whose masks are written, one sub-folder per method (default: none)");
+		sweepMasksOpt.setRequired(false);
+		options.addOption(sweepMasksOpt);
+
+		Option histogramSamplingOpt = new Option("histogramsampling", "histogramsampling", true, "fraction of the pixels used to estimate the histograms in streaming, global and sweep modes, in ]0, 1] (default: 1, exact histograms)");
+		histogramSamplingOpt.setRequired(false);
+		options.addOption(histogramSamplingOpt);
+
+		Option samplingModeOpt = new Option("samplingmode", "samplingmode", true, "selection of the sampled pixels (stratified, random or pyramid, default: stratified)");
+		samplingModeOpt.setRequired(false);
+		options.addOption(samplingModeOpt);
+
+		Option resumeOpt = new Option("resume", "resume", true, "skip the images already processed with the same settings, as recorded in the manifest of the output folder (true or false, default: true)");
+		resumeOpt.setRequired(false);
+		options.addOption(resumeOpt);
+
+		Option shardIndexOpt = new Option("shardindex", "shardindex", true, "index of the shard of the collection processed by this run, from 0 to shardcount - 1 (default: 0)");
+		shardIndexOpt.setRequired(false);
+		options.addOption(shardIndexOpt);
+
+		Option shardCountOpt = new Option("shardcount", "shardcount", true, "number of shards the collection is split into, one run per shard (default: 1)");
+		shardCountOpt.setRequired(false);
+		options.addOption(shardCountOpt);
+
+		Option shardingModeOpt = new Option("shardingmode", "shardingmode", true, "partition of the images between the shards (hash or size, default: hash)");
+		shardingModeOpt.setRequired(false);
+		options.addOption(shardingModeOpt);
+
+		Option splitStepOpt = new Option("splitstep", "splitstep", true, "step of the processing of large images split into ranges of tiles (histogram, reduce, binarize or assemble, default: no split)");
+		splitStepOpt.setRequired(false);
+		options.addOption(splitStepOpt);
+
+		Option tileRangeOpt = new Option("tilerange", "tilerange", true, "range of tiles processed by the histogram and binarize steps: first-end (end excluded) or i/n, part i of n (default: all the tiles)");
+		tileRangeOpt.setRequired(false);
+		options.addOption(tileRangeOpt);
+
+		Option memoryBudgetOpt = new Option("memorybudget", "memorybudget", true, "memory the images may use at the same time, in MB; images needing more than half of it loaded entirely are streamed (default: 70% of the maximum heap or of the memory limit of the container)");
+		memoryBudgetOpt.setRequired(false);
+		options.addOption(memoryBudgetOpt);
+
+		Option prefetchTilesOpt = new Option("prefetchtiles", "prefetchtiles", true, "number of tiles decoded ahead of their binarization when the images are processed tile by tile, 0 to disable (default: 4)");
+		prefetchTilesOpt.setRequired(false);
+		options.addOption(prefetchTilesOpt);
+
+		Option pendingTilesOpt = new Option("pendingtiles", "pendingtiles", true, "number of tiles of all the output images waiting to be compressed and written (default: twice the number of cpus)");
+		pendingTilesOpt.setRequired(false);
+		options.addOption(pendingTilesOpt);
+
+		Option threadModeOpt = new Option("threadmode", "threadmode", true, "threads processing the images: platform, a pool of nbcpus threads, or virtual, a virtual thread per image for collections on slow storage (default: platform)");
+		threadModeOpt.setRequired(false);
+		options.addOption(threadModeOpt);
+
+		Option concurrentImagesOpt = new Option("concurrentimages", "concurrentimages", true, "number of images processed at the same time in virtual mode (default: 4 times nbcpus)");
+		concurrentImagesOpt.setRequired(false);
+		options.addOption(concurrentImagesOpt);
+
+		Option mappedReaderOpt = new Option("mappedreader", "mappedreader", true, "true to decode the pixels of uncompressed, lzw and zlib tiled tiff images from a memory mapping of the file instead of with Bio-Formats, false to always use Bio-Formats (default: false)");
+		mappedReaderOpt.setRequired(false);
+		options.addOption(mappedReaderOpt);
+
 		CommandLineParser parser = new DefaultParser();
 		HelpFormatter formatter = new HelpFormatter();
 		CommandLine cmd;
@@ -80,13 +180,180 @@ public class ThresholdingMain {
 		String threshValStr = cmd.getOptionValue("thresholdvalue");
 
 		double threshold = 0.0;
-		int nbCpus = 1;
+		int nbCpus = Runtime.getRuntime().availableProcessors();
+		if (cmd.hasOption("nbcpus")) {
+			nbCpus = parseIntOption(cmd, "nbcpus", null);
+			if (nbCpus < 1) {
+				LOG.log(Level.SEVERE, "ERROR: the number of cpus must be at least 1");
+				System.exit(-1);
+			}
+		}
+		LOG.log(Level.INFO, "Number of cpus : " + nbCpus);
+
+		boolean streaming = Boolean.parseBoolean(cmd.getOptionValue("streaming", "false"));
+		LOG.log(Level.INFO, "Streaming : " + streaming);
+
+		OutputFormat outputFormat = OutputFormat.fromString(cmd.getOptionValue("outputformat", "same"));
+		if (outputFormat == null) {
+			LOG.log(Level.SEVERE, "ERROR: the output format is invalid");
+			System.exit(-1);
+		}
+		LOG.log(Level.INFO, "Output format : " + outputFormat);
+
+		int tileSize = parseIntOption(cmd, "tilesize",
+				String.valueOf(ThresholdingProcessor.TILE_SIZE));
+		if (tileSize < 16 || tileSize % 16 != 0) {
+			LOG.log(Level.SEVERE, "ERROR: the tile size must be a positive multiple of 16");
+			System.exit(-1);
+		}
+		LOG.log(Level.INFO, "Tile size : " + tileSize);
+
+		TileCompression compression = TileCompression.fromString(cmd.getOptionValue("compression", "lzw"));
+		if (compression == null) {
+			LOG.log(Level.SEVERE, "ERROR: the compression is invalid");
+			System.exit(-1);
+		}
+		int compressionLevel = parseIntOption(cmd, "compressionlevel",
+				String.valueOf(TileCompression.DEFAULT_LEVEL));
+		if (compressionLevel < 1 || compressionLevel > 9) {
+			LOG.log(Level.SEVERE, "ERROR: the compression level must be between 1 and 9");
+			System.exit(-1);
+		}
+		LOG.log(Level.INFO, "Compression : " + compression
+				+ (compression == TileCompression.ZLIB ? " (level " + compressionLevel + ")" : ""));
+
+		boolean globalThreshold = Boolean.parseBoolean(cmd.getOptionValue("globalthreshold", "false"));
+		LOG.log(Level.INFO, "Global threshold : " + globalThreshold);
+
+		File histogramCacheFolder = null;
+		if (cmd.hasOption("histogramcache")) {
+			histogramCacheFolder = new File(cmd.getOptionValue("histogramcache"));
+			LOG.log(Level.INFO, "Histogram cache : " + histogramCacheFolder);
+		}
+
+		double histogramSampling = parseDoubleOption(cmd, "histogramsampling", "1");
+		if (!(histogramSampling > 0 && histogramSampling <= 1)) {
+			LOG.log(Level.SEVERE, "ERROR: the histogram sampling must be in ]0, 1]");
+			System.exit(-1);
+		}
+		SamplingMode samplingMode = SamplingMode.fromString(cmd.getOptionValue("samplingmode", "stratified"));
+		if (samplingMode == null) {
+			LOG.log(Level.SEVERE, "ERROR: the sampling mode is invalid");
+			System.exit(-1);
+		}
+		if (histogramSampling < 1) {
+			LOG.log(Level.INFO, "Histogram sampling : " + histogramSampling + " (" + samplingMode + ")");
+		}
+
+		boolean resume = Boolean.parseBoolean(cmd.getOptionValue("resume", "true"));
+		LOG.log(Level.INFO, "Resume : " + resume);
+
+		int shardIndex = parseIntOption(cmd, "shardindex", "0");
+		int shardCount = parseIntOption(cmd, "shardcount", "1");
+		if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+			LOG.log(Level.SEVERE, "ERROR: the shard index must be between 0 and the shard count - 1");
+			System.exit(-1);
+		}
+		ShardingMode shardingMode = ShardingMode.fromString(cmd.getOptionValue("shardingmode", "hash"));
+		if (shardingMode == null) {
+			LOG.log(Level.SEVERE, "ERROR: the sharding mode is invalid");
+			System.exit(-1);
+		}
+		if (shardCount > 1) {
+			LOG.log(Level.INFO, "Shard : " + shardIndex + " of " + shardCount + " (" + shardingMode + ")");
+		}
+
+		SplitStep splitStep = null;
+		TileRange tileRange = TileRange.ALL;
+		if (cmd.hasOption("splitstep")) {
+			splitStep = SplitStep.fromString(cmd.getOptionValue("splitstep"));
+			if (splitStep == null) {
+				LOG.log(Level.SEVERE, "ERROR: the split step is invalid");
+				System.exit(-1);
+			}
+			if (cmd.hasOption("tilerange")) {
+				tileRange = TileRange.fromString(cmd.getOptionValue("tilerange"));
+				if (tileRange == null) {
+					LOG.log(Level.SEVERE, "ERROR: the tile range is invalid");
+					System.exit(-1);
+				}
+			}
+			if (cmd.hasOption("sweep")) {
+				LOG.log(Level.SEVERE, "ERROR: the sweep mode can not be split");
+				System.exit(-1);
+			}
+			LOG.log(Level.INFO, "Split step : " + splitStep + " (tiles " + tileRange + ")");
+		}
+
+		long memoryBudget = 0;
+		if (cmd.hasOption("memorybudget")) {
+			memoryBudget = parseLongOption(cmd, "memorybudget", null);
+			if (memoryBudget < 1) {
+				LOG.log(Level.SEVERE, "ERROR: the memory budget must be at least 1 MB");
+				System.exit(-1);
+			}
+			LOG.log(Level.INFO, "Memory budget : " + memoryBudget + " MB");
+			memoryBudget <<= 20;
+		}
+
+		int prefetchTiles = parseIntOption(cmd, "prefetchtiles", "4");
+		if (prefetchTiles < 0) {
+			LOG.log(Level.SEVERE, "ERROR: the number of prefetched tiles must be at least 0");
+			System.exit(-1);
+		}
+		// 0 for the default of the processor
+		int pendingTiles = 0;
+		if (cmd.hasOption("pendingtiles")) {
+			pendingTiles = parseIntOption(cmd, "pendingtiles", null);
+			if (pendingTiles < 1) {
+				LOG.log(Level.SEVERE, "ERROR: the number of pending tiles must be at least 1");
+				System.exit(-1);
+			}
+		}
+		LOG.log(Level.INFO, "Prefetched tiles : " + prefetchTiles);
+
+		ThreadMode threadMode = ThreadMode.fromString(cmd.getOptionValue("threadmode", "platform"));
+		if (threadMode == null) {
+			LOG.log(Level.SEVERE, "ERROR: the thread mode is invalid");
+			System.exit(-1);
+		}
+		// 0 for the default of the processor
+		int concurrentImages = 0;
+		if (cmd.hasOption("concurrentimages")) {
+			concurrentImages = parseIntOption(cmd, "concurrentimages", null);
+			if (concurrentImages < 1) {
+				LOG.log(Level.SEVERE, "ERROR: the number of concurrent images must be at least 1");
+				System.exit(-1);
+			}
+		}
+		LOG.log(Level.INFO, "Thread mode : " + threadMode);
+		boolean mappedReader = Boolean.parseBoolean(cmd.getOptionValue("mappedreader", "false"));
+		LOG.log(Level.INFO, "Mapped reader : " + mappedReader);
+
+		List<ThresholdingType> sweepMethods = null;
+		List<ThresholdingType> sweepMaskMethods = new ArrayList<>();
+		if (cmd.hasOption("sweep")) {
+			sweepMethods = ThresholdingTypeHandler.matchThresholdingTypes(cmd.getOptionValue("sweep"));
+			if (sweepMethods == null) {
+				LOG.log(Level.SEVERE, "ERROR: the sweep methods are invalid");
+				System.exit(-1);
+			}
+			LOG.log(Level.INFO, "Sweep methods : " + sweepMethods);
+			if (cmd.hasOption("sweepmasks")) {
+				sweepMaskMethods = ThresholdingTypeHandler.matchThresholdingTypes(cmd.getOptionValue("sweepmasks"));
+				if (sweepMaskMethods == null) {
+					LOG.log(Level.SEVERE, "ERROR: the sweep mask methods are invalid");
+					System.exit(-1);
+				}
+				LOG.log(Level.INFO, "Sweep masks : " + sweepMaskMethods);
+			}
+		}
 
 		File inputFolder = new File (inputFileDir);
 		File outputFolder = new File (outputFileDir);
 
 		ThresholdingType threshType = ThresholdingTypeHandler.matchThresholdingType(threshTypeStr);
-		if(threshType.equals(ThresholdingType.Invalid)){
+		if(threshType.equals(ThresholdingType.Invalid) && sweepMethods == null){
 			LOG.log(Level.SEVERE, "ERROR: the threshold method type is invalid");
 			System.exit(-1);
 		}
@@ -102,6 +369,29 @@ public class ThresholdingMain {
 		
 		try {
 			ThresholdingProcessor tp = new ThresholdingProcessor(inputFolder, outputFolder, threshType, threshold, nbCpus);
+			tp.streaming = streaming;
+			tp.outputFormat = outputFormat;
+			tp.tileSize = tileSize;
+			tp.compression = compression;
+			tp.compressionLevel = compressionLevel;
+			tp.globalThreshold = globalThreshold;
+			tp.histogramCacheFolder = histogramCacheFolder;
+			tp.sweepMethods = sweepMethods;
+			tp.sweepMaskMethods = sweepMaskMethods;
+			tp.histogramSampling = histogramSampling;
+			tp.samplingMode = samplingMode;
+			tp.resume = resume;
+			tp.shardIndex = shardIndex;
+			tp.shardCount = shardCount;
+			tp.shardingMode = shardingMode;
+			tp.splitStep = splitStep;
+			tp.tileRange = tileRange;
+			tp.memoryBudget = memoryBudget;
+			tp.prefetchTiles = prefetchTiles;
+			tp.pendingTiles = pendingTiles;
+			tp.threadMode = threadMode;
+			tp.concurrentImages = concurrentImages;
+			tp.mappedReader = mappedReader;
 			tp.runTresh();
 		} catch(Exception ex) {
 			LOG.log(Level.SEVERE, ex.getMessage());
@@ -110,5 +400,54 @@ public class ThresholdingMain {
 
 		LOG.info("Done.");  
 	}
+
+	/**
+	 * Parses the value of an integer option, exiting if it is not an integer.
+	 *
+	 * @param defaultValue the value of the option when it is not given
+	 */
+	private static int parseIntOption(CommandLine cmd, String name, String defaultValue) {
+		String value = cmd.getOptionValue(name, defaultValue);
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			LOG.log(Level.SEVERE, "ERROR: the " + name + " option must be an integer, not " + value);
+			System.exit(-1);
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses the value of a long integer option, exiting if it is not an
+	 * integer.
+	 *
+	 * @param defaultValue the value of the option when it is not given
+	 */
+	private static long parseLongOption(CommandLine cmd, String name, String defaultValue) {
+		String value = cmd.getOptionValue(name, defaultValue);
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException ex) {
+			LOG.log(Level.SEVERE, "ERROR: the " + name + " option must be an integer, not " + value);
+			System.exit(-1);
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses the value of a decimal option, exiting if it is not a number.
+	 *
+	 * @param defaultValue the value of the option when it is not given
+	 */
+	private static double parseDoubleOption(CommandLine cmd, String name, String defaultValue) {
+		String value = cmd.getOptionValue(name, defaultValue);
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException ex) {
+			LOG.log(Level.SEVERE, "ERROR: the " + name + " option must be a number, not " + value);
+			System.exit(-1);
+			return 0;
+		}
+	}
 	
 }
@@ -50,9 +50,47 @@ import ij.IJ;
 public class ThresholdingMethods  {
 
 	public String [] methods={"IJDefault", "Huang", "Huang2", "Intermodes", "IsoData",  "Li", "MaxEntropy","Mean", "MinErrorI", "Minimum", "Moments", "Otsu", "Percentile", "RenyiEntropy", "Shanbhag" , "Triangle", "Yen"};
+
+	/**
+	 * Computes the threshold of a histogram with one of the automatic methods.
+	 * The statistics of the histogram are computed once by the caller and
+	 * can be shared by several methods.
+	 * 
+	 * @param type the thresholding method, neither Manual nor Invalid
+	 * @param stats the statistics of the histogram
+	 * @return the threshold, as an index in the histogram
+	 */
+	public static int compute(ThresholdingType type, HistogramStatistics stats) {
+		switch (type) {
+			case IJDefault: return IJDefault(stats);
+			case Huang: return Huang(stats);
+			case Huang2: return Huang2(stats);
+			case Intermodes: return Intermodes(stats);
+			case IsoData: return IsoData(stats);
+			case Li: return Li(stats);
+			case MaxEntropy: return MaxEntropy(stats);
+			case Mean: return Mean(stats);
+			case MinErrorI: return MinErrorI(stats);
+			case Minimum: return Minimum(stats);
+			case Moments: return Moments(stats);
+			case Otsu: return Otsu(stats);
+			case Percentile: return Percentile(stats);
+			case RenyiEntropy: return RenyiEntropy(stats);
+			case Shanbhag: return Shanbhag(stats);
+			case Triangle: return Triangle(stats);
+			case Yen: return Yen(stats);
+			default:
+				throw new IllegalArgumentException("No automatic threshold method for " + type);
+		}
+	}
 	
 	public static int IJDefault(int [] data ) {
+		return IJDefault(new HistogramStatistics(data));
+	}
+
+	public static int IJDefault(HistogramStatistics stats) {
 		// Original IJ implementation for compatibility.
+		int [] data = stats.getHistogram();
 		int level;
 		int maxValue = data.length - 1;
 		double result, sum1, sum2, sum3, sum4;
@@ -71,15 +109,11 @@ public class ThresholdingMethods  {
 		int movingIndex = min;
 		int inc = Math.max(max/40, 1);
 		do {
-			sum1=sum2=sum3=sum4=0.0;
-			for (int i=min; i<=movingIndex; i++) {
-				sum1 += i*data[i];
-				sum2 += data[i];
-			}
-			for (int i=(movingIndex+1); i<=max; i++) {
-				sum3 += i*data[i];
-				sum4 += data[i];
-			}			
+			// The bins below min and above max are empty
+			sum1 = stats.getCumulativeSum(movingIndex);
+			sum2 = stats.getCumulativeCount(movingIndex);
+			sum3 = stats.getCumulativeSum(max) - stats.getCumulativeSum(movingIndex);
+			sum4 = stats.getCumulativeCount(max) - stats.getCumulativeCount(movingIndex);
 			result = (sum1/sum2 + sum3/sum4)/2.0;
 			movingIndex++;
 		} while ((movingIndex+1)<=result && movingIndex<max-1);
@@ -90,65 +124,57 @@ public class ThresholdingMethods  {
 	}
 
 	public static int Huang(int [] data ) {
+		return Huang(new HistogramStatistics(data));
+	}
+
+	public static int Huang(HistogramStatistics stats) {
  		// Implements Huang's fuzzy thresholding method 
  		// Uses Shannon's entropy function (one can also use Yager's entropy function) 
  		// Huang L.-K. and Wang M.-J.J. (1995) "Image Thresholding by Minimizing  
  		// the Measures of Fuzziness" Pattern Recognition, 28(1): 41-51
 		// M. Emre Celebi  06.15.2007
 		// Ported to ImageJ plugin by G. Landini from E Celebi's fourier_0.8 routines
+		int [] data = stats.getHistogram();
+		int [] bins = stats.getNonZeroBins();
 		int threshold=-1;
-		int ih, it;
+		int ih, it, j;
 		int first_bin;
 		int last_bin;
-		int sum_pix;
-		int num_pix;
+		long sum_pix;
+		long num_pix;
 		double term;
 		double ent;  // entropy 
 		double min_ent; // min entropy 
 		double mu_x;
 
-		/* Determine the first non-zero bin */
-		first_bin=0;
-		for (ih = 0; ih < data.length; ih++ ) {
-			if ( data[ih] != 0 ) {
-				first_bin = ih;
-				break;
-			}
-		}
-
-		/* Determine the last non-zero bin */
-		last_bin=data.length - 1;
-		for (ih = data.length - 1; ih >= first_bin; ih-- ) {
-			if ( data[ih] != 0 ) {
-				last_bin = ih;
-				break;
- 			}
- 		}
+		/* Determine the first and last non-zero bins */
+		first_bin = bins.length > 0 ? stats.getFirstBin() : 0;
+		last_bin = bins.length > 0 ? stats.getLastBin() : data.length - 1;
 		term = 1.0 / ( double ) ( last_bin - first_bin );
 		double [] mu_0 = new double[data.length];
-		sum_pix = num_pix = 0;
 		for ( ih = first_bin; ih < data.length; ih++ ){
-			sum_pix += ih * data[ih];
-			num_pix += data[ih];
+			sum_pix = stats.getCumulativeSum(ih);
+			num_pix = stats.getCumulativeCount(ih);
 			/* NUM_PIX cannot be zero ! */
 			mu_0[ih] = sum_pix / ( double ) num_pix;
 		}
  
 		double [] mu_1 = new double[data.length];
-		sum_pix = num_pix = 0;
 		for ( ih = last_bin; ih > 0; ih-- ){
-			sum_pix += ih * data[ih];
-			num_pix += data[ih];
+			sum_pix = stats.getCumulativeSum(last_bin) - stats.getCumulativeSum(ih - 1);
+			num_pix = stats.getCumulativeCount(last_bin) - stats.getCumulativeCount(ih - 1);
 			/* NUM_PIX cannot be zero ! */
 			mu_1[ih - 1] = sum_pix / ( double ) num_pix;
 		}
 
 		/* Determine the threshold that minimizes the fuzzy entropy */
+		// Empty bins do not change the entropy, only the non-zero ones are visited
 		threshold = -1;
 		min_ent = Double.MAX_VALUE;
 		for ( it = 0; it < data.length; it++ ){
 			ent = 0.0;
-			for ( ih = 0; ih <= it; ih++ ) {
+			for ( j = 0; j < bins.length && bins[j] <= it; j++ ) {
+				ih = bins[j];
 				/* Equation (4) in Ref. 1 */
 				mu_x = 1.0 / ( 1.0 + term * Math.abs ( ih - mu_0[it] ) );
 				if ( !((mu_x  < 1e-06 ) || ( mu_x > 0.999999))) {
@@ -157,7 +183,8 @@ public class ThresholdingMethods  {
 				}
 			}
 
-			for ( ih = it + 1; ih < data.length; ih++ ) {
+			for ( ; j < bins.length; j++ ) {
+				ih = bins[j];
 				/* Equation (4) in Ref. 1 */
 				mu_x = 1.0 / ( 1.0 + term * Math.abs ( ih - mu_1[it] ) );
 				if ( !((mu_x  < 1e-06 ) || ( mu_x > 0.999999))) {
@@ -176,12 +203,18 @@ public class ThresholdingMethods  {
 	
 	
 	public static int Huang2(int [] data ) {
+		return Huang2(new HistogramStatistics(data));
+	}
+
+	public static int Huang2(HistogramStatistics stats) {
 		// Implements Huang's fuzzy thresholding method 
 		// Uses Shannon's entropy function (one can also use Yager's entropy function) 
 		// Huang L.-K. and Wang M.-J.J. (1995) "Image Thresholding by Minimizing  
 		// the Measures of Fuzziness" Pattern Recognition, 28(1): 41-51
 		// Reimplemented (to handle 16-bit efficiently) by Johannes Schindelin Jan 31, 2011
 
+		int [] data = stats.getHistogram();
+
 		// find first and last non-empty bin
 		int first, last;
 		for (first = 0; first < data.length && data[first] == 0; first++)
@@ -191,13 +224,8 @@ public class ThresholdingMethods  {
 		if (first == last)
 			return 0;
 
-		// calculate the cumulative density and the weighted cumulative density
-		double[] S = new double[last + 1], W = new double[last + 1];
-		S[0] = data[0];
-		for (int i = Math.max(1, first); i <= last; i++) {
-			S[i] = S[i - 1] + data[i];
-			W[i] = W[i - 1] + i * data[i];
-		}
+		// the cumulative density and the weighted cumulative density
+		// are given by stats.getCumulativeCount() and stats.getCumulativeSum()
 
 		// precalculate the summands of the entropy given the absolute difference x - mu (integral)
 		double C = last - first;
@@ -212,10 +240,12 @@ public class ThresholdingMethods  {
 		double bestEntropy = Double.MAX_VALUE;
 		for (int threshold = first; threshold <= last; threshold++) {
 			double entropy = 0;
-			int mu = (int)Math.round(W[threshold] / S[threshold]);
+			double S = stats.getCumulativeCount(threshold), W = stats.getCumulativeSum(threshold);
+			double Slast = stats.getCumulativeCount(last), Wlast = stats.getCumulativeSum(last);
+			int mu = (int)Math.round(W / S);
 			for (int i = first; i <= threshold; i++)
 				entropy += Smu[Math.abs(i - mu)] * data[i];
-			mu = (int)Math.round((W[last] - W[threshold]) / (S[last] - S[threshold]));
+			mu = (int)Math.round((Wlast - W) / (Slast - S));
 			for (int i = threshold + 1; i <= last; i++)
 				entropy += Smu[Math.abs(i - mu)] * data[i];
 
@@ -246,6 +276,11 @@ public class ThresholdingMethods  {
 	}
 
 	public static int Intermodes(int [] data ) {
+		return Intermodes(new HistogramStatistics(data));
+	}
+
+	public static int Intermodes(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		// J. M. S. Prewitt and M. L. Mendelsohn, "The analysis of cell images," in
 		// Annals of the New York Academy of Sciences, vol. 128, pp. 1035-1053, 1966.
 		// ported to ImageJ plugin by G.Landini from Antti Niemisto's Matlab code (GPL)
@@ -296,6 +331,11 @@ public class ThresholdingMethods  {
 	}
 
 	public static int IsoData(int [] data ) {
+		return IsoData(new HistogramStatistics(data));
+	}
+
+	public static int IsoData(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		// Also called intermeans
 		// Iterative procedure based on the isodata algorithm [T.W. Ridler, S. Calvard, Picture 
 		// thresholding using an iterative selection method, IEEE Trans. System, Man and 
@@ -322,7 +362,8 @@ public class ThresholdingMethods  {
 		// no => increment G and repeat
 		//
 		// There is a discrepancy with IJ because they are slightly different methods
-		int i, l, toth, totl, h, g=0;
+		int i, g=0;
+		long l, toth, totl, h;
 		for (i = 1; i < data.length; i++){
 			if (data[i] > 0){
 				g = i + 1;
@@ -330,18 +371,10 @@ public class ThresholdingMethods  {
 			}
 		}
 		while (true){
-			l = 0;
-			totl = 0;
-			for (i = 0; i < g; i++) {
-				 totl = totl + data[i];
-				 l = l + (data[i] * i);
-			}
-			h = 0;
-			toth = 0;
-			for (i = g + 1; i < data.length; i++){
-				toth += data[i];
-				h += (data[i]*i);
-			}
+			totl = stats.getCumulativeCount(g - 1);
+			l = stats.getCumulativeSum(g - 1);
+			toth = stats.getTotal() - stats.getCumulativeCount(g);
+			h = stats.getCumulativeSum(data.length - 1) - stats.getCumulativeSum(g);
 			if (totl > 0 && toth > 0){
 				l /= totl;
 				h /= toth;
@@ -358,6 +391,11 @@ public class ThresholdingMethods  {
 	}
 
 	public static int Li(int [] data ) {
+		return Li(new HistogramStatistics(data));
+	}
+
+	public static int Li(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		// Implements Li's Minimum Cross Entropy thresholding method
 		// This implementation is based on the iterative version (Ref. 2) of the algorithm.
 		// 1) Li C.H. and Lee C.K. (1993) "Minimum Cross Entropy Thresholding" 
@@ -370,12 +408,11 @@ public class ThresholdingMethods  {
 		//    http://citeseer.ist.psu.edu/sezgin04survey.html
 		// Ported to ImageJ plugin by G.Landini from E Celebi's fourier_0.8 routines
 		int threshold;
-		int ih;
-		int num_pixels;
-		int sum_back; /* sum of the background pixels at a given threshold */
-		int sum_obj;  /* sum of the object pixels at a given threshold */
-		int num_back; /* number of background pixels at a given threshold */
-		int num_obj;  /* number of object pixels at a given threshold */
+		long num_pixels;
+		long sum_back; /* sum of the background pixels at a given threshold */
+		long sum_obj;  /* sum of the object pixels at a given threshold */
+		long num_back; /* number of background pixels at a given threshold */
+		long num_obj;  /* number of object pixels at a given threshold */
 		double old_thresh;
 		double new_thresh;
 		double mean_back; /* mean of the background pixels at a given threshold */
@@ -385,14 +422,10 @@ public class ThresholdingMethods  {
 		double temp;
 
 		tolerance=0.5;
-		num_pixels = 0;
-		for (ih = 0; ih < data.length; ih++ )
-			num_pixels += data[ih];
+		num_pixels = stats.getTotal();
 
 		/* Calculate the mean gray-level */
-		mean = 0.0;
-		for ( ih = 0; ih < data.length; ih++ ) //0 + 1?
-			mean += ih * data[ih];
+		mean = stats.getCumulativeSum(data.length - 1);
 		mean /= num_pixels;
 		/* Initial estimate */
 		new_thresh = mean;
@@ -402,20 +435,12 @@ public class ThresholdingMethods  {
 			threshold = (int) (old_thresh + 0.5);	/* range */
 			/* Calculate the means of background and object pixels */
 			/* Background */
-			sum_back = 0;
-			num_back = 0;
-			for ( ih = 0; ih <= threshold; ih++ ) {
-				sum_back += ih * data[ih];
-				num_back += data[ih];
-			}
+			sum_back = stats.getCumulativeSum(threshold);
+			num_back = stats.getCumulativeCount(threshold);
 			mean_back = ( num_back == 0 ? 0.0 : ( sum_back / ( double ) num_back ) );
 			/* Object */
-			sum_obj = 0;
-			num_obj = 0;
-			for ( ih = threshold + 1; ih < data.length; ih++ ) {
-				sum_obj += ih * data[ih];
-				num_obj += data[ih];
-			}
+			sum_obj = stats.getCumulativeSum(data.length - 1) - sum_back;
+			num_obj = num_pixels - num_back;
 			mean_obj = ( num_obj == 0 ? 0.0 : ( sum_obj / ( double ) num_obj ) );
 
 			/* Calculate the new threshold: Equation (7) in Ref. 2 */
@@ -440,6 +465,11 @@ public class ThresholdingMethods  {
 	}
 
 	public static int MaxEntropy(int [] data ) {
+		return MaxEntropy(new HistogramStatistics(data));
+	}
+
+	public static int MaxEntropy(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		// Implements Kapur-Sahoo-Wong (Maximum Entropy) thresholding method
 		// Kapur J.N., Sahoo P.K., and Wong A.K.C. (1985) "A New Method for
 		// Gray-Level Picture Thresholding Using the Entropy of the Histogram"
@@ -448,30 +478,20 @@ public class ThresholdingMethods  {
 		// 06.15.2007
 		// Ported to ImageJ plugin by G.Landini from E Celebi's fourier_0.8 routines
 		int threshold=-1;
-		int ih, it;
+		int ih, it, j;
+		int [] bins = stats.getNonZeroBins();
 		int first_bin;
 		int last_bin;
 		double tot_ent;  /* total entropy */
 		double max_ent;  /* max entropy */
 		double ent_back; /* entropy of the background pixels at a given threshold */
 		double ent_obj;  /* entropy of the object pixels at a given threshold */
-		double [] norm_histo = new double[data.length]; /* normalized histogram */
-		double [] P1 = new double[data.length]; /* cumulative normalized histogram */
+		double [] norm_histo = stats.getNormalized(); /* normalized histogram */
+		double [] P1 = stats.getCumulativeNormalized(); /* cumulative normalized histogram */
 		double [] P2 = new double[data.length];
 
-		int total =0;
-		for (ih = 0; ih < data.length; ih++ )
-			total+=data[ih];
-
 		for (ih = 0; ih < data.length; ih++ )
-			norm_histo[ih] = (double)data[ih]/total;
-
-		P1[0]=norm_histo[0];
-		P2[0]=1.0-P1[0];
-		for (ih = 1; ih < data.length; ih++ ){
-			P1[ih]= P1[ih-1] + norm_histo[ih];
 			P2[ih]= 1.0 - P1[ih];
-		}
 
 		/* Determine the first non-zero bin */
 		first_bin=0;
@@ -498,18 +518,16 @@ public class ThresholdingMethods  {
 		for ( it = first_bin; it <= last_bin; it++ ) {
 			/* Entropy of the background pixels */
 			ent_back = 0.0;
-			for ( ih = 0; ih <= it; ih++ )  {
-				if ( data[ih] !=0 ) {
-					ent_back -= ( norm_histo[ih] / P1[it] ) * Math.log ( norm_histo[ih] / P1[it] );
-				}
+			for ( j = 0; j < bins.length && bins[j] <= it; j++ )  {
+				ih = bins[j];
+				ent_back -= ( norm_histo[ih] / P1[it] ) * Math.log ( norm_histo[ih] / P1[it] );
 			}
 
 			/* Entropy of the object pixels */
 			ent_obj = 0.0;
-			for ( ih = it + 1; ih < data.length; ih++ ){
-				if (data[ih]!=0){
+			for ( ; j < bins.length; j++ ){
+				ih = bins[j];
 				ent_obj -= ( norm_histo[ih] / P2[it] ) * Math.log ( norm_histo[ih] / P2[it] );
-				}
 			}
 
 			/* Total entropy */
@@ -525,21 +543,28 @@ public class ThresholdingMethods  {
 	}
 
 	public static int Mean(int [] data ) {
+		return Mean(new HistogramStatistics(data));
+	}
+
+	public static int Mean(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		// C. A. Glasbey, "An analysis of histogram-based thresholding algorithms,"
 		// CVGIP: Graphical Models and Image Processing, vol. 55, pp. 532-537, 1993.
 		//
 		// The threshold is the mean of the greyscale data
 		int threshold = -1;
-		long tot=0, sum=0;
-		for (int i=0; i<data.length; i++){
-			tot+= data[i];
-			sum+=( (long)i* (long)data[i]);
-		}
+		long tot = stats.getTotal();
+		long sum = stats.getCumulativeSum(data.length - 1);
 		threshold =(int) Math.floor(sum/tot);
 		return threshold;
 	}
 
 	public static int MinErrorI(int [] data ) {
+		return MinErrorI(new HistogramStatistics(data));
+	}
+
+	public static int MinErrorI(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		  // Kittler and J. Illingworth, "Minimum error thresholding," Pattern Recognition, vol. 19, pp. 41-47, 1986.
 		 // C. A. Glasbey, "An analysis of histogram-based thresholding algorithms," CVGIP: Graphical Models and Image Processing, vol. 55, pp. 532-537, 1993.
 		// Ported to ImageJ plugin by G.Landini from Antti Niemisto's Matlab code (GPL)
@@ -547,18 +572,19 @@ public class ThresholdingMethods  {
 		// See http://www.cs.tut.fi/~ant/histthresh/ for an excellent slide presentation
 		// and the original Matlab code.
 
-		int threshold =  Mean(data); //Initial estimate for the threshold is found with the MEAN algorithm.
+		int last = data.length - 1;
+		int threshold =  Mean(stats); //Initial estimate for the threshold is found with the MEAN algorithm.
 		int Tprev =-2;
 		double mu, nu, p, q, sigma2, tau2, w0, w1, w2, sqterm, temp;
 		//int counter=1;
 		while (threshold!=Tprev){
 			//Calculate some statistics.
-			mu = B(data, threshold)/A(data, threshold);
-			nu = (B(data, data.length - 1)-B(data, threshold))/(A(data, data.length - 1)-A(data, threshold));
-			p = A(data, threshold)/A(data, data.length - 1);
-			q = (A(data, data.length - 1)-A(data, threshold)) / A(data, data.length - 1);
-			sigma2 = C(data, threshold)/A(data, threshold)-(mu*mu);
-			tau2 = (C(data, data.length - 1)-C(data, threshold)) / (A(data, data.length - 1)-A(data, threshold)) - (nu*nu);
+			mu = B(stats, threshold)/A(stats, threshold);
+			nu = (B(stats, last)-B(stats, threshold))/(A(stats, last)-A(stats, threshold));
+			p = A(stats, threshold)/A(stats, last);
+			q = (A(stats, last)-A(stats, threshold)) / A(stats, last);
+			sigma2 = C(stats, threshold)/A(stats, threshold)-(mu*mu);
+			tau2 = (C(stats, last)-C(stats, threshold)) / (A(stats, last)-A(stats, threshold)) - (nu*nu);
 
 			//The terms of the quadratic equation to be solved.
 			w0 = 1.0/sigma2-1.0/tau2;
@@ -587,28 +613,24 @@ public class ThresholdingMethods  {
 		return threshold;
 	}
 
-	protected static double A(int [] y, int j) {
-		double x = 0;
-		for (int i=0;i<=j;i++)
-			x+=y[i];
-		return x;
+	protected static double A(HistogramStatistics stats, int j) {
+		return stats.getCumulativeCount(j);
 	}
 
-	protected static double B(int [] y, int j) {
-		double x = 0;
-		for (int i=0;i<=j;i++)
-			x+=i*y[i];
-		return x;
+	protected static double B(HistogramStatistics stats, int j) {
+		return stats.getCumulativeSum(j);
 	}
 
-	protected static double C(int [] y, int j) {
-		double x = 0;
-		for (int i=0;i<=j;i++)
-			x+=i*i*y[i];
-		return x;
+	protected static double C(HistogramStatistics stats, int j) {
+		return stats.getCumulativeSquares(j);
 	}
 
 	public static int Minimum(int [] data ) {
+		return Minimum(new HistogramStatistics(data));
+	}
+
+	public static int Minimum(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		if (data.length < 2)
 			return 0;
 		// J. M. S. Prewitt and M. L. Mendelsohn, "The analysis of cell images," in
@@ -660,6 +682,11 @@ public class ThresholdingMethods  {
 	}
 
 	public static int Moments(int [] data ) {
+		return Moments(new HistogramStatistics(data));
+	}
+
+	public static int Moments(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		//  W. Tsai, "Moment-preserving thresholding: a new approach," Computer Vision,
 		// Graphics, and Image Processing, vol. 29, pp. 377-393, 1985.
 		// Ported to ImageJ plugin by G.Landini from the the open source project FOURIER 0.8
@@ -674,8 +701,7 @@ public class ThresholdingMethods  {
 
 		double [] histo = new  double [data.length];
 
-		for (int i=0; i<data.length; i++)
-			total+=data[i];
+		total = stats.getTotal();
 
 		for (int i=0; i<data.length; i++)
 			histo[i]=(double)(data[i]/total); //normalised histogram
@@ -712,13 +738,18 @@ public class ThresholdingMethods  {
 	}
 
 	public static int Otsu(int [] data ) {
+		return Otsu(new HistogramStatistics(data));
+	}
+
+	public static int Otsu(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		// Otsu's threshold algorithm
 		// M. Emre Celebi 6.15.2007, Fourier Library https://sourceforge.net/projects/fourier-ipal/
 		// ported to ImageJ plugin by G.Landini
 		
 		int ih;
 		int threshold=-1;
-		int num_pixels=0;
+		long num_pixels;
 		double total_mean;	/* mean gray-level for the whole image */
 		double bcv, term;	/* between-class variance, scaling term */
 		double max_bcv;		/* max BCV */
@@ -727,8 +758,7 @@ public class ThresholdingMethods  {
 		double [] histo = new  double [data.length];/* normalized histogram */
 
 		/* Calculate total numbre of pixels */
-		for ( ih = 0; ih < data.length; ih++ )
-			num_pixels=num_pixels+data[ih];
+		num_pixels = stats.getTotal();
 	
 		term = 1.0 / ( double ) num_pixels;
 
@@ -768,6 +798,11 @@ public class ThresholdingMethods  {
 	}
 
 	public static int Percentile(int [] data ) {
+		return Percentile(new HistogramStatistics(data));
+	}
+
+	public static int Percentile(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		// W. Doyle, "Operation useful for similarity-invariant pattern recognition,"
 		// Journal of the Association for Computing Machinery, vol. 9,pp. 259-267, 1962.
 		// ported to ImageJ plugin by G.Landini from Antti Niemisto's Matlab code (GPL)
@@ -783,10 +818,10 @@ public class ThresholdingMethods  {
 		for (int i=0; i<data.length; i++)
 			avec[i]=0.0;
 
-		double total =partialSum(data, data.length - 1);
+		double total =stats.getTotal();
 		double temp = 1.0;
 		for (int i=0; i<data.length; i++){
-			avec[i]=Math.abs((partialSum(data, i)/total)-ptile);
+			avec[i]=Math.abs((stats.getCumulativeCount(i)/total)-ptile);
 			//IJ.log("Ptile["+i+"]:"+ avec[i]);
 			if (avec[i]<temp) {
 				temp = avec[i];
@@ -797,15 +832,12 @@ public class ThresholdingMethods  {
 	}
 
 
-	protected static double partialSum(int [] y, int j) {
-		double x = 0;
-		for (int i=0;i<=j;i++)
-			x+=y[i];
-		return x;
+	public static int RenyiEntropy(int [] data ) {
+		return RenyiEntropy(new HistogramStatistics(data));
 	}
 
-
-	public static int RenyiEntropy(int [] data ) {
+	public static int RenyiEntropy(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		// Kapur J.N., Sahoo P.K., and Wong A.K.C. (1985) "A New Method for
 		// Gray-Level Picture Thresholding Using the Entropy of the Histogram"
 		// Graphical Models and Image Processing, 29(3): 273-285
@@ -816,7 +848,8 @@ public class ThresholdingMethods  {
 		int threshold; 
 		int opt_threshold;
 
-		int ih, it;
+		int ih, it, j;
+		int [] bins = stats.getNonZeroBins();
 		int first_bin;
 		int last_bin;
 		int tmp_var;
@@ -829,23 +862,12 @@ public class ThresholdingMethods  {
 		double ent_back; /* entropy of the background pixels at a given threshold */
 		double ent_obj;  /* entropy of the object pixels at a given threshold */
 		double omega;
-		double [] norm_histo = new double[data.length]; /* normalized histogram */
-		double [] P1 = new double[data.length]; /* cumulative normalized histogram */
+		double [] norm_histo = stats.getNormalized(); /* normalized histogram */
+		double [] P1 = stats.getCumulativeNormalized(); /* cumulative normalized histogram */
 		double [] P2 = new double[data.length];
 
-		int total =0;
-		for (ih = 0; ih < data.length; ih++ )
-			total+=data[ih];
-
 		for (ih = 0; ih < data.length; ih++ )
-			norm_histo[ih] = (double)data[ih]/total;
-
-		P1[0]=norm_histo[0];
-		P2[0]=1.0-P1[0];
-		for (ih = 1; ih < data.length; ih++ ){
-			P1[ih]= P1[ih-1] + norm_histo[ih];
 			P2[ih]= 1.0 - P1[ih];
-		}
 
 		/* Determine the first non-zero bin */
 		first_bin=0;
@@ -876,18 +898,16 @@ public class ThresholdingMethods  {
 		for ( it = first_bin; it <= last_bin; it++ ) {
 			/* Entropy of the background pixels */
 			ent_back = 0.0;
-			for ( ih = 0; ih <= it; ih++ )  {
-				if ( data[ih] !=0 ) {
-					ent_back -= ( norm_histo[ih] / P1[it] ) * Math.log ( norm_histo[ih] / P1[it] );
-				}
+			for ( j = 0; j < bins.length && bins[j] <= it; j++ )  {
+				ih = bins[j];
+				ent_back -= ( norm_histo[ih] / P1[it] ) * Math.log ( norm_histo[ih] / P1[it] );
 			}
 
 			/* Entropy of the object pixels */
 			ent_obj = 0.0;
-			for ( ih = it + 1; ih < data.length; ih++ ){
-				if (data[ih]!=0){
+			for ( ; j < bins.length; j++ ){
+				ih = bins[j];
 				ent_obj -= ( norm_histo[ih] / P2[it] ) * Math.log ( norm_histo[ih] / P2[it] );
-				}
 			}
 
 			/* Total entropy */
@@ -910,13 +930,13 @@ public class ThresholdingMethods  {
 		for ( it = first_bin; it <= last_bin; it++ ) {
 			/* Entropy of the background pixels */
 			ent_back = 0.0;
-			for ( ih = 0; ih <= it; ih++ )
-				ent_back += Math.sqrt ( norm_histo[ih] / P1[it] );
+			for ( j = 0; j < bins.length && bins[j] <= it; j++ )
+				ent_back += Math.sqrt ( norm_histo[bins[j]] / P1[it] );
 
 			/* Entropy of the object pixels */
 			ent_obj = 0.0;
-			for ( ih = it + 1; ih < data.length; ih++ )
-				ent_obj += Math.sqrt ( norm_histo[ih] / P2[it] );
+			for ( ; j < bins.length; j++ )
+				ent_obj += Math.sqrt ( norm_histo[bins[j]] / P2[it] );
 
 			/* Total entropy */
 			tot_ent = term * ( ( ent_back * ent_obj ) > 0.0 ? Math.log ( ent_back * ent_obj ) : 0.0);
@@ -936,13 +956,13 @@ public class ThresholdingMethods  {
 		for ( it = first_bin; it <= last_bin; it++ ) {
 			/* Entropy of the background pixels */
 			ent_back = 0.0;
-			for ( ih = 0; ih <= it; ih++ )
-				ent_back += ( norm_histo[ih] * norm_histo[ih] ) / ( P1[it] * P1[it] );
+			for ( j = 0; j < bins.length && bins[j] <= it; j++ )
+				ent_back += ( norm_histo[bins[j]] * norm_histo[bins[j]] ) / ( P1[it] * P1[it] );
 
 			/* Entropy of the object pixels */
 			ent_obj = 0.0;
-			for ( ih = it + 1; ih < data.length; ih++ )
-				ent_obj += ( norm_histo[ih] * norm_histo[ih] ) / ( P2[it] * P2[it] );
+			for ( ; j < bins.length; j++ )
+				ent_obj += ( norm_histo[bins[j]] * norm_histo[bins[j]] ) / ( P2[it] * P2[it] );
 
 			/* Total entropy */
 			tot_ent = term *( ( ent_back * ent_obj ) > 0.0 ? Math.log(ent_back * ent_obj ): 0.0 );
@@ -1007,11 +1027,17 @@ public class ThresholdingMethods  {
 
 
 	public static int Shanbhag(int [] data ) {
+		return Shanbhag(new HistogramStatistics(data));
+	}
+
+	public static int Shanbhag(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		// Shanhbag A.G. (1994) "Utilization of Information Measure as a Means of
 		//  Image Thresholding" Graphical Models and Image Processing, 56(5): 414-419
 		// Ported to ImageJ plugin by G.Landini from E Celebi's fourier_0.8 routines
 		int threshold;
-		int ih, it;
+		int ih, it, j;
+		int [] bins = stats.getNonZeroBins();
 		int first_bin;
 		int last_bin;
 		double term;
@@ -1019,23 +1045,12 @@ public class ThresholdingMethods  {
 		double min_ent;  /* max entropy */
 		double ent_back; /* entropy of the background pixels at a given threshold */
 		double ent_obj;  /* entropy of the object pixels at a given threshold */
-		double [] norm_histo = new double[data.length]; /* normalized histogram */
-		double [] P1 = new double[data.length]; /* cumulative normalized histogram */
+		double [] norm_histo = stats.getNormalized(); /* normalized histogram */
+		double [] P1 = stats.getCumulativeNormalized(); /* cumulative normalized histogram */
 		double [] P2 = new double[data.length];
 
-		int total =0;
-		for (ih = 0; ih < data.length; ih++ )
-			total+=data[ih];
-
 		for (ih = 0; ih < data.length; ih++ )
-			norm_histo[ih] = (double)data[ih]/total;
-
-		P1[0]=norm_histo[0];
-		P2[0]=1.0-P1[0];
-		for (ih = 1; ih < data.length; ih++ ){
-			P1[ih]= P1[ih-1] + norm_histo[ih];
 			P2[ih]= 1.0 - P1[ih];
-		}
 
 		/* Determine the first non-zero bin */
 		first_bin=0;
@@ -1064,15 +1079,18 @@ public class ThresholdingMethods  {
 			/* Entropy of the background pixels */
 			ent_back = 0.0;
 			term = 0.5 / P1[it];
-			for ( ih = 1; ih <= it; ih++ )  { //0+1?
-				ent_back -= norm_histo[ih] * Math.log ( 1.0 - term * P1[ih - 1] );
+			for ( j = 0; j < bins.length && bins[j] <= it; j++ )  { //0+1?
+				ih = bins[j];
+				if ( ih > 0 )
+					ent_back -= norm_histo[ih] * Math.log ( 1.0 - term * P1[ih - 1] );
 			}
 			ent_back *= term;
 
 			/* Entropy of the object pixels */
 			ent_obj = 0.0;
 			term = 0.5 / P2[it];
-			for ( ih = it + 1; ih < data.length; ih++ ){
+			for ( ; j < bins.length; j++ ){
+				ih = bins[j];
 				ent_obj -= norm_histo[ih] * Math.log ( 1.0 - term * P2[ih] );
 			}
 			ent_obj *= term;
@@ -1090,6 +1108,11 @@ public class ThresholdingMethods  {
 
 
 	public static int Triangle(int [] data ) {
+		return Triangle(new HistogramStatistics(data));
+	}
+
+	public static int Triangle(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		//  Zack, G. W., Rogers, W. E. and Latt, S. A., 1977,
 		//  Automatic Measurement of Sister Chromatid Exchange Frequency,
 		// Journal of Histochemistry and Cytochemistry 25 (7), pp. 741-753
@@ -1129,20 +1152,14 @@ public class ThresholdingMethods  {
 		//IJ.log(""+min+" "+max+" "+min2);
 		boolean inverted = false;
 		if ((max-min)<(min2-max)){
-			// reverse the histogram
+			// reverse the histogram, in a copy as it is shared by the statistics
 			//IJ.log("Reversing histogram.");
 			inverted = true;
-			int left  = 0;          // index of leftmost element
-			int right = data.length - 1; // index of rightmost element
-			while (left < right) {
-				// exchange the left and right elements
-				int temp = data[left]; 
-				data[left]  = data[right]; 
-				data[right] = temp;
-				// move the bounds toward the center
-				left++;
-				right--;
+			int [] reversed = new int[data.length];
+			for (int i = 0; i < data.length; i++) {
+				reversed[i] = data[data.length - 1 - i];
 			}
+			data = reversed;
 			min=data.length - 1-min2;
 			max=data.length - 1-max;
 		}
@@ -1175,16 +1192,6 @@ public class ThresholdingMethods  {
 		split--;
 
 		if (inverted) {
-			// The histogram might be used for something else, so let's reverse it back
-			int left  = 0; 
-			int right = data.length - 1;
-			while (left < right) {
-				int temp = data[left]; 
-				data[left]  = data[right]; 
-				data[right] = temp;
-				left++;
-				right--;
-			}
 			return (data.length - 1-split);
 		}
 		else
@@ -1193,6 +1200,11 @@ public class ThresholdingMethods  {
 
 
 	public static int Yen(int [] data ) {
+		return Yen(new HistogramStatistics(data));
+	}
+
+	public static int Yen(HistogramStatistics stats) {
+		int [] data = stats.getHistogram();
 		// Implements Yen  thresholding method
 		// 1) Yen J.C., Chang F.J., and Chang S. (1995) "A New Criterion 
 		//    for Automatic Multilevel Thresholding" IEEE Trans. on Image 
@@ -1209,22 +1221,11 @@ public class ThresholdingMethods  {
 		int ih, it;
 		double crit;
 		double max_crit;
-		double [] norm_histo = new double[data.length]; /* normalized histogram */
-		double [] P1 = new double[data.length]; /* cumulative normalized histogram */
+		double [] norm_histo = stats.getNormalized(); /* normalized histogram */
+		double [] P1 = stats.getCumulativeNormalized(); /* cumulative normalized histogram */
 		double [] P1_sq = new double[data.length];
 		double [] P2_sq = new double[data.length];
 
-		int total =0;
-		for (ih = 0; ih < data.length; ih++ )
-			total+=data[ih];
-
-		for (ih = 0; ih < data.length; ih++ )
-			norm_histo[ih] = (double)data[ih]/total;
-
-		P1[0]=norm_histo[0];
-		for (ih = 1; ih < data.length; ih++ )
-			P1[ih]= P1[ih-1] + norm_histo[ih];
-
 		P1_sq[0]=norm_histo[0]*norm_histo[0];
 		for (ih = 1; ih < data.length; ih++ )
 			P1_sq[ih]= P1_sq[ih-1] + norm_histo[ih] * norm_histo[ih];
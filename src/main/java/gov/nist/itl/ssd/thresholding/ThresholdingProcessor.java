@@ -15,26 +15,48 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import gov.nist.itl.ssd.thresholding.StageTimer.Stage;
 import gov.nist.itl.ssd.thresholding.utils.BioFormatsUtils;
+import gov.nist.itl.ssd.thresholding.utils.CompletionManifest;
+import gov.nist.itl.ssd.thresholding.utils.HistogramCache;
+import gov.nist.itl.ssd.thresholding.utils.HistogramSnapshot;
+import gov.nist.itl.ssd.thresholding.utils.MappedTiffReader;
+import gov.nist.itl.ssd.thresholding.utils.MemoryBudget;
+import gov.nist.itl.ssd.thresholding.utils.TileCompression;
+import gov.nist.itl.ssd.thresholding.utils.TileEncoders;
+import gov.nist.itl.ssd.thresholding.utils.TiledTiffWriter;
 
-import ij.ImagePlus;
 import ij.process.ImageProcessor;
-import loci.common.DebugTools;
-import loci.common.services.DependencyException;
-import loci.common.services.ServiceException;
-import loci.common.services.ServiceFactory;
-import loci.formats.FormatException;
 import loci.formats.FormatTools;
 import loci.formats.IFormatReader;
-import loci.formats.ImageReader;
-import loci.formats.codec.CompressionType;
 import loci.formats.ome.OMEXMLMetadata;
-import loci.formats.out.OMETiffWriter;
-import loci.formats.services.OMEXMLService;
 import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.PositiveInteger;
 
 /**
  *
@@ -44,18 +66,82 @@ import ome.xml.model.enums.PixelType;
 
 public class ThresholdingProcessor {
 
-	// Tile size used in WIPP
-	private static final int TILE_SIZE = 1024;
+	// Default tile size, the one used in WIPP
+	public static final int TILE_SIZE = 1024;
+
+	// Memory needed to threshold an image loaded entirely, in copies of its
+	// pixels: the decoded pixels, the buffers of the decoder and the tiles
+	// pending in the writer
+	private static final int IMAGE_COPIES = 3;
 	
 	private static final Logger LOGGER = Logger.getLogger(ThresholdingProcessor.class.getName());
-	private int width;
-	private int height;
 
 	public File inputFolder;
 	public File outputFolder;
 	public ThresholdingType thresholdingType;
 	public double threshold;
 	public int nbCpus;
+	// Process images tile by tile instead of loading them entirely in memory
+	public boolean streaming = false;
+	// Pixel format of the output masks
+	public OutputFormat outputFormat = OutputFormat.Same;
+	// Tile size and compression of the output images
+	public int tileSize = TILE_SIZE;
+	public TileCompression compression = TileCompression.LZW;
+	public int compressionLevel = TileCompression.DEFAULT_LEVEL;
+	// Compute a single threshold for the whole collection
+	public boolean globalThreshold = false;
+	// Folder of the persistent histogram cache, null to disable the cache
+	public File histogramCacheFolder = null;
+	// Methods evaluated on each image by the sweep mode, null to threshold
+	// the images with thresholdingType only
+	public List<ThresholdingType> sweepMethods = null;
+	// Methods whose masks are written by the sweep mode
+	public List<ThresholdingType> sweepMaskMethods = new ArrayList<>();
+	// Fraction of the pixels used to estimate the histograms, 1 to compute
+	// the exact histograms
+	public double histogramSampling = 1.0;
+	public SamplingMode samplingMode = SamplingMode.Stratified;
+	// Skip the images recorded as complete in the manifest of the output
+	// folder
+	public boolean resume = true;
+	// Shard of the collection processed by this run
+	public int shardIndex = 0;
+	public int shardCount = 1;
+	public ShardingMode shardingMode = ShardingMode.Hash;
+	// Step of the processing of images split into ranges of tiles processed
+	// by separate jobs, null to process each image in a single job
+	public SplitStep splitStep = null;
+	public TileRange tileRange = TileRange.ALL;
+	// Memory the images, loaded entirely or streamed, may use at the same
+	// time, in bytes, 0 for a fraction of the maximum heap or of the memory
+	// limit of the container
+	public long memoryBudget = 0;
+	// Tiles decoded ahead of their binarization when the images are
+	// processed tile by tile, 0 to decode them on the thread binarizing them
+	public int prefetchTiles = 4;
+	// Tiles of all the output images waiting to be compressed and written, 0
+	// for twice the number of cpus
+	public int pendingTiles = 0;
+	// Threads running the image tasks and decoding their tiles
+	public ThreadMode threadMode = ThreadMode.Platform;
+	// Images processed at the same time in virtual mode, 0 for 4 times the
+	// number of cpus
+	public int concurrentImages = 0;
+	// Decode the pixels of plain tiled TIFF images from a memory mapping of
+	// the file instead of with Bio-Formats
+	public boolean mappedReader = false;
+
+	// Time spent in each stage, summed over all the images
+	public final StageTimer timer = new StageTimer();
+
+	// Threads compressing the output tiles, shared by all the images
+	private TileEncoders encoders;
+	// Threads decoding the input tiles ahead, null if they are not prefetched
+	private ExecutorService decoders;
+	private HistogramCache histogramCache;
+	// Metrics of the current run
+	private RunMetrics metrics;
 
 	public ThresholdingProcessor(File inputFolder, File outputFolder, ThresholdingType thresholdingType,
 			double threshold, int nbCpus) {
@@ -88,254 +174,1741 @@ public class ThresholdingProcessor {
 			throw new IOException("Can not create folder " + outputFolder);
 		}
 
-		for(File image : images){
+		histogramCache = histogramCacheFolder == null ? null : new HistogramCache(histogramCacheFolder);
+		metrics = new RunMetrics(timer);
 
-			//Reading a tiled tiff with Bioformats and converting it to an ImagePlus 
-			ImagePlus imp = BioFormatsUtils.readImage(image.getAbsolutePath());
+		// Images of this run when the collection is split between several runs
+		File[] shard = images;
+		if (shardCount > 1) {
+			shard = shardingMode.select(images, shardIndex, shardCount);
+			LOGGER.log(Level.INFO, "Shard " + shardIndex + " of " + shardCount + ": "
+					+ shard.length + " of " + images.length + " images");
+			if (shard.length == 0) {
+				return;
+			}
+		}
 
-			ImageProcessor ip = imp.getProcessor();
+		// Images are independent from each other: each one is processed as a
+		// separate task, at most getConcurrentImages() of them at the same
+		// time. The compression is CPU bound and always runs on nbCpus
+		// platform threads.
+		ExecutorService executor = newThreads();
+		encoders = new TileEncoders(nbCpus, getPendingTiles());
+		// At most one decoder per image processed at the same time
+		decoders = prefetchTiles > 0 ? newThreads() : null;
+		LOGGER.log(Level.INFO, getConcurrentImages() + " images at a time on " + threadMode
+				+ " threads, " + getPendingTiles() + " pending tiles");
+		// The failure of an image does not stop the processing of the others
+		List<File> failed = Collections.synchronizedList(new ArrayList<>());
+		try {
+			if (splitStep != null) {
+				runSplitStep(shard, executor, failed);
+			} else if (sweepMethods != null) {
+				runSweep(shard, executor, failed);
+			} else {
+				runThreshold(images, shard, executor, failed);
+			}
+		} finally {
+			executor.shutdownNow();
+			encoders.close();
+			if (decoders != null) {
+				decoders.shutdownNow();
+			}
+			writeMetrics();
+		}
 
-			int xe = ip.getWidth();
-			int ye = ip.getHeight();
-			int x, y, c=0;
-			boolean noBlack = false;
-			boolean noWhite = false;
-			boolean doIwhite = true;
-			boolean doIset = true;
-			boolean doIlog = false;
-			boolean doIstack=false; 
-			boolean doIstackHistogram=false;
+		if (!failed.isEmpty()) {
+			StringBuilder names = new StringBuilder();
+			for (File image : failed) {
+				names.append(names.length() == 0 ? "" : ", ").append(image.getName());
+			}
+			throw new Exception(failed.size() + " of " + shard.length + " images failed: " + names);
+		}
+	}
 
-			int b = ip.getBitDepth()==8?255:65535;
-			if (doIwhite){
-				c=b;
-				b=0;
+	/**
+	 * Thresholds the images of the shard and writes the masks in the output
+	 * folder. The images recorded as complete in the manifest of the shard
+	 * are skipped if resume is enabled. In global mode, the threshold is
+	 * computed from all the images of the collection.
+	 *
+	 * @param images the images of the collection
+	 * @param shard the images to threshold
+	 * @param executor the threads processing the images
+	 * @param failed the list the failed images are added to
+	 * @throws Exception
+	 */
+	private void runThreshold(File[] images, File[] shard, ExecutorService executor,
+			List<File> failed) throws Exception {
+		// In global mode a first pass computes the threshold of the whole
+		// collection, then every image is binarized with it
+		double collectionThreshold = Double.NaN;
+		List<File> remaining = new ArrayList<>(Arrays.asList(shard));
+		if (globalThreshold && thresholdingType != ThresholdingType.Manual) {
+			List<File> histogramFailed = Collections.synchronizedList(new ArrayList<>());
+			collectionThreshold = computeCollectionThreshold(images, executor, histogramFailed);
+			// Only the failures of the images of the shard are reported by
+			// this run
+			remaining.removeAll(histogramFailed);
+			for (File image : shard) {
+				if (histogramFailed.contains(image)) {
+					failed.add(image);
+				}
 			}
-			int [] data = (ip.getHistogram());
-			int [] temp = new int [data.length];
-			///////////////////////////////////////////
-			if (noBlack) data[0]=0;
-			if (noWhite) data[data.length - 1]=0;
+		}
+		final double fixedThreshold = collectionThreshold;
+
+		final CompletionManifest manifest = new CompletionManifest(
+				new File(outputFolder, "manifest" + getShardSuffix() + ".jsonl"));
+		final String method = thresholdingType.name();
+		final String settings = getOutputSettings();
+		final AtomicInteger skipped = new AtomicInteger();
 
-			// bracket the histogram to the range that holds data to make it quicker
-			int minbin=-1, maxbin=-1;
-			for (int i=0; i<data.length; i++){
-				if (data[i]>0) maxbin = i;
+		// The images already complete are found first, and the memory the
+		// others need when loaded entirely is read from their dimensions,
+		// without opening them with the reader stack
+		final Set<File> complete = ConcurrentHashMap.newKeySet();
+		final Map<File, Long> imageMemory = new ConcurrentHashMap<>();
+		forEachImage(remaining.toArray(new File[0]), executor, image -> {
+			if (resume && manifest.isComplete(image, new File(outputFolder, image.getName()),
+					method, settings, fixedThreshold)) {
+				complete.add(image);
+			} else if (!streaming) {
+				imageMemory.put(image, estimateImageMemory(image));
 			}
-			for (int i=data.length-1; i>=0; i--){
-				if (data[i]>0) minbin = i;
+		});
+
+		// The images are admitted against the memory budget, streamed images
+		// included. Without streaming, the images that would need more than
+		// half of it are streamed instead: loaded entirely, they could only
+		// run alone
+		final MemoryBudget budget = memoryBudget > 0 ? new MemoryBudget(memoryBudget)
+				: MemoryBudget.fromContainer();
+		final Set<File> streamed = new HashSet<>();
+		long[] memory = new long[remaining.size()];
+		for (int i = 0; i < memory.length; i++) {
+			File image = remaining.get(i);
+			if (complete.contains(image)) {
+				continue;
 			}
-			int [] data2 = new int [(maxbin-minbin)+1];
-			for (int i=minbin; i<=maxbin; i++){
-				data2[i-minbin]= data[i];;
+			memory[i] = streaming ? getStreamingMemory() : imageMemory.get(image);
+			if (!streaming && memory[i] > budget.getLimit() / 2) {
+				streamed.add(image);
+				memory[i] = getStreamingMemory();
 			}
-			//////////////////////////////////////////
+		}
+		LOGGER.log(Level.INFO, "Memory budget : " + (budget.getLimit() >> 20) + " MB, "
+				+ (streaming ? remaining.size() - complete.size() : streamed.size())
+				+ " images streamed");
 
-			double threshold = 0.0;
+		ImageTask task = isolate("threshold", image -> {
+			File outputFile = new File(outputFolder, image.getName());
+			if (complete.contains(image)) {
+				skipped.incrementAndGet();
+				metrics.skipped();
+				return;
+			}
+			double threshold = streaming || streamed.contains(image)
+					? processImageStreaming(image, fixedThreshold)
+					: processImage(image, fixedThreshold);
+			metrics.setThreshold(threshold);
+			manifest.add(image, outputFile, method, settings, threshold);
+		}, failed);
+		forEachImage(remaining.toArray(new File[0]), memory, budget, executor, task);
+		if (skipped.get() > 0) {
+			LOGGER.log(Level.INFO, skipped.get() + " images already processed were skipped");
+		}
+	}
 
-			// Apply the selected algorithm
-			if (data2.length < 2){
-				threshold = 0;
-			}else if(this.thresholdingType == ThresholdingType.Manual){
-				threshold = this.threshold; // use the value specified by a user
+	/**
+	 * Writes the metrics of the run in the output folder, as metrics.json and
+	 * metrics.prom (Prometheus text format), suffixed by the shard and the
+	 * split step so that concurrent jobs do not overwrite each other's.
+	 */
+	private void writeMetrics() {
+		metrics.end();
+		LOGGER.log(Level.INFO, metrics.getSummary());
+		String name = "metrics" + getShardSuffix();
+		if (splitStep != null) {
+			name += "-" + splitStep;
+			if (splitStep == SplitStep.Histogram || splitStep == SplitStep.Binarize) {
+				name += "-" + tileRange.toString().replace("/", "-of-");
 			}
-			else if(this.thresholdingType == ThresholdingType.IJDefault){
-				threshold = ThresholdingMethods.IJDefault(data2); // re-implemeted so we can ignore black/white and set the bright or dark objects
+		}
+		try {
+			metrics.writeJson(new File(outputFolder, name + ".json"));
+			metrics.writePrometheus(new File(outputFolder, name + ".prom"));
+		} catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Can not write the metrics of the run: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * @return the suffix of the files written by each shard in the output
+	 *         folder, e.g. "-2-of-8", empty if the collection is not sharded
+	 */
+	private String getShardSuffix() {
+		return shardCount > 1 ? "-" + shardIndex + "-of-" + shardCount : "";
+	}
+
+	/**
+	 * @return the settings the output images depend on, besides the method,
+	 *         as recorded in the manifest
+	 */
+	private String getOutputSettings() {
+		StringBuilder settings = new StringBuilder();
+		if (thresholdingType == ThresholdingType.Manual) {
+			settings.append("threshold=").append(threshold).append(';');
+		}
+		settings.append("format=").append(outputFormat)
+				.append(";tilesize=").append(tileSize)
+				.append(";compression=").append(compression);
+		if (compression == TileCompression.ZLIB) {
+			settings.append(";level=").append(compressionLevel);
+		}
+		settings.append(";global=").append(globalThreshold);
+		if (isSampling()) {
+			settings.append(";sampling=").append(histogramSampling).append(';').append(samplingMode);
+		}
+		return settings.toString();
+	}
+
+	/**
+	 * Sweep mode: computes the histogram of each image once, evaluates all the
+	 * sweep methods on it and writes the table of the thresholds in the output
+	 * folder, as thresholds.csv and thresholds.json. The masks of the sweep
+	 * mask methods are written in a sub-folder per method.
+	 *
+	 * @param images the images of the collection
+	 * @param executor the threads processing the images
+	 * @param failed the list the failed images are added to
+	 * @throws Exception
+	 */
+	private void runSweep(File[] images, ExecutorService executor, List<File> failed)
+			throws Exception {
+		// The methods of the masks are evaluated too
+		List<ThresholdingType> methods = new ArrayList<>(sweepMethods);
+		for (ThresholdingType type : sweepMaskMethods) {
+			if (!methods.contains(type)) {
+				methods.add(type);
 			}
-			else if(this.thresholdingType == ThresholdingType.Huang){
-				threshold =  ThresholdingMethods.Huang(data2);
+		}
+		final ThresholdingType[] types = methods.toArray(new ThresholdingType[0]);
+		final int[] maskColumns = new int[sweepMaskMethods.size()];
+		for (int i = 0; i < maskColumns.length; i++) {
+			maskColumns[i] = methods.indexOf(sweepMaskMethods.get(i));
+			File maskFolder = new File(outputFolder, types[maskColumns[i]].name());
+			if (!maskFolder.mkdirs() && !maskFolder.isDirectory()) {
+				throw new IOException("Can not create folder " + maskFolder);
 			}
-			else if(this.thresholdingType == ThresholdingType.Huang2){
-				threshold =  ThresholdingMethods.Huang2(data2);
+		}
+
+		final ThresholdTable table = new ThresholdTable(types);
+		ExecutorService methodExecutor = Executors.newFixedThreadPool(Math.max(1, nbCpus));
+		try {
+			forEachImage(images, executor, isolate("sweep", image -> table.put(image.getName(),
+					sweepImage(image, types, maskColumns, methodExecutor)), failed));
+		} finally {
+			methodExecutor.shutdownNow();
+		}
+		table.writeCsv(new File(outputFolder, "thresholds" + getShardSuffix() + ".csv"));
+		table.writeJson(new File(outputFolder, "thresholds" + getShardSuffix() + ".json"));
+		LOGGER.log(Level.INFO, types.length + " thresholds computed for " + images.length + " images");
+	}
+
+	/**
+	 * Computes the thresholds of an image with the sweep methods and writes
+	 * the masks of the sweep mask methods.
+	 *
+	 * @param image the input image file
+	 * @param types the methods to evaluate
+	 * @param maskColumns the indexes in types of the methods of the masks
+	 * @param methodExecutor the threads evaluating the methods
+	 * @return the threshold of each method
+	 * @throws Exception
+	 */
+	private double[] sweepImage(File image, ThresholdingType[] types, int[] maskColumns,
+			ExecutorService methodExecutor) throws Exception {
+		int[] data = histogramCache == null ? null : histogramCache.get(image);
+		if (data != null && maskColumns.length == 0) {
+			// Nothing to decode
+			long start = timer.start();
+			double[] thresholds = computeThresholds(data, types, methodExecutor);
+			timer.stop(Stage.THRESHOLD, start);
+			return thresholds;
+		}
+
+		OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+		try (IFormatReader reader = openReader(image, metadata)) {
+			int bpp = checkImage(image, reader, metadata);
+			if (data == null || data.length != (bpp == 1 ? 256 : 65536)) {
+				data = computeHistogram(image, reader, bpp, types);
 			}
-			else if(this.thresholdingType == ThresholdingType.Intermodes){
-				threshold = ThresholdingMethods.Intermodes(data2);
+			long start = timer.start();
+			double[] thresholds = computeThresholds(data, types, methodExecutor);
+			timer.stop(Stage.THRESHOLD, start);
+
+			if (maskColumns.length > 0) {
+				writeMasks(image, reader, metadata, bpp, types, thresholds, maskColumns);
 			}
-			else if(this.thresholdingType == ThresholdingType.IsoData){
-				threshold = ThresholdingMethods.IsoData (data2);
+			return thresholds;
+		}
+	}
+
+	/**
+	 * Binarizes an image with several thresholds and writes one mask per
+	 * threshold, in the sub-folder of the output folder named after its
+	 * method. Each tile of the image is read only once for all the masks.
+	 *
+	 * @param image the input image file
+	 * @param reader the reader opened on the image
+	 * @param metadata the metadata of the image
+	 * @param bpp the number of bytes per pixel of the image
+	 * @param types the methods of the thresholds
+	 * @param thresholds the thresholds of the image
+	 * @param maskColumns the indexes of the thresholds of the masks
+	 * @throws Exception
+	 */
+	private void writeMasks(File image, IFormatReader reader, OMEXMLMetadata metadata, int bpp,
+			ThresholdingType[] types, double[] thresholds, int[] maskColumns) throws Exception {
+		boolean littleEndian = reader.isLittleEndian();
+		int nbMasks = maskColumns.length;
+
+		TiledTiffWriter[] writers = new TiledTiffWriter[nbMasks];
+		File[] outputFiles = new File[nbMasks];
+		Binarizer[] binarizers = new Binarizer[nbMasks];
+		OutputFormat[] formats = new OutputFormat[nbMasks];
+		try {
+			for (int m = 0; m < nbMasks; m++) {
+				double threshold = thresholds[maskColumns[m]];
+				OMEXMLMetadata maskMetadata = BioFormatsUtils.copyMetadata(metadata);
+				binarizers[m] = threshold > -1 ? new Binarizer(threshold, bpp * 8) : null;
+				formats[m] = getOutputFormat(image, threshold, maskMetadata);
+				outputFiles[m] = new File(new File(outputFolder, types[maskColumns[m]].name()),
+						image.getName());
+				writers[m] = new TiledTiffWriter(getPartFile(outputFiles[m]), maskMetadata, tileSize, compression,
+						compressionLevel, encoders);
 			}
-			else if(this.thresholdingType == ThresholdingType.Li){
-				threshold = ThresholdingMethods.Li(data2);
+
+			byte[] maskBuf = new byte[tileSize * tileSize * bpp];
+			RunMetrics.QueueMetrics encodeQueue = metrics.getQueue("encode", encoders.getMaxPendingTiles());
+			int nbTiles = writers[0].getNbTiles();
+			try (TilePrefetcher tiles = new TilePrefetcher(reader, bpp, tileSize, 0, nbTiles,
+					prefetchTiles, decoders, timer, metrics)) {
+				for (int i = 0; i < nbTiles; i++) {
+					TilePrefetcher.Tile tile = tiles.next();
+					int nbPixels = tile.width * tile.height;
+					metrics.addRead(1, nbPixels, nbPixels * bpp);
+
+					PipelineEvents.setTile(tile.x, tile.y, tile.width, tile.height);
+					long start = timer.start();
+					for (int m = 0; m < nbMasks; m++) {
+						byte[] pixels = tile.pixels;
+						if (binarizers[m] != null) {
+							System.arraycopy(tile.pixels, 0, maskBuf, 0, nbPixels * bpp);
+							binarizers[m].binarize(maskBuf, nbPixels, littleEndian);
+							pixels = maskBuf;
+							start = timer.stop(Stage.BINARIZE, start);
+						}
+						byte[] buf = writers[m].newTileBuffer();
+						if (formats[m] == OutputFormat.Same) {
+							padTile(pixels, tile.width, tile.height, bpp, littleEndian, tileSize, buf);
+						} else {
+							int rowBytes = writers[m].getTileBytes() / tileSize;
+							for (int row = 0; row < tile.height; row++) {
+								formats[m].packRow(pixels, row * tile.width * bpp, bpp, tile.width,
+										buf, row * rowBytes);
+							}
+						}
+						writers[m].writeTile(buf);
+						encodeQueue.sample(encoders.getNbPendingTiles());
+						metrics.addTilesWritten(1);
+						start = timer.stop(Stage.WRITE, start);
+					}
+					tiles.recycle(tile);
+				}
+			} finally {
+				for (TiledTiffWriter writer : writers) {
+					if (writer != null) {
+						encodeQueue.addFullNanos(writer.getWaitNanos());
+					}
+				}
+				PipelineEvents.clearTile();
 			}
-			else if(this.thresholdingType == ThresholdingType.MaxEntropy){
-				threshold = ThresholdingMethods.MaxEntropy(data2);
+
+			long start = timer.start();
+			for (int m = 0; m < nbMasks; m++) {
+				TiledTiffWriter writer = writers[m];
+				writers[m] = null;
+				writer.close();
+				commitOutput(getPartFile(outputFiles[m]), outputFiles[m]);
 			}
-			else if(this.thresholdingType == ThresholdingType.Mean){
-				threshold = ThresholdingMethods.Mean(data2);
+			timer.stop(Stage.WRITE, start);
+		} catch (IOException ex) {
+			throw new RuntimeException("Error while writing the masks of image "
+					+ image.getName() + ": " + ex.getMessage(), ex);
+		} finally {
+			// Writers and partial outputs left by a failure
+			for (int m = 0; m < nbMasks; m++) {
+				if (writers[m] != null) {
+					try {
+						writers[m].close();
+					} catch (IOException ex) {
+						LOGGER.log(Level.WARNING, ex.getMessage());
+					}
+				}
+				if (outputFiles[m] != null) {
+					getPartFile(outputFiles[m]).delete();
+				}
 			}
-			else if(this.thresholdingType == ThresholdingType.MinErrorI){
-				threshold = ThresholdingMethods.MinErrorI(data2);
+		}
+	}
+
+	/**
+	 * Runs a step of the processing of the images split into ranges of tiles:
+	 * the histogram of the range of tiles of this job, the threshold of each
+	 * image from the histograms of all its ranges, the binarization of the
+	 * range of tiles of this job, or the assembly of the binarized ranges into
+	 * the output images. The histograms, thresholds and binarized ranges are
+	 * exchanged through files of the output folder, so the jobs of a step can
+	 * run on different nodes.
+	 *
+	 * @param images the images to process
+	 * @param executor the threads processing the images
+	 * @param failed the list the failed images are added to
+	 * @throws Exception
+	 */
+	private void runSplitStep(File[] images, ExecutorService executor, List<File> failed)
+			throws Exception {
+		forEachImage(images, executor, isolate(splitStep.toString(), image -> {
+			switch (splitStep) {
+				case Histogram:
+					writeHistogramSnapshot(image);
+					break;
+				case Reduce:
+					reduceHistogramSnapshots(image);
+					break;
+				case Binarize:
+					writeTileFragment(image);
+					break;
+				default:
+					assembleTileFragments(image);
 			}
-			else if(this.thresholdingType == ThresholdingType.Minimum){
-				threshold = ThresholdingMethods.Minimum(data2);
+		}, failed));
+	}
+
+	/**
+	 * Computes the histogram of the range of tiles of an image and writes it
+	 * to a snapshot file, &lt;image&gt;.tiles-&lt;first&gt;-&lt;end&gt;.hist.
+	 */
+	private void writeHistogramSnapshot(File image) throws Exception {
+		if (thresholdingType == ThresholdingType.Manual) {
+			LOGGER.log(Level.INFO, "No histogram needed by the Manual method");
+			return;
+		}
+		OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+		try (IFormatReader reader = openReader(image, metadata)) {
+			int bpp = checkImage(image, reader, metadata);
+			int nbTiles = getNbTiles(reader);
+			int[] range = tileRange.resolve(nbTiles);
+			if (range[0] >= range[1]) {
+				LOGGER.log(Level.INFO, image.getName() + " has no tile in the range " + tileRange);
+				return;
+			}
+			long[] histogram = readHistogram(reader, bpp, range[0], range[1]);
+
+			File snapshotFile = getSplitFile(image, range, ".hist");
+			File partFile = getPartFile(snapshotFile);
+			try {
+				new HistogramSnapshot(image, tileSize, nbTiles, range[0], range[1], histogram)
+						.write(partFile);
+				commitOutput(partFile, snapshotFile);
+			} finally {
+				partFile.delete();
+			}
+			LOGGER.log(Level.INFO, image.getName() + ": histogram of the tiles [" + range[0] + ", "
+					+ range[1] + "[ out of " + nbTiles + " written to " + snapshotFile.getName());
+		}
+	}
+
+	/**
+	 * Merges the histogram snapshots of all the ranges of tiles of an image,
+	 * computes the threshold of the image and writes it to
+	 * &lt;image&gt;.threshold, then deletes the snapshots. The image itself
+	 * is not read.
+	 */
+	private void reduceHistogramSnapshots(File image) throws Exception {
+		if (thresholdingType == ThresholdingType.Manual) {
+			LOGGER.log(Level.INFO, "No threshold to compute for the Manual method");
+			return;
+		}
+		List<File> snapshotFiles = listSplitFiles(image, ".hist");
+		List<HistogramSnapshot> snapshots = new ArrayList<>();
+		for (File snapshotFile : snapshotFiles) {
+			snapshots.add(HistogramSnapshot.read(snapshotFile));
+		}
+		long[] merged = HistogramSnapshot.merge(image, snapshots);
+
+		long start = timer.start();
+		double threshold = computeThreshold(toIntHistogram(merged, merged.length));
+		timer.stop(Stage.THRESHOLD, start);
+
+		File thresholdFile = new File(outputFolder, image.getName() + ".threshold");
+		File partFile = getPartFile(thresholdFile);
+		try {
+			Files.write(partFile.toPath(), (threshold + "\n").getBytes(StandardCharsets.US_ASCII));
+			commitOutput(partFile, thresholdFile);
+		} finally {
+			partFile.delete();
+		}
+		for (File snapshotFile : snapshotFiles) {
+			snapshotFile.delete();
+		}
+		PipelineEvents.setThreshold(threshold);
+		LOGGER.log(Level.INFO, "thresh = " + threshold + " (" + image.getName() + ", merged from "
+				+ snapshots.size() + " histogram snapshots)");
+	}
+
+	/**
+	 * @return the threshold of an image split into ranges of tiles, written
+	 *         by the reduce step
+	 */
+	private double getSplitThreshold(File image) throws IOException {
+		if (thresholdingType == ThresholdingType.Manual) {
+			return threshold;
+		}
+		File thresholdFile = new File(outputFolder, image.getName() + ".threshold");
+		if (!thresholdFile.isFile()) {
+			throw new IOException("No threshold found for " + image.getName()
+					+ ", the reduce step must be run first");
+		}
+		String text = new String(Files.readAllBytes(thresholdFile.toPath()), StandardCharsets.US_ASCII);
+		try {
+			return Double.parseDouble(text.trim());
+		} catch (NumberFormatException ex) {
+			throw new IOException("Invalid threshold file " + thresholdFile.getName());
+		}
+	}
+
+	/**
+	 * Binarizes the range of tiles of an image and writes the compressed
+	 * tiles to a fragment file, &lt;image&gt;.tiles-&lt;first&gt;-&lt;end&gt;.frag.
+	 */
+	private void writeTileFragment(File image) throws Exception {
+		double threshold = getSplitThreshold(image);
+		OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+		try (IFormatReader reader = openReader(image, metadata)) {
+			int bpp = checkImage(image, reader, metadata);
+			int nbTiles = getNbTiles(reader);
+			int[] range = tileRange.resolve(nbTiles);
+			if (range[0] >= range[1]) {
+				LOGGER.log(Level.INFO, image.getName() + " has no tile in the range " + tileRange);
+				return;
 			}
-			else if(this.thresholdingType == ThresholdingType.Moments){
-				threshold = ThresholdingMethods.Moments(data2);
+			LOGGER.log(Level.INFO, "thresh = " + threshold);
+			PipelineEvents.setThreshold(threshold);
+
+			Binarizer binarizer = threshold > -1 ? new Binarizer(threshold, bpp * 8) : null;
+			OutputFormat format = getOutputFormat(image, threshold, metadata);
+			File fragmentFile = getSplitFile(image, range, ".frag");
+			File partFile = getPartFile(fragmentFile);
+			long start;
+			try {
+				try (TiledTiffWriter writer = TiledTiffWriter.createFragment(partFile, metadata,
+						tileSize, compression, compressionLevel, encoders, range[0], range[1])) {
+					writeTiles(reader, bpp, writer, binarizer, format, range[0], range[1]);
+					start = timer.start();
+				}
+				commitOutput(partFile, fragmentFile);
+			} catch (IOException ex) {
+				throw new RuntimeException("Error while writing fragment file "
+						+ fragmentFile + ": " + ex.getMessage(), ex);
+			} finally {
+				partFile.delete();
 			}
-			else if(this.thresholdingType == ThresholdingType.Otsu){
-				threshold = ThresholdingMethods.Otsu(data2);
+			timer.stop(Stage.WRITE, start);
+			LOGGER.log(Level.INFO, image.getName() + ": tiles [" + range[0] + ", " + range[1]
+					+ "[ out of " + nbTiles + " written to " + fragmentFile.getName());
+		}
+	}
+
+	/**
+	 * Concatenates the fragments of all the ranges of tiles of an image into
+	 * the output image, then deletes them and the threshold file of the
+	 * image. The compressed tiles are copied as is, only the metadata of the
+	 * image is read.
+	 */
+	private void assembleTileFragments(File image) throws Exception {
+		double threshold = getSplitThreshold(image);
+		OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+		try (IFormatReader reader = openReader(image, metadata)) {
+			checkImage(image, reader, metadata);
+		}
+		getOutputFormat(image, threshold, metadata);
+
+		List<File> fragments = listSplitFiles(image, ".frag");
+		File outputFile = new File(outputFolder, image.getName());
+		File partFile = getPartFile(outputFile);
+		long start = timer.start();
+		try {
+			try (TiledTiffWriter writer = new TiledTiffWriter(partFile, metadata, tileSize,
+					compression, compressionLevel, null)) {
+				for (File fragment : fragments) {
+					writer.appendFragment(fragment);
+				}
 			}
-			else if(this.thresholdingType == ThresholdingType.Percentile){
-				threshold = ThresholdingMethods.Percentile(data2);
+			commitOutput(partFile, outputFile);
+		} catch (IOException ex) {
+			throw new RuntimeException("Error while assembling image file "
+					+ outputFile + ": " + ex.getMessage(), ex);
+		} finally {
+			partFile.delete();
+		}
+		timer.stop(Stage.WRITE, start);
+		for (File fragment : fragments) {
+			fragment.delete();
+		}
+		new File(outputFolder, image.getName() + ".threshold").delete();
+		LOGGER.log(Level.INFO, image.getName() + " assembled from " + fragments.size()
+				+ " fragments");
+	}
+
+	/**
+	 * @return the file of the output folder holding the result of a step on a
+	 *         range of tiles of an image
+	 */
+	private File getSplitFile(File image, int[] range, String extension) {
+		return new File(outputFolder, image.getName() + ".tiles-" + range[0] + "-" + range[1]
+				+ extension);
+	}
+
+	/**
+	 * @return the files of the output folder holding the results of a step on
+	 *         the ranges of tiles of an image, sorted by their first tile. The
+	 *         files of the image whose name has no range of tiles are ignored.
+	 */
+	private List<File> listSplitFiles(File image, String extension) {
+		final String prefix = image.getName() + ".tiles-";
+		File[] files = outputFolder.listFiles((dir, name) -> name.startsWith(prefix)
+				&& name.endsWith(extension));
+		List<File> sorted = new ArrayList<>();
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			if (name.length() >= prefix.length() + extension.length() && name
+					.substring(prefix.length(), name.length() - extension.length())
+					.matches("\\d+-\\d+")) {
+				sorted.add(file);
+			} else {
+				LOGGER.log(Level.WARNING, "Ignoring " + name + ", which names no range of tiles of "
+						+ image.getName());
 			}
-			else if(this.thresholdingType == ThresholdingType.RenyiEntropy){
-				threshold = ThresholdingMethods.RenyiEntropy(data2);
+		}
+		sorted.sort(Comparator.comparingLong(f -> Long.parseLong(
+				f.getName().substring(prefix.length(), f.getName().indexOf('-', prefix.length())))));
+		return sorted;
+	}
+
+	/**
+	 * @return the number of tiles of the image of a reader, counted with the
+	 *         output tile size
+	 */
+	private int getNbTiles(IFormatReader reader) {
+		int nXTiles = (reader.getSizeX() + tileSize - 1) / tileSize;
+		int nYTiles = (reader.getSizeY() + tileSize - 1) / tileSize;
+		return nXTiles * nYTiles;
+	}
+
+	/**
+	 * Opens a reader on an input image, decoding its pixels from a memory
+	 * mapping of the file if enabled and supported.
+	 */
+	private IFormatReader openReader(File image, OMEXMLMetadata metadata) {
+		return BioFormatsUtils.openReader(image.getAbsolutePath(), metadata, mappedReader);
+	}
+
+	/**
+	 * Task run on each image of the collection.
+	 */
+	private interface ImageTask {
+		void run(File image) throws Exception;
+	}
+
+	/**
+	 * @return a pool of nbCpus platform threads, or an executor starting a
+	 *         virtual thread per task in virtual mode
+	 */
+	private ExecutorService newThreads() {
+		return threadMode == ThreadMode.Virtual ? Executors.newVirtualThreadPerTaskExecutor()
+				: Executors.newFixedThreadPool(Math.max(1, nbCpus));
+	}
+
+	/**
+	 * @return the max number of images processed at the same time
+	 */
+	private int getConcurrentImages() {
+		if (threadMode == ThreadMode.Platform) {
+			return Math.max(1, nbCpus);
+		}
+		return concurrentImages > 0 ? concurrentImages : 4 * Math.max(1, nbCpus);
+	}
+
+	/**
+	 * Runs a task on each image with an executor and waits for all of them.
+	 * The first failure is rethrown.
+	 */
+	private void forEachImage(File[] images, ExecutorService executor, ImageTask task)
+			throws Exception {
+		// A virtual thread is started for each task: the number of images
+		// opened at the same time is bounded here instead of by the pool
+		Semaphore slots = threadMode == ThreadMode.Virtual ? new Semaphore(getConcurrentImages())
+				: null;
+		List<Future<Void>> futures = new ArrayList<>(images.length);
+		for (final File image : images) {
+			if (slots != null) {
+				slots.acquire();
 			}
-			else if(this.thresholdingType == ThresholdingType.Shanbhag){
-				threshold = ThresholdingMethods.Shanbhag(data2);
+			futures.add(executor.submit(() -> {
+				try {
+					task.run(image);
+				} finally {
+					if (slots != null) {
+						slots.release();
+					}
+				}
+				return null;
+			}));
+		}
+		waitFor(futures);
+	}
+
+	/**
+	 * Waits for the tasks of the images and rethrows the first failure.
+	 */
+	private static void waitFor(List<Future<Void>> futures) throws Exception {
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof Exception) {
+					throw (Exception) cause;
+				}
+				throw new RuntimeException(cause);
 			}
-			else if(this.thresholdingType == ThresholdingType.Triangle){
-				threshold = ThresholdingMethods.Triangle(data2); 
+		}
+	}
+
+	/**
+	 * Runs a task on each image with an executor, admitting an image only
+	 * once the memory it needs is reserved in a budget, and waits for all of
+	 * them. The largest images are admitted first and the smaller ones fill
+	 * the remaining memory, at most getConcurrentImages() at the same time.
+	 * The first failure is rethrown.
+	 *
+	 * @param images the images
+	 * @param memory the memory needed by each image, in bytes
+	 * @param budget the memory shared by the images
+	 */
+	private void forEachImage(File[] images, long[] memory, MemoryBudget budget,
+			ExecutorService executor, ImageTask task) throws Exception {
+		Integer[] order = new Integer[images.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparingLong((Integer i) -> memory[i]).reversed());
+		List<File> pending = new ArrayList<>(images.length);
+		List<Long> pendingMemory = new ArrayList<>(images.length);
+		for (int i : order) {
+			pending.add(images[i]);
+			pendingMemory.add(memory[i]);
+		}
+
+		// Images admitted but not yet running would hold their memory idle
+		Semaphore slots = new Semaphore(getConcurrentImages());
+		List<Future<Void>> futures = new ArrayList<>(images.length);
+		while (!pending.isEmpty()) {
+			slots.acquire();
+			int next = budget.acquireFirstFitting(pendingMemory);
+			final File image = pending.remove(next);
+			final long bytes = pendingMemory.remove(next);
+			futures.add(executor.submit(() -> {
+				try {
+					task.run(image);
+				} finally {
+					budget.release(bytes);
+					slots.release();
+				}
+				return null;
+			}));
+		}
+		waitFor(futures);
+	}
+
+	/**
+	 * @return the memory needed to threshold an image loaded entirely, in
+	 *         bytes, estimated from the dimensions in the first IFD of a TIFF
+	 *         file or else from the metadata read by Bio-Formats, or the
+	 *         memory needed to stream it if they can not be read
+	 */
+	private long estimateImageMemory(File image) {
+		try {
+			int[] dimensions = MappedTiffReader.readDimensions(image);
+			if (dimensions != null) {
+				int bpp = Math.max(1, dimensions[2] / 8);
+				return IMAGE_COPIES * (long) dimensions[0] * dimensions[1] * bpp;
 			}
-			else if(this.thresholdingType == ThresholdingType.Yen){
-				threshold = ThresholdingMethods.Yen(data2);
+			try (IFormatReader reader = BioFormatsUtils.openReader(image.getAbsolutePath(),
+					BioFormatsUtils.createMetadata(), false)) {
+				int bpp = FormatTools.getBytesPerPixel(reader.getPixelType());
+				return IMAGE_COPIES * (long) reader.getSizeX() * reader.getSizeY() * bpp;
 			}
+		} catch (Exception ex) {
+			// The image fails again, and is reported, when it is processed
+			return getStreamingMemory();
+		}
+	}
+
+	/**
+	 * @return the memory needed to threshold an image tile by tile, in bytes:
+	 *         the tiles decoded ahead, read and binarized and the tile the
+	 *         writer may always have pending. The tiles pending in the shared
+	 *         slots of the encoders are bounded for all the images.
+	 */
+	private long getStreamingMemory() {
+		return (5L + prefetchTiles) * tileSize * tileSize * 2;
+	}
 
-			if(this.thresholdingType != ThresholdingType.Manual){
-				threshold+=minbin; // add the offset of the histogram
+	/**
+	 * @return the max number of tiles of all the output images waiting to be
+	 *         compressed and written
+	 */
+	private int getPendingTiles() {
+		return pendingTiles > 0 ? pendingTiles : 2 * nbCpus;
+	}
+
+	/**
+	 * Wraps a task so that the failure of an image is logged and the image
+	 * added to a list, instead of stopping the processing of the other images.
+	 * The metrics of the task are recorded under the given name.
+	 */
+	private ImageTask isolate(String name, ImageTask task, List<File> failed) {
+		return image -> {
+			RunMetrics.ImageMetrics imageMetrics = metrics.startImage(image, name);
+			PipelineEvents.startImage(image.getName(), name,
+					sweepMethods != null ? "sweep" : thresholdingType.name());
+			boolean success = false;
+			try {
+				task.run(image);
+				success = true;
+			} catch (Exception ex) {
+				LOGGER.log(Level.SEVERE, "Error while processing " + image.getName() + ": "
+						+ ex.getMessage(), ex);
+				failed.add(image);
+			} finally {
+				PipelineEvents.endImage();
+				metrics.endImage(imageMetrics, !success);
 			}
+		};
+	}
 
+	/**
+	 * @return the temporary file an output image is written to, renamed to
+	 *         the output file once complete so that a failed or interrupted
+	 *         run never leaves a truncated output
+	 */
+	private static File getPartFile(File outputFile) {
+		return new File(outputFile.getParentFile(), "." + outputFile.getName() + ".part");
+	}
 
-			/////////////////////////////////////////
-			double min = ip.getMin();
-			double max = ip.getMax();
-			LOGGER.log(Level.INFO, "min = " + min + ", max=" + max);
-			LOGGER.log(Level.INFO, "thresh = " + threshold);
+	/**
+	 * Renames a complete temporary file to its output file, atomically if the
+	 * file system supports it.
+	 */
+	private void commitOutput(File partFile, File outputFile) throws IOException {
+		metrics.addOutput(partFile.length());
+		try {
+			Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
 
-			if (threshold>-1) { 
-				//threshold it
-				/*				if (doIset){
-					if (doIwhite) 
-						ip.setThreshold(threshold+1, data.length - 1, ImageProcessor.RED_LUT);//IJ.setThreshold(threshold+1, data.length - 1);
-					else
-						ip.setThreshold(0, threshold, ImageProcessor.RED_LUT);//IJ.setThreshold(0,threshold);
+	/**
+	 * Computes a single threshold for a collection of images from the sum of
+	 * their histograms. The histograms are computed in parallel, tile by tile,
+	 * and merged as soon as they are complete, so neither the decoded images
+	 * nor the per-image histograms are kept in memory.
+	 *
+	 * @param images the images of the collection, which must all have the
+	 *               same bit depth
+	 * @param executor the threads computing the histograms
+	 * @param failed the list the images whose histogram failed are added to
+	 * @return the threshold of the collection, in pixel values
+	 * @throws Exception
+	 */
+	private double computeCollectionThreshold(File[] images, ExecutorService executor,
+			List<File> failed) throws Exception {
+		if (isSampling()) {
+			return estimateCollectionThreshold(images, executor, failed);
+		}
+		final long[] merged = new long[65536];
+		final Set<Integer> bpps = ConcurrentHashMap.newKeySet();
+		forEachImage(images, executor, isolate("histogram", image -> {
+			// The images whose histogram is cached are not even opened
+			int[] data = histogramCache == null ? null : histogramCache.get(image);
+			if (data == null) {
+				OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+				try (IFormatReader reader = openReader(image, metadata)) {
+					int bpp = checkImage(image, reader, metadata);
+					data = readHistogram(reader, bpp);
 				}
-				else{*/
-				for( y=0;y<ye;y++) {
-					for(x=0;x<xe;x++){
-						if(ip.getPixel(x,y)>threshold)
-							ip.putPixel(x,y,c);
-						else
-							ip.putPixel(x,y,b);
-					}
+				if (histogramCache != null) {
+					histogramCache.put(image, data);
 				}
-				ip.setThreshold(data.length - 1, data.length - 1, ImageProcessor.NO_LUT_UPDATE);
-				//}
 			}
-			
-			File outputFile = new File(outputFolder, image.getName());
-			OMEXMLMetadata metadata = getMetadata(image);
-			PixelType pxlType = metadata.getPixelsType(0);
-			int bpp = FormatTools.getBytesPerPixel(pxlType.getValue());
-			LOGGER.log(Level.INFO, "bpp: " + bpp);
+			bpps.add(data.length == 256 ? 1 : 2);
+			synchronized (merged) {
+				for (int i = 0; i < data.length; i++) {
+					merged[i] += data[i];
+				}
+			}
+		}, failed));
+		if (bpps.size() > 1) {
+			throw new RuntimeException("Global thresholding requires all the images "
+					+ "to have the same bit depth.");
+		}
+
+		long start = timer.start();
+		int nbBins = bpps.contains(1) ? 256 : 65536;
+		double threshold = computeThreshold(toIntHistogram(merged, nbBins));
+		timer.stop(Stage.THRESHOLD, start);
+		LOGGER.log(Level.INFO, "global thresh = " + threshold + " ("
+				+ (images.length - failed.size()) + " images)");
+		return threshold;
+	}
+
+	/**
+	 * Estimates the threshold of a collection of images from a sample of the
+	 * tiles of each image. The histogram cache is not used: all the images
+	 * must be sampled so that they have the same weight in the merged
+	 * histogram.
+	 *
+	 * @param images the images of the collection, which must all have the
+	 *               same bit depth
+	 * @param executor the threads sampling the images
+	 * @param failed the list the images whose histogram failed are added to
+	 * @return the estimated threshold of the collection, in pixel values
+	 * @throws Exception
+	 */
+	private double estimateCollectionThreshold(File[] images, ExecutorService executor,
+			List<File> failed) throws Exception {
+		final SampledHistogram merged = new SampledHistogram(65536);
+		final Set<Integer> bpps = ConcurrentHashMap.newKeySet();
+		forEachImage(images, executor, isolate("histogram", image -> {
+			OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+			SampledHistogram sample;
+			try (IFormatReader reader = openReader(image, metadata)) {
+				int bpp = checkImage(image, reader, metadata);
+				bpps.add(bpp);
+				sample = sampleHistogram(image, reader, bpp);
+			}
+			synchronized (merged) {
+				merged.merge(sample);
+			}
+		}, failed));
+		if (bpps.size() > 1) {
+			throw new RuntimeException("Global thresholding requires all the images "
+					+ "to have the same bit depth.");
+		}
+
+		long start = timer.start();
+		final int nbBins = bpps.contains(1) ? 256 : 65536;
+		double threshold = computeThreshold(toIntHistogram(merged.getHistogram(), nbBins));
+		double error = merged.getStandardError(h -> computeThreshold(toIntHistogram(h, nbBins)));
+		timer.stop(Stage.THRESHOLD, start);
+		LOGGER.log(Level.INFO, String.format("global thresh = %s (%d images), estimated from "
+				+ "%.2f%% of the pixels (%d tiles), standard error %.2f", threshold,
+				images.length - failed.size(),
+				100 * merged.getSampledFraction(), merged.getNbTiles(), error));
+		return threshold;
+	}
+
+	/**
+	 * Converts a merged histogram to the int[] histogram expected by the
+	 * thresholding methods. If a bin exceeds the range of an int, all the bins
+	 * are divided by the same factor, rounded up so that no value present in
+	 * the images disappears from the histogram.
+	 */
+	private static int[] toIntHistogram(long[] merged, int nbBins) {
+		long max = 0;
+		for (int i = 0; i < nbBins; i++) {
+			max = Math.max(max, merged[i]);
+		}
+		long divisor = (max + Integer.MAX_VALUE - 1) / Integer.MAX_VALUE;
+		if (divisor > 1) {
+			LOGGER.log(Level.INFO, "Merged histogram scaled down by " + divisor);
+		}
+		divisor = Math.max(1, divisor);
+		int[] data = new int[nbBins];
+		for (int i = 0; i < nbBins; i++) {
+			data[i] = (int) ((merged[i] + divisor - 1) / divisor);
+		}
+		return data;
+	}
+
+	/**
+	 * Thresholds a single image and writes the result in the output folder.
+	 * This method does not modify the state of the processor and can be
+	 * called concurrently for different images.
+	 * 
+	 * @param image the input image file
+	 * @param fixedThreshold the threshold of the collection, or NaN to
+	 *                       compute the threshold of the image from its own
+	 *                       histogram
+	 * @return the threshold of the image
+	 * @throws Exception
+	 */
+	private double processImage(File image, double fixedThreshold) throws Exception {
+		File outputFile = new File(outputFolder, image.getName());
+		OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+
+		// The same reader session provides the metadata and the pixels
+		long start = timer.start();
+		ImageProcessor ip;
+		int bpp;
+		try (IFormatReader reader = openReader(image, metadata)) {
+			bpp = checkImage(image, reader, metadata);
+			ip = BioFormatsUtils.readImage(reader);
+			metrics.addRead(0, (long) ip.getWidth() * ip.getHeight(),
+					(long) ip.getWidth() * ip.getHeight() * bpp);
+		}
+		start = timer.stop(Stage.READ, start);
+
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		double threshold = fixedThreshold;
+		if (Double.isNaN(threshold)) {
+			int [] data = getCachedHistogram(image, bpp);
+			if (data == null) {
+				data = ip.getHistogram();
+				if (histogramCache != null) {
+					histogramCache.put(image, data);
+				}
+			}
+			start = timer.stop(Stage.HISTOGRAM, start);
+			threshold = computeThreshold(data);
+			start = timer.stop(Stage.THRESHOLD, start);
+		}
+		int maxValue = bpp == 1 ? 255 : 65535;
+
+		/////////////////////////////////////////
+		double min = ip.getMin();
+		double max = ip.getMax();
+		LOGGER.log(Level.INFO, "min = " + min + ", max=" + max);
+		LOGGER.log(Level.INFO, "thresh = " + threshold);
+		PipelineEvents.setThreshold(threshold);
+
+		if (threshold>-1) { 
+			//threshold it
+			/*				if (doIset){
+				if (doIwhite) 
+					ip.setThreshold(threshold+1, maxValue, ImageProcessor.RED_LUT);//IJ.setThreshold(threshold+1, data.length - 1);
+				else
+					ip.setThreshold(0, threshold, ImageProcessor.RED_LUT);//IJ.setThreshold(0,threshold);
+			}
+			else{*/
+			Object pixels = ip.getPixels();
+			int nbPixels = width * height;
+			if (bpp == 1) {
+				new Binarizer(threshold, 8).binarize((byte[]) pixels, 0, nbPixels);
+			} else {
+				new Binarizer(threshold, 16).binarize((short[]) pixels, 0, nbPixels);
+			}
+			ip.setThreshold(maxValue, maxValue, ImageProcessor.NO_LUT_UPDATE);
+			//}
+			start = timer.stop(Stage.BINARIZE, start);
+		}
+		OutputFormat format = getOutputFormat(image, threshold, metadata);
+
+		//Writing the output tiled tiff
+		File partFile = getPartFile(outputFile);
+		try {
+			try (TiledTiffWriter imageWriter = new TiledTiffWriter(partFile, metadata, tileSize,
+					compression, compressionLevel, encoders)) {
+
+				// Determined the number of tiles to write
+				int nXTiles = imageWriter.getNXTiles();
+				int nYTiles = imageWriter.getNYTiles();
+				int rowBytes = imageWriter.getTileBytes() / tileSize;
+				RunMetrics.QueueMetrics encodeQueue = metrics.getQueue("encode", encoders.getMaxPendingTiles());
 
-			byte[] bytesArr = null;
-			
-			switch(pxlType) {
-				case UINT8:
-					LOGGER.log(Level.INFO, image.getName() + " is an 8bpp image");
-					bytesArr = (byte[]) ip.getPixels();
-					break;
-				case UINT16: 
-					LOGGER.log(Level.INFO, image.getName() + " is a 16bpp image");
-					short[] shorts = (short[]) ip.getPixels();
-					
-					//Converting short array to bytes array
-					ByteBuffer byteShortBuf = ByteBuffer.allocate(shorts.length*2);
-					for (short s: shorts) {
-						byteShortBuf.putShort(s);
-					}
-					bytesArr = byteShortBuf.array();
-					break;
-				case FLOAT:
-					LOGGER.log(Level.WARNING, image.getName() + " is a 32bpp image.");
-					LOGGER.log(Level.SEVERE, "32bpp images are not handled by the thresholding plugin. Please convert the image to an 8bpp or a 16bpp image.");
-					throw new UnsupportedOperationException("Unsupported image type.");
-				default:
-					LOGGER.log(Level.WARNING, "the type of this image: " + image.getName() + " is not 8bpp nor 16bpp");
-					LOGGER.log(Level.SEVERE, "Please convert the image type to 8bpp or 16bpp.");
-					throw new UnsupportedOperationException("Unsupported image type.");
-			}
-
-
-			//Writing the output tiled tiff
-			try (OMETiffWriter imageWriter = new OMETiffWriter()) {
-				imageWriter.setMetadataRetrieve(metadata);
-				imageWriter.setTileSizeX(TILE_SIZE);
-				imageWriter.setTileSizeY(TILE_SIZE);
-				imageWriter.setInterleaved(metadata.getPixelsInterleaved(0));
-				imageWriter.setCompression(CompressionType.LZW.getCompression());
-				imageWriter.setId(outputFile.getPath());
-
-				// Determined the number of tiles to read and write
-				int nXTiles = this.width / TILE_SIZE;
-				int nYTiles = this.height / TILE_SIZE;
-				if (nXTiles * TILE_SIZE != this.width) nXTiles++;
-				if (nYTiles * TILE_SIZE != this.height) nYTiles++;
-				
 				for (int k=0; k<nYTiles; k++) {
 					for (int l=0; l<nXTiles; l++) {
-						
-						int tileX = l * TILE_SIZE;
-						int tileY = k * TILE_SIZE;
-						
-						int effTileSizeX = (tileX + TILE_SIZE) < this.width ? TILE_SIZE : this.width - tileX;
-						int effTileSizeY = (tileY + TILE_SIZE) < this.height ? TILE_SIZE : this.height - tileY;
-						
+					
+						int tileX = l * tileSize;
+						int tileY = k * tileSize;
+					
+						int effTileSizeX = (tileX + tileSize) < width ? tileSize : width - tileX;
+						int effTileSizeY = (tileY + tileSize) < height ? tileSize : height - tileY;
+					
 						// Get values of current tile
-						byte[] buf = new byte[effTileSizeX * effTileSizeY * bpp];
-						int offset, i, bufIndex = 0;
-						for (int indexY = tileY; indexY < (tileY + effTileSizeY); indexY ++) {
-							offset = indexY * this.width * bpp;
-							for (int indexX = tileX; indexX < (tileX + effTileSizeX); indexX ++) {
-								i = offset + indexX * bpp;
-								for (int bppIndex = 0; bppIndex < bpp; bppIndex ++) {
-									buf[bufIndex] = bytesArr[i + bppIndex];
-									bufIndex ++;
-								}
-							}
+						byte[] buf = imageWriter.newTileBuffer();
+						if (format == OutputFormat.Same) {
+							copyTile(ip.getPixels(), width, tileX, tileY, effTileSizeX, effTileSizeY,
+									tileSize, buf);
+						} else {
+							copyMaskTile(ip.getPixels(), width, tileX, tileY, effTileSizeX, effTileSizeY,
+									buf, rowBytes, format);
 						}
-						// Write tile
-						imageWriter.saveBytes(0, buf, tileX, tileY, effTileSizeX, effTileSizeY);
+						// Write tile, it is compressed in the background
+						imageWriter.writeTile(buf);
+						encodeQueue.sample(encoders.getNbPendingTiles());
+						metrics.addTilesWritten(1);
 					}
 				}
-				
-			} catch (FormatException | IOException ex) {
-				throw new RuntimeException("Error while setting up image writer for file "
-						+ outputFile + ": " + ex.getMessage(), ex);
+				encodeQueue.addFullNanos(imageWriter.getWaitNanos());
+			
 			}
+			commitOutput(partFile, outputFile);
+		} catch (IOException ex) {
+			throw new RuntimeException("Error while writing image file "
+					+ outputFile + ": " + ex.getMessage(), ex);
+		} finally {
+			partFile.delete();
 		}
+		timer.stop(Stage.WRITE, start);
+		return threshold;
 	}
 	
-	//Inspired from the WIPP-image-assembling-plugin
-	private OMEXMLMetadata getMetadata(File tile) {
-		OMEXMLMetadata metadata;
+	/**
+	 * Thresholds a single image tile by tile, without ever loading the whole
+	 * image in memory. A first pass over the tiles computes the histogram of
+	 * the image, a second pass reads the tiles again, binarizes them and hands
+	 * them to the writer. The memory used is bounded by a few tiles whatever
+	 * the size of the image. The first pass is skipped if the threshold of
+	 * the collection is given.
+	 * This method does not modify the state of the processor and can be
+	 * called concurrently for different images.
+	 * 
+	 * @param image the input image file
+	 * @param fixedThreshold the threshold of the collection, or NaN to
+	 *                       compute the threshold of the image from its own
+	 *                       histogram
+	 * @return the threshold of the image
+	 * @throws Exception
+	 */
+	private double processImageStreaming(File image, double fixedThreshold) throws Exception {
+		File outputFile = new File(outputFolder, image.getName());
+		OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+
+		try (IFormatReader reader = openReader(image, metadata)) {
+			int bpp = checkImage(image, reader, metadata);
+
+			long start;
+			double threshold = fixedThreshold;
+			if (Double.isNaN(threshold)) {
+				// First pass: histogram of the image, skipped if it is cached
+				int[] data = getCachedHistogram(image, bpp);
+				if (data == null) {
+					data = computeHistogram(image, reader, bpp,
+							new ThresholdingType[] {thresholdingType});
+				}
+
+				start = timer.start();
+				threshold = computeThreshold(data);
+				timer.stop(Stage.THRESHOLD, start);
+
+				int min = 0;
+				while (min < data.length - 1 && data[min] == 0) min++;
+				int max = data.length - 1;
+				while (max > 0 && data[max] == 0) max--;
+				LOGGER.log(Level.INFO, "min = " + min + ", max=" + max);
+			}
+			LOGGER.log(Level.INFO, "thresh = " + threshold);
+			PipelineEvents.setThreshold(threshold);
+
+			// Second pass: binarization and writing of the tiles
+			Binarizer binarizer = threshold > -1 ? new Binarizer(threshold, bpp * 8) : null;
+			OutputFormat format = getOutputFormat(image, threshold, metadata);
+			File partFile = getPartFile(outputFile);
+			try {
+				try (TiledTiffWriter imageWriter = new TiledTiffWriter(partFile, metadata, tileSize,
+						compression, compressionLevel, encoders)) {
+					writeTiles(reader, bpp, imageWriter, binarizer, format, 0, imageWriter.getNbTiles());
+					// Time spent flushing the last tiles when closing the writer
+					start = timer.start();
+				}
+				commitOutput(partFile, outputFile);
+			} catch (IOException ex) {
+				throw new RuntimeException("Error while writing image file "
+						+ outputFile + ": " + ex.getMessage(), ex);
+			} finally {
+				partFile.delete();
+			}
+			timer.stop(Stage.WRITE, start);
+			return threshold;
+		}
+	}
+
+	/**
+	 * Reads a range of tiles of an image, binarizes them and hands them to a
+	 * writer.
+	 * 
+	 * @param reader the reader opened on the image
+	 * @param bpp the number of bytes per pixel of the image
+	 * @param writer the writer of the output image or fragment
+	 * @param binarizer the binarizer of the tiles, null to copy them as is
+	 * @param format the format of the output image
+	 * @param firstTile the index of the first tile, in row-major order
+	 * @param endTile the index after the last tile
+	 * @throws Exception
+	 */
+	private void writeTiles(IFormatReader reader, int bpp, TiledTiffWriter writer,
+			Binarizer binarizer, OutputFormat format, int firstTile, int endTile) throws Exception {
+		boolean littleEndian = reader.isLittleEndian();
+		int rowBytes = writer.getTileBytes() / tileSize;
+		RunMetrics.QueueMetrics encodeQueue = metrics.getQueue("encode", encoders.getMaxPendingTiles());
+		// The tiles are decoded ahead while the previous ones are binarized,
+		// and compressed and written in the background
+		try (TilePrefetcher tiles = new TilePrefetcher(reader, bpp, tileSize, firstTile, endTile,
+				prefetchTiles, decoders, timer, metrics)) {
+			for (int i = firstTile; i < endTile; i++) {
+				TilePrefetcher.Tile tile = tiles.next();
+				int nbPixels = tile.width * tile.height;
+				metrics.addRead(1, nbPixels, nbPixels * bpp);
+
+				PipelineEvents.setTile(tile.x, tile.y, tile.width, tile.height);
+				long start = timer.start();
+				if (binarizer != null) {
+					binarizer.binarize(tile.pixels, nbPixels, littleEndian);
+					start = timer.stop(Stage.BINARIZE, start);
+				}
+				byte[] buf = writer.newTileBuffer();
+				if (format == OutputFormat.Same) {
+					padTile(tile.pixels, tile.width, tile.height, bpp, littleEndian, tileSize, buf);
+				} else {
+					for (int row = 0; row < tile.height; row++) {
+						format.packRow(tile.pixels, row * tile.width * bpp, bpp, tile.width,
+								buf, row * rowBytes);
+					}
+				}
+				tiles.recycle(tile);
+				writer.writeTile(buf);
+				encodeQueue.sample(encoders.getNbPendingTiles());
+				metrics.addTilesWritten(1);
+				timer.stop(Stage.WRITE, start);
+			}
+		} finally {
+			encodeQueue.addFullNanos(writer.getWaitNanos());
+			PipelineEvents.clearTile();
+		}
+	}
+
+	/**
+	 * Copies a tile of an image, row by row, into a tile buffer of the
+	 * TiledTiffWriter.
+	 * 
+	 * @param pixels the pixels of the whole image, byte[] for 8bpp images or
+	 *               short[] for 16bpp images
+	 * @param width the width of the image
+	 * @param tileSize the width of the tiles of the TiledTiffWriter
+	 * @param buf the tile buffer, whose rows are tileSize pixels long
+	 */
+	private static void copyTile(Object pixels, int width, int tileX, int tileY,
+			int tileWidth, int tileHeight, int tileSize, byte[] buf) {
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[]) pixels;
+			for (int row = 0; row < tileHeight; row++) {
+				System.arraycopy(bytes, (tileY + row) * width + tileX, buf, row * tileSize, tileWidth);
+			}
+		} else {
+			short[] shorts = (short[]) pixels;
+			ShortBuffer shortBuf = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+			for (int row = 0; row < tileHeight; row++) {
+				shortBuf.position(row * tileSize);
+				shortBuf.put(shorts, (tileY + row) * width + tileX, tileWidth);
+			}
+		}
+	}
+
+	/**
+	 * Copies a tile of a binarized image into a tile buffer of the
+	 * TiledTiffWriter, converting the pixels to a mask format.
+	 * 
+	 * @param pixels the binarized pixels of the whole image, byte[] for 8bpp
+	 *               images or short[] for 16bpp images
+	 * @param width the width of the image
+	 * @param buf the tile buffer
+	 * @param rowBytes the number of bytes of a row of the tile buffer
+	 * @param format the mask format
+	 */
+	private static void copyMaskTile(Object pixels, int width, int tileX, int tileY,
+			int tileWidth, int tileHeight, byte[] buf, int rowBytes, OutputFormat format) {
+		for (int row = 0; row < tileHeight; row++) {
+			int src = (tileY + row) * width + tileX;
+			if (pixels instanceof byte[]) {
+				format.packRow((byte[]) pixels, src, 1, tileWidth, buf, row * rowBytes);
+			} else {
+				format.packRow((short[]) pixels, src, tileWidth, buf, row * rowBytes);
+			}
+		}
+	}
+
+	/**
+	 * Copies a tile read by Bio-Formats, whose rows are tileWidth pixels long,
+	 * into a tile buffer of the TiledTiffWriter, whose rows are tileSize
+	 * pixels long and whose 16bpp pixels are little endian.
+	 */
+	private static void padTile(byte[] tile, int tileWidth, int tileHeight, int bpp,
+			boolean littleEndian, int tileSize, byte[] buf) {
+		int rowBytes = tileWidth * bpp;
+		if (bpp == 1 || littleEndian) {
+			for (int row = 0; row < tileHeight; row++) {
+				System.arraycopy(tile, row * rowBytes, buf, row * tileSize * bpp, rowBytes);
+			}
+		} else {
+			for (int row = 0; row < tileHeight; row++) {
+				int src = row * rowBytes;
+				int dst = row * tileSize * bpp;
+				for (int i = 0; i < rowBytes; i += 2) {
+					buf[dst + i] = tile[src + i + 1];
+					buf[dst + i + 1] = tile[src + i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the histogram of the image from the histogram cache, or null if
+	 *         the cache is disabled or has no valid entry for the image
+	 */
+	private int[] getCachedHistogram(File image, int bpp) {
+		if (histogramCache == null) {
+			return null;
+		}
+		int[] data = histogramCache.get(image);
+		return data != null && data.length == (bpp == 1 ? 256 : 65536) ? data : null;
+	}
+
+	/**
+	 * @return true if the histograms are estimated from a sample of the pixels
+	 */
+	private boolean isSampling() {
+		return histogramSampling < 1;
+	}
+
+	/**
+	 * Computes the histogram of an image for the given methods, exactly or
+	 * from a sample of its tiles. The exact histograms are stored in the
+	 * histogram cache.
+	 * 
+	 * @param image the input image file
+	 * @param reader the reader opened on the image
+	 * @param bpp the number of bytes per pixel of the image
+	 * @param types the methods whose thresholds will be computed, for the
+	 *              estimate of their error if the histogram is sampled
+	 * @return the histogram of the image (256 bins for 8bpp images, 65536
+	 *         bins for 16bpp images)
+	 * @throws Exception
+	 */
+	private int[] computeHistogram(File image, IFormatReader reader, int bpp,
+			ThresholdingType[] types) throws Exception {
+		if (!isSampling()) {
+			int[] data = readHistogram(reader, bpp);
+			if (histogramCache != null) {
+				histogramCache.put(image, data);
+			}
+			return data;
+		}
+
+		SampledHistogram sample = sampleHistogram(image, reader, bpp);
+		int nbBins = bpp == 1 ? 256 : 65536;
+		long start = timer.start();
+		StringBuilder errors = new StringBuilder();
+		for (ThresholdingType type : types) {
+			double error = sample.getStandardError(h -> computeThresholds(toIntHistogram(h, nbBins),
+					new ThresholdingType[] {type}, null)[0]);
+			errors.append(String.format(", %s standard error %.2f", type, error));
+		}
+		timer.stop(Stage.THRESHOLD, start);
+		LOGGER.log(Level.INFO, String.format("%s: histogram estimated from %.2f%% of the pixels "
+				+ "(%d tiles)%s", image.getName(), 100 * sample.getSampledFraction(),
+				sample.getNbTiles(), errors));
+		return toIntHistogram(sample.getHistogram(), nbBins);
+	}
+
+	/**
+	 * Estimates the histogram of an image from a fraction of its pixels: a
+	 * sample of its tiles chosen according to the sampling mode, or all the
+	 * tiles of the smallest level of its pyramid that holds at least this
+	 * fraction of the pixels. The samples are drawn from a seed derived from
+	 * the name of the image, so the estimate does not change between runs.
+	 * 
+	 * @param image the input image file
+	 * @param reader the reader opened on the image, left on its full
+	 *               resolution
+	 * @param bpp the number of bytes per pixel of the image
+	 * @return the sampled histogram
+	 * @throws Exception
+	 */
+	private SampledHistogram sampleHistogram(File image, IFormatReader reader, int bpp)
+			throws Exception {
+		SampledHistogram sample = new SampledHistogram(bpp == 1 ? 256 : 65536);
+		long nbPixels = (long) reader.getSizeX() * reader.getSizeY();
+		sample.addPixels(nbPixels);
+
+		int level = 0;
+		if (samplingMode == SamplingMode.Pyramid) {
+			for (int r = 1; r < reader.getResolutionCount(); r++) {
+				reader.setResolution(r);
+				if ((long) reader.getSizeX() * reader.getSizeY() < histogramSampling * nbPixels) {
+					break;
+				}
+				level = r;
+			}
+			reader.setResolution(level);
+			if (level == 0) {
+				LOGGER.log(Level.WARNING, "No pyramid level of " + image.getName()
+						+ " matches the sampling fraction, its tiles are sampled instead.");
+			}
+		}
+
 		try {
-			OMEXMLService omeXmlService = new ServiceFactory().getInstance(
-					OMEXMLService.class);
-			metadata = omeXmlService.createOMEXMLMetadata();
-		} catch (DependencyException ex) {
-			throw new RuntimeException("Cannot find OMEXMLService", ex);
-		} catch (ServiceException ex) {
-			throw new RuntimeException("Cannot create OME metadata", ex);
-		}
-		try (ImageReader imageReader = new ImageReader()) {
-			IFormatReader reader;
-			reader = imageReader.getReader(tile.getPath());
-			reader.setOriginalMetadataPopulated(false);
-			reader.setMetadataStore(metadata);
-			reader.setId(tile.getPath());
-			this.width = reader.getSizeX();
-			this.height = reader.getSizeY();
-			if (reader.getRGBChannelCount() > 1) {
-				throw new RuntimeException("RGB images not supported by this plugin.");
-			}
-		} catch (FormatException | IOException ex) {
-			throw new RuntimeException("No image reader found for file "
-					+ tile, ex);
-		}
-
-		return metadata;
+			int width = reader.getSizeX();
+			int height = reader.getSizeY();
+			boolean littleEndian = reader.isLittleEndian();
+			int nXTiles = (width + tileSize - 1) / tileSize;
+			int nYTiles = (height + tileSize - 1) / tileSize;
+			int nbTiles = nXTiles * nYTiles;
+			int[] tiles;
+			if (level > 0) {
+				tiles = new int[nbTiles];
+				for (int i = 0; i < nbTiles; i++) {
+					tiles[i] = i;
+				}
+			} else {
+				int nbSamples = (int) Math.max(1, Math.min(nbTiles, Math.ceil(histogramSampling * nbTiles)));
+				tiles = selectTiles(nbTiles, nbSamples, samplingMode != SamplingMode.Random,
+						new Random(image.getName().hashCode()));
+			}
+
+			byte[] tileBuf = new byte[tileSize * tileSize * bpp];
+			int[] tileHistogram = new int[sample.getNbBins()];
+			for (int tile : tiles) {
+				int tileX = (tile % nXTiles) * tileSize;
+				int tileY = (tile / nXTiles) * tileSize;
+				int effTileSizeX = Math.min(tileSize, width - tileX);
+				int effTileSizeY = Math.min(tileSize, height - tileY);
+
+				PipelineEvents.setTile(tileX, tileY, effTileSizeX, effTileSizeY);
+				long start = timer.start();
+				reader.openBytes(0, tileBuf, tileX, tileY, effTileSizeX, effTileSizeY);
+				metrics.addRead(1, effTileSizeX * effTileSizeY, effTileSizeX * effTileSizeY * bpp);
+				start = timer.stop(Stage.READ, start);
+				Arrays.fill(tileHistogram, 0);
+				accumulateHistogram(tileHistogram, tileBuf, effTileSizeX * effTileSizeY, bpp, littleEndian);
+				sample.addTile(tileHistogram);
+				timer.stop(Stage.HISTOGRAM, start);
+			}
+		} finally {
+			PipelineEvents.clearTile();
+			if (level > 0) {
+				reader.setResolution(0);
+			}
+		}
+		return sample;
+	}
+
+	/**
+	 * Selects a sample of tiles, in increasing order so that the image is read
+	 * sequentially.
+	 * 
+	 * @param nbTiles the number of tiles of the image
+	 * @param nbSamples the number of tiles to select
+	 * @param stratified true to select one tile at random in each of
+	 *                   nbSamples runs of consecutive tiles, false to select
+	 *                   the tiles at random over the whole image
+	 * @param random the random generator
+	 * @return the indexes of the selected tiles, in row-major order
+	 */
+	private static int[] selectTiles(int nbTiles, int nbSamples, boolean stratified, Random random) {
+		int[] tiles = new int[nbSamples];
+		if (stratified) {
+			for (int i = 0; i < nbSamples; i++) {
+				long first = (long) i * nbTiles / nbSamples;
+				long end = (long) (i + 1) * nbTiles / nbSamples;
+				tiles[i] = (int) (first + random.nextInt((int) (end - first)));
+			}
+			return tiles;
+		}
+		// Partial Fisher-Yates shuffle
+		int[] all = new int[nbTiles];
+		for (int i = 0; i < nbTiles; i++) {
+			all[i] = i;
+		}
+		for (int i = 0; i < nbSamples; i++) {
+			int j = i + random.nextInt(nbTiles - i);
+			int tmp = all[i];
+			all[i] = all[j];
+			all[j] = tmp;
+		}
+		System.arraycopy(all, 0, tiles, 0, nbSamples);
+		Arrays.sort(tiles);
+		return tiles;
+	}
+
+	/**
+	 * Computes the histogram of an image tile by tile.
+	 * 
+	 * @param reader the reader opened on the image
+	 * @param bpp the number of bytes per pixel of the image
+	 * @return the histogram of the image (256 bins for 8bpp images, 65536
+	 *         bins for 16bpp images)
+	 * @throws Exception
+	 */
+	private int[] readHistogram(IFormatReader reader, int bpp) throws Exception {
+		return toIntHistogram(readHistogram(reader, bpp, 0, getNbTiles(reader)),
+				bpp == 1 ? 256 : 65536);
+	}
+
+	/**
+	 * Computes the histogram of a range of tiles of an image. The counts are
+	 * longs, the range may hold more than 2^31 pixels.
+	 * 
+	 * @param reader the reader opened on the image
+	 * @param bpp the number of bytes per pixel of the image
+	 * @param firstTile the index of the first tile, in row-major order
+	 * @param endTile the index after the last tile
+	 * @return the histogram of the tiles (256 bins for 8bpp images, 65536
+	 *         bins for 16bpp images)
+	 * @throws Exception
+	 */
+	private long[] readHistogram(IFormatReader reader, int bpp, int firstTile, int endTile)
+			throws Exception {
+		int width = reader.getSizeX();
+		int height = reader.getSizeY();
+		boolean littleEndian = reader.isLittleEndian();
+		int nXTiles = (width + tileSize - 1) / tileSize;
+		byte[] tileBuf = new byte[tileSize * tileSize * bpp];
+		long[] data = new long[bpp == 1 ? 256 : 65536];
+		// The tiles are accumulated in an int histogram, added to the long
+		// histogram before any bin can overflow
+		int[] partial = new int[data.length];
+		long maxTilesPerFlush = Math.max(1, Integer.MAX_VALUE / ((long) tileSize * tileSize));
+		int nbAccumulated = 0;
+		for (int tile = firstTile; tile < endTile; tile++) {
+			int tileX = (tile % nXTiles) * tileSize;
+			int tileY = (tile / nXTiles) * tileSize;
+			int effTileSizeX = Math.min(tileSize, width - tileX);
+			int effTileSizeY = Math.min(tileSize, height - tileY);
+
+			PipelineEvents.setTile(tileX, tileY, effTileSizeX, effTileSizeY);
+			long start = timer.start();
+			reader.openBytes(0, tileBuf, tileX, tileY, effTileSizeX, effTileSizeY);
+			metrics.addRead(1, effTileSizeX * effTileSizeY, effTileSizeX * effTileSizeY * bpp);
+			start = timer.stop(Stage.READ, start);
+			accumulateHistogram(partial, tileBuf, effTileSizeX * effTileSizeY, bpp, littleEndian);
+			if (++nbAccumulated == maxTilesPerFlush || tile == endTile - 1) {
+				for (int i = 0; i < data.length; i++) {
+					data[i] += partial[i];
+				}
+				Arrays.fill(partial, 0);
+				nbAccumulated = 0;
+			}
+			timer.stop(Stage.HISTOGRAM, start);
+		}
+		PipelineEvents.clearTile();
+		return data;
 	}
-}
 
+	/**
+	 * Adds the values of the first nbPixels pixels of a tile to a histogram.
+	 */
+	private static void accumulateHistogram(int[] data, byte[] buf, int nbPixels, int bpp,
+			boolean littleEndian) {
+		if (bpp == 1) {
+			for (int i = 0; i < nbPixels; i++) {
+				data[buf[i] & 0xff]++;
+			}
+		} else {
+			int hi = littleEndian ? 1 : 0;
+			int lo = 1 - hi;
+			for (int i = 0; i < nbPixels; i++) {
+				data[((buf[2 * i + hi] & 0xff) << 8) | (buf[2 * i + lo] & 0xff)]++;
+			}
+		}
+	}
+
+	/**
+	 * Computes the threshold of an image from its histogram with the selected
+	 * thresholding method.
+	 * 
+	 * @param data the histogram of the image (256 bins for 8bpp images, 65536
+	 *             bins for 16bpp images)
+	 * @return the threshold, in pixel values
+	 */
+	public double computeThreshold(int [] data) {
+		return computeThresholds(data, new ThresholdingType[] {thresholdingType}, null)[0];
+	}
+
+	/**
+	 * Computes the thresholds of an image from its histogram with several
+	 * thresholding methods. The histogram is bracketed and its statistics
+	 * computed only once for all the methods.
+	 * 
+	 * @param data the histogram of the image (256 bins for 8bpp images, 65536
+	 *             bins for 16bpp images)
+	 * @param types the thresholding methods
+	 * @param methodExecutor the threads evaluating the methods in parallel, or
+	 *                       null to evaluate them in the calling thread
+	 * @return the threshold of each method, in pixel values
+	 */
+	public double[] computeThresholds(int [] data, ThresholdingType[] types,
+			ExecutorService methodExecutor) {
+		boolean noBlack = false;
+		boolean noWhite = false;
+
+		///////////////////////////////////////////
+		if (noBlack) data[0]=0;
+		if (noWhite) data[data.length - 1]=0;
+
+		// bracket the histogram to the range that holds data to make it quicker
+		int minbin=-1, maxbin=-1;
+		for (int i=0; i<data.length; i++){
+			if (data[i]>0) maxbin = i;
+		}
+		for (int i=data.length-1; i>=0; i--){
+			if (data[i]>0) minbin = i;
+		}
+		int [] data2 = new int [(maxbin-minbin)+1];
+		for (int i=minbin; i<=maxbin; i++){
+			data2[i-minbin]= data[i];;
+		}
+		//////////////////////////////////////////
+
+		// The statistics of the bracketed histogram are computed once and
+		// shared by all the steps of the methods
+		HistogramStatistics stats = new HistogramStatistics(data2);
+		final int offset = minbin;
+		double[] thresholds = new double[types.length];
+		if (methodExecutor == null || types.length == 1) {
+			for (int i = 0; i < types.length; i++) {
+				thresholds[i] = computeThreshold(types[i], stats, offset);
+			}
+			return thresholds;
+		}
+
+		List<Future<Double>> futures = new ArrayList<>(types.length);
+		for (ThresholdingType type : types) {
+			futures.add(methodExecutor.submit(() -> computeThreshold(type, stats, offset)));
+		}
+		for (int i = 0; i < types.length; i++) {
+			try {
+				thresholds[i] = futures.get(i).get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(ex);
+			} catch (ExecutionException ex) {
+				throw new RuntimeException("Error while computing the " + types[i]
+						+ " threshold: " + ex.getCause().getMessage(), ex.getCause());
+			}
+		}
+		return thresholds;
+	}
+
+	/**
+	 * Computes a threshold from the statistics of a bracketed histogram.
+	 * 
+	 * @param type the thresholding method
+	 * @param stats the statistics of the bracketed histogram
+	 * @param minbin the pixel value of the first bin of the bracketed histogram
+	 * @return the threshold, in pixel values
+	 */
+	private double computeThreshold(ThresholdingType type, HistogramStatistics stats, int minbin) {
+		double threshold = 0.0;
+
+		// Apply the selected algorithm
+		if (stats.size() < 2){
+			threshold = 0;
+		}else if(type == ThresholdingType.Manual){
+			threshold = this.threshold; // use the value specified by a user
+		}
+		else {
+			threshold = ThresholdingMethods.compute(type, stats);
+		}
+
+		if(type != ThresholdingType.Manual){
+			threshold+=minbin; // add the offset of the histogram
+		}
+
+		return threshold;
+	}
+
+	/**
+	 * Returns the format of the output image and updates its metadata
+	 * accordingly. The mask formats can only be used if the image has been
+	 * binarized.
+	 * 
+	 * @param image the input image file
+	 * @param threshold the threshold of the image
+	 * @param metadata the metadata of the output image
+	 * @return the output format
+	 */
+	private OutputFormat getOutputFormat(File image, double threshold, OMEXMLMetadata metadata) {
+		if (outputFormat == OutputFormat.Same) {
+			return OutputFormat.Same;
+		}
+		if (threshold <= -1) {
+			LOGGER.log(Level.WARNING, "No threshold found for " + image.getName()
+					+ ", the image is written with its original pixel type.");
+			return OutputFormat.Same;
+		}
+		PixelType pxlType = outputFormat.getPixelType(metadata.getPixelsType(0));
+		metadata.setPixelsType(pxlType, 0);
+		// Bio-Formats counts 8 bits per pixel for the bit type, whose pixels
+		// are written as 1 bit samples
+		int significantBits = pxlType == PixelType.BIT ? 1
+				: FormatTools.getBitsPerPixel(FormatTools.pixelTypeFromString(pxlType.getValue()));
+		metadata.setPixelsSignificantBits(new PositiveInteger(significantBits), 0);
+		return outputFormat;
+	}
+
+	/**
+	 * Checks that an image can be thresholded by this plugin, i.e. that it is
+	 * a single channel 8bpp or 16bpp image.
+	 * 
+	 * @param image the input image file
+	 * @param reader the reader opened on the image
+	 * @param metadata the metadata populated by the reader
+	 * @return the number of bytes per pixel of the image
+	 */
+	private static int checkImage(File image, IFormatReader reader, OMEXMLMetadata metadata) {
+		if (reader.getRGBChannelCount() > 1) {
+			throw new RuntimeException("RGB images not supported by this plugin.");
+		}
+
+		PixelType pxlType = metadata.getPixelsType(0);
+		int bpp = FormatTools.getBytesPerPixel(pxlType.getValue());
+		LOGGER.log(Level.INFO, "bpp: " + bpp);
+		PipelineEvents.setImageSize(reader.getSizeX(), reader.getSizeY(), 8 * bpp);
+
+		switch(pxlType) {
+			case UINT8:
+				LOGGER.log(Level.INFO, image.getName() + " is an 8bpp image");
+				break;
+			case UINT16: 
+				LOGGER.log(Level.INFO, image.getName() + " is a 16bpp image");
+				break;
+			case FLOAT:
+				LOGGER.log(Level.WARNING, image.getName() + " is a 32bpp image.");
+				LOGGER.log(Level.SEVERE, "32bpp images are not handled by the thresholding plugin. Please convert the image to an 8bpp or a 16bpp image.");
+				throw new UnsupportedOperationException("Unsupported image type.");
+			default:
+				LOGGER.log(Level.WARNING, "the type of this image: " + image.getName() + " is not 8bpp nor 16bpp");
+				LOGGER.log(Level.SEVERE, "Please convert the image type to 8bpp or 16bpp.");
+				throw new UnsupportedOperationException("Unsupported image type.");
+		}
+		return bpp;
+	}
+}
@@ -11,6 +11,9 @@
  */
 package gov.nist.itl.ssd.thresholding;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
 *
 * @author Peter Bajcsy <peter.bajcsy at nist.gov>
@@ -64,5 +67,36 @@ public class ThresholdingTypeHandler {
 	    		return ThresholdingType.Invalid;		
 	    	}
     }
+
+    /**
+     * Parses a comma separated list of automatic thresholding methods.
+     * 
+     * @param text the list of methods, or "all" for all the automatic methods
+     * @return the methods, or null if one of them is invalid or Manual
+     */
+    public static List<ThresholdingType> matchThresholdingTypes(String text){
+    	List<ThresholdingType> types = new ArrayList<>();
+    	if(text == null){
+    		return null;
+    	}
+    	if(text.trim().equalsIgnoreCase("all")){
+    		for(ThresholdingType type : ThresholdingType.values()){
+    			if(type != ThresholdingType.Manual && type != ThresholdingType.Invalid){
+    				types.add(type);
+    			}
+    		}
+    		return types;
+    	}
+    	for(String name : text.split(",")){
+    		ThresholdingType type = matchThresholdingType(name.trim());
+    		if(type == ThresholdingType.Invalid || type == ThresholdingType.Manual){
+    			return null;
+    		}
+    		if(!types.contains(type)){
+    			types.add(type);
+    		}
+    	}
+    	return types;
+    }
     
 }
@@ -0,0 +1,219 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import java.io.Closeable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import gov.nist.itl.ssd.thresholding.StageTimer.Stage;
+import loci.formats.IFormatReader;
+
+/**
+ * Decoding stage of the pipeline of an image: a decoder thread reads a range
+ * of tiles, in row-major order, ahead of the thread binarizing and writing
+ * them. The decoded tiles wait in a queue bounded by the number of tile
+ * buffers: once all of them are decoded and not yet recycled, the decoder
+ * waits, so a slow binarization or writing holds back the decoding.
+ *
+ * Without decoder threads, the tiles are decoded by next, on the calling
+ * thread, as they were before the pipeline.
+ *
+ * The reader must not be used by another thread, nor closed, until the
+ * prefetcher is closed.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+class TilePrefetcher implements Closeable {
+
+	/**
+	 * A decoded tile. Its pixels are width * height pixels long, in the byte
+	 * order of the reader.
+	 */
+	static class Tile {
+		int index;
+		int x;
+		int y;
+		int width;
+		int height;
+		final byte[] pixels;
+
+		private Tile(byte[] pixels) {
+			this.pixels = pixels;
+		}
+	}
+
+	// Hands the decoder a stop request instead of a free buffer
+	private static final Tile STOP = new Tile(null);
+	// Hands the consumer the failure of the decoder instead of a tile
+	private static final Tile FAILED = new Tile(null);
+
+	private final IFormatReader reader;
+	private final int tileSize;
+	private final int nXTiles;
+	private final int endTile;
+	private final StageTimer timer;
+	private final BlockingQueue<Tile> free = new LinkedBlockingQueue<>();
+	private final BlockingQueue<Tile> decoded = new LinkedBlockingQueue<>();
+	private final RunMetrics.QueueMetrics queueMetrics;
+	private final CountDownLatch done = new CountDownLatch(1);
+	// Null if the tiles are decoded by next
+	private final Future<?> decoder;
+	private int nextTile;
+	private volatile boolean closed = false;
+	private volatile Exception failure;
+
+	/**
+	 * Starts decoding the tiles.
+	 *
+	 * @param reader the reader opened on the image
+	 * @param bpp the number of bytes per pixel of the image
+	 * @param tileSize the width and height of the tiles
+	 * @param firstTile the index of the first tile, in row-major order
+	 * @param endTile the index after the last tile
+	 * @param depth the number of tiles decoded ahead of the one being
+	 *              processed, at least 1
+	 * @param decoders the threads decoding the tiles, null to decode them
+	 *                 in next
+	 * @param timer the timer the decoding is added to, as the READ stage of
+	 *              the image of the calling thread
+	 * @param metrics the metrics the decoding is added to
+	 */
+	TilePrefetcher(IFormatReader reader, int bpp, int tileSize, int firstTile, int endTile,
+			int depth, ExecutorService decoders, StageTimer timer, RunMetrics metrics) {
+		this.reader = reader;
+		this.tileSize = tileSize;
+		this.nXTiles = (reader.getSizeX() + tileSize - 1) / tileSize;
+		this.endTile = endTile;
+		this.timer = timer;
+		this.nextTile = firstTile;
+		if (decoders == null) {
+			this.queueMetrics = null;
+			this.decoder = null;
+			free.add(new Tile(new byte[tileSize * tileSize * bpp]));
+			return;
+		}
+
+		// The consumer holds one more buffer while it processes a tile
+		int nbBuffers = Math.max(1, depth) + 1;
+		this.queueMetrics = metrics.getQueue("decoded", nbBuffers);
+		for (int i = 0; i < nbBuffers; i++) {
+			free.add(new Tile(new byte[tileSize * tileSize * bpp]));
+		}
+		final long[] imageNanos = timer.getImageNanos();
+		final Object image = PipelineEvents.getImage();
+		decoder = decoders.submit(() -> {
+			timer.setImageNanos(imageNanos);
+			PipelineEvents.joinImage(image);
+			try {
+				decode();
+			} catch (Exception ex) {
+				failure = ex;
+				decoded.add(FAILED);
+			} finally {
+				PipelineEvents.endImage();
+				timer.setImageNanos(null);
+				done.countDown();
+			}
+		});
+	}
+
+	// Loop of the decoder thread
+	private void decode() throws Exception {
+		while (nextTile < endTile && !closed) {
+			long wait = System.nanoTime();
+			Tile tile = free.take();
+			queueMetrics.addFullNanos(System.nanoTime() - wait);
+			if (tile == STOP) {
+				return;
+			}
+			decodeTile(tile, nextTile++);
+			decoded.add(tile);
+			queueMetrics.sample(decoded.size());
+		}
+	}
+
+	private void decodeTile(Tile tile, int index) throws Exception {
+		tile.index = index;
+		tile.x = (index % nXTiles) * tileSize;
+		tile.y = (index / nXTiles) * tileSize;
+		tile.width = Math.min(tileSize, reader.getSizeX() - tile.x);
+		tile.height = Math.min(tileSize, reader.getSizeY() - tile.y);
+
+		PipelineEvents.setTile(tile.x, tile.y, tile.width, tile.height);
+		long start = timer.start();
+		reader.openBytes(0, tile.pixels, tile.x, tile.y, tile.width, tile.height);
+		timer.stop(Stage.READ, start);
+	}
+
+	/**
+	 * Waits for the next decoded tile. It must be given back to recycle once
+	 * processed.
+	 *
+	 * @return the next tile of the range
+	 * @throws Exception the exception of the decoder if it failed
+	 */
+	Tile next() throws Exception {
+		if (decoder == null) {
+			Tile tile = free.remove();
+			decodeTile(tile, nextTile++);
+			return tile;
+		}
+		long wait = System.nanoTime();
+		Tile tile = decoded.take();
+		queueMetrics.addEmptyNanos(System.nanoTime() - wait);
+		if (tile == FAILED) {
+			throw failure;
+		}
+		return tile;
+	}
+
+	/**
+	 * Gives back a tile returned by next, so that its buffer is reused for
+	 * the next tiles.
+	 */
+	void recycle(Tile tile) {
+		free.add(tile);
+	}
+
+	/**
+	 * Stops the decoder and waits for it, so that the reader can be closed.
+	 */
+	@Override
+	public void close() {
+		if (decoder == null) {
+			return;
+		}
+		closed = true;
+		free.add(STOP);
+		if (decoder.cancel(false)) {
+			// Never started
+			return;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+/**
+ * Range of the tiles of an image processed by a job, given either as
+ * explicit tile indexes or as a part of the image, so that the jobs do not
+ * need to know the number of tiles of the image.
+ *
+ * The tiles are numbered in row-major order from 0.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class TileRange {
+
+	// Whole image
+	public static final TileRange ALL = new TileRange(0, 1, true);
+
+	private final int first;
+	private final int second;
+	private final boolean part;
+
+	private TileRange(int first, int second, boolean part) {
+		this.first = first;
+		this.second = second;
+		this.part = part;
+	}
+
+	/**
+	 * @param text "first-end", the index of the first tile and the index
+	 *             after the last tile, or "i/n", the part i (from 0) of the
+	 *             image split into n parts of the same number of tiles
+	 * @return the matching range, or null if the text is invalid
+	 */
+	public static TileRange fromString(String text) {
+		String[] bounds;
+		boolean part;
+		if (text.indexOf('/') > 0) {
+			bounds = text.split("/", -1);
+			part = true;
+		} else {
+			bounds = text.split("-", -1);
+			part = false;
+		}
+		if (bounds.length != 2) {
+			return null;
+		}
+		int first;
+		int second;
+		try {
+			first = Integer.parseInt(bounds[0].trim());
+			second = Integer.parseInt(bounds[1].trim());
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+		if (first < 0 || first >= second) {
+			return null;
+		}
+		return new TileRange(first, second, part);
+	}
+
+	/**
+	 * @param nbTiles the number of tiles of the image
+	 * @return the index of the first tile of the range and the index after
+	 *         its last tile, the range being empty if it is beyond the image
+	 */
+	public int[] resolve(int nbTiles) {
+		if (part) {
+			return new int[] {(int) ((long) first * nbTiles / second),
+					(int) ((long) (first + 1) * nbTiles / second)};
+		}
+		return new int[] {Math.min(first, nbTiles), Math.min(second, nbTiles)};
+	}
+
+	@Override
+	public String toString() {
+		return part ? first + "/" + second : first + "-" + second;
+	}
+}
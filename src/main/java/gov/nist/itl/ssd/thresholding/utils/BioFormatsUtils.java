@@ -12,13 +12,27 @@
 package gov.nist.itl.ssd.thresholding.utils;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import loci.common.DebugTools;
-import loci.plugins.BF;
-import loci.plugins.in.ImporterOptions;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.meta.MetadataRetrieve;
+import loci.formats.meta.MetadataStore;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
 
 /**
  * @author Mylene Simon <mylene.simon at nist.gov>
@@ -27,32 +41,142 @@ import loci.plugins.in.ImporterOptions;
 public class BioFormatsUtils {
 	
 	private static final Logger LOGGER = Logger.getLogger(BioFormatsUtils.class.getName()); 
+
+	// Size of the strips used to read 16bpp images, in bytes
+	private static final int STRIP_SIZE = 16 * 1024 * 1024;
 	
-	public static ImagePlus readImage(String filepath) {
-		DebugTools.enableLogging("WARN");
-		ImagePlus imp;
+	/**
+	 * Creates an empty OME-XML metadata store. The OME-XML service is created
+	 * only once per process.
+	 * 
+	 * @return the new metadata store
+	 */
+	public static OMEXMLMetadata createMetadata() {
+		try {
+			return OMEXMLServiceHolder.SERVICE.createOMEXMLMetadata();
+		} catch (ServiceException ex) {
+			throw new RuntimeException("Cannot create OME metadata", ex);
+		}
+	}
+
+	/**
+	 * Copies an OME-XML metadata store, e.g. to write several images from the
+	 * metadata of a single input image.
+	 *
+	 * @param metadata the metadata to copy
+	 * @return the new metadata store
+	 */
+	public static OMEXMLMetadata copyMetadata(OMEXMLMetadata metadata) {
+		try {
+			return OMEXMLServiceHolder.SERVICE.createOMEXMLMetadata(getOMEXML(metadata));
+		} catch (ServiceException ex) {
+			throw new RuntimeException("Cannot copy OME metadata", ex);
+		}
+	}
 
+	/**
+	 * @param metadata the metadata to convert
+	 * @return the OME-XML string of the metadata
+	 * @throws ServiceException
+	 */
+	public static String getOMEXML(MetadataRetrieve metadata) throws ServiceException {
+		return OMEXMLServiceHolder.SERVICE.getOMEXML(metadata);
+	}
+
+	/**
+	 * Opens a Bio-Formats reader on an image without reading any pixel, so
+	 * that the pixels can then be read region by region.
+	 * The caller is responsible for closing the returned reader.
+	 * 
+	 * @param filepath the path of the image
+	 * @param store the metadata store populated by the reader
+	 * @return the initialized reader
+	 */
+	public static IFormatReader openReader(String filepath, MetadataStore store) {
+		return openReader(filepath, store, false);
+	}
+
+	/**
+	 * Opens a reader on an image without reading any pixel, so that the
+	 * pixels can then be read region by region.
+	 * The caller is responsible for closing the returned reader.
+	 * 
+	 * @param filepath the path of the image
+	 * @param store the metadata store populated by the reader
+	 * @param mapped true to decode the pixels of plain tiled TIFF images from
+	 *               a memory mapping of the file instead of with Bio-Formats
+	 * @return the initialized reader
+	 */
+	public static IFormatReader openReader(String filepath, MetadataStore store, boolean mapped) {
+		DebugTools.enableLogging("WARN");
 		File file = new File(filepath);
-		LOGGER.log(Level.INFO, "Loading " + file.getName() + " using BioFormats");
-		
+		LOGGER.log(Level.INFO, "Opening " + file.getName() + " using BioFormats");
+
+		ImageReader reader = new ImageReader();
 		try {
-			ImporterOptions options = new ImporterOptions();
-			options.setId(file.getAbsolutePath());
-			options.setSplitChannels(false);
-			options.setSplitTimepoints(false);
-			options.setSplitFocalPlanes(false);
-			options.setAutoscale(false);
-			options.setVirtual(false);
-
-			ImagePlus[] tmp = BF.openImagePlus(options);
-			imp = tmp[0];
-
-		} catch (Exception e) {
-			LOGGER.log(Level.INFO, "Cannot open image using BioFormats");
-			return null;
+			reader.setOriginalMetadataPopulated(false);
+			// The lower resolutions of pyramids are not separate series
+			reader.setFlattenedResolutions(false);
+			reader.setMetadataStore(store);
+			reader.setId(file.getAbsolutePath());
+		} catch (FormatException | IOException ex) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Cannot close reader of " + file.getName());
+			}
+			throw new RuntimeException("No image reader found for file "
+					+ filepath, ex);
 		}
+		return mapped ? new MappedTiffReader(reader, file) : reader;
+	}
+
+	/**
+	 * Reads the first plane of an image from an opened reader.
+	 * 
+	 * @param reader the reader opened on an 8bpp or 16bpp image
+	 * @return a ByteProcessor or a ShortProcessor holding the pixels
+	 * @throws FormatException
+	 * @throws IOException
+	 */
+	public static ImageProcessor readImage(IFormatReader reader) throws FormatException, IOException {
+		int width = reader.getSizeX();
+		int height = reader.getSizeY();
+		int bpp = FormatTools.getBytesPerPixel(reader.getPixelType());
 
-		return imp;
+		if (bpp == 1) {
+			// Bio-Formats reads 8bpp pixels directly into the ImageJ array
+			byte[] pixels = new byte[width * height];
+			reader.openBytes(0, pixels, 0, 0, width, height);
+			return new ByteProcessor(width, height, pixels);
+		}
+
+		// 16bpp pixels are read by strips to avoid a second full-size copy.
+		// The strips are aligned on the tiles so each tile is decoded once.
+		short[] pixels = new short[width * height];
+		int tileHeight = Math.max(1, reader.getOptimalTileHeight());
+		int stripHeight = Math.max(tileHeight, STRIP_SIZE / (width * bpp) / tileHeight * tileHeight);
+		stripHeight = Math.min(height, stripHeight);
+		byte[] strip = new byte[width * stripHeight * bpp];
+		ByteOrder byteOrder = reader.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		for (int y = 0; y < height; y += stripHeight) {
+			int h = Math.min(stripHeight, height - y);
+			reader.openBytes(0, strip, 0, y, width, h);
+			ByteBuffer.wrap(strip, 0, width * h * bpp).order(byteOrder).asShortBuffer()
+					.get(pixels, y * width, width * h);
+		}
+		return new ShortProcessor(width, height, pixels, null);
+	}
+
+	private static class OMEXMLServiceHolder {
+		private static final OMEXMLService SERVICE;
+		static {
+			try {
+				SERVICE = new ServiceFactory().getInstance(OMEXMLService.class);
+			} catch (DependencyException ex) {
+				throw new RuntimeException("Cannot find OMEXMLService", ex);
+			}
+		}
 	}
 
 }
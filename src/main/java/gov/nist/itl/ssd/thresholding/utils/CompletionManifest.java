@@ -0,0 +1,264 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Manifest of the images already processed in an output folder, so that an
+ * interrupted or partially failed run can be resumed without processing
+ * these images again.
+ *
+ * The manifest is a JSON lines file: each line records an input image (path,
+ * size and modification time), the method and settings it was processed
+ * with, its threshold and the size and CRC32 checksum of its output. An
+ * image is complete only if all of these still match, so a modified input,
+ * other settings or a missing or modified output trigger its processing
+ * again. Lines are appended as the images are completed; a line truncated by
+ * a crash is ignored and its image processed again.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class CompletionManifest {
+
+	private static final Logger LOGGER = Logger.getLogger(CompletionManifest.class.getName());
+
+	private final File file;
+	private final Map<String, Map<String, String>> entries = new HashMap<>();
+
+	/**
+	 * Opens a manifest, reading its entries if it exists.
+	 *
+	 * @param file the manifest file, in the output folder
+	 * @throws IOException
+	 */
+	public CompletionManifest(File file) throws IOException {
+		this.file = file;
+		if (!file.isFile()) {
+			return;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Map<String, String> entry = parseLine(line);
+				if (entry != null && entry.containsKey("input")) {
+					entries.put(entry.get("input"), entry);
+				}
+			}
+		}
+		// Terminates a line truncated by a crash so that the next entries
+		// are not appended to it
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() > 0) {
+				raf.seek(raf.length() - 1);
+				if (raf.read() != '\n') {
+					raf.write('\n');
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param input the input image
+	 * @param output the output image
+	 * @param method the thresholding method
+	 * @param settings the other settings the output depends on
+	 * @param threshold the expected threshold, or NaN if any threshold
+	 *                  recorded for the image is valid
+	 * @return true if the image has already been processed with these
+	 *         settings and its output is unchanged
+	 */
+	public synchronized boolean isComplete(File input, File output, String method, String settings,
+			double threshold) {
+		Map<String, String> entry = entries.get(input.getAbsolutePath());
+		if (entry == null
+				|| !String.valueOf(input.length()).equals(entry.get("size"))
+				|| !String.valueOf(input.lastModified()).equals(entry.get("mtime"))
+				|| !method.equals(entry.get("method"))
+				|| !settings.equals(entry.get("settings"))
+				|| !output.getName().equals(entry.get("output"))
+				|| !output.isFile()
+				|| !String.valueOf(output.length()).equals(entry.get("outputsize"))) {
+			return false;
+		}
+		if (!Double.isNaN(threshold) && !String.valueOf(threshold).equals(entry.get("threshold"))) {
+			return false;
+		}
+		try {
+			return checksum(output).equals(entry.get("checksum"));
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Records an image as complete. Its output must have been fully written.
+	 *
+	 * @param input the input image
+	 * @param output the output image
+	 * @param method the thresholding method
+	 * @param settings the other settings the output depends on
+	 * @param threshold the threshold of the image
+	 * @throws IOException
+	 */
+	public synchronized void add(File input, File output, String method, String settings,
+			double threshold) throws IOException {
+		Map<String, String> entry = new HashMap<>();
+		entry.put("input", input.getAbsolutePath());
+		entry.put("size", String.valueOf(input.length()));
+		entry.put("mtime", String.valueOf(input.lastModified()));
+		entry.put("method", method);
+		entry.put("settings", settings);
+		entry.put("threshold", String.valueOf(threshold));
+		entry.put("output", output.getName());
+		entry.put("outputsize", String.valueOf(output.length()));
+		entry.put("checksum", checksum(output));
+
+		StringBuilder line = new StringBuilder("{");
+		for (String key : new String[] {"input", "size", "mtime", "method", "settings", "threshold",
+				"output", "outputsize", "checksum"}) {
+			if (line.length() > 1) {
+				line.append(", ");
+			}
+			line.append(quote(key)).append(": ").append(quote(entry.get(key)));
+		}
+		line.append("}\n");
+		try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			writer.write(line.toString());
+		}
+		entries.put(entry.get("input"), entry);
+	}
+
+	/**
+	 * @return the CRC32 of a file, in hexadecimal
+	 */
+	public static String checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				crc.update(buf, 0, n);
+			}
+		}
+		return String.format("%08x", crc.getValue());
+	}
+
+	private static String quote(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Parses a line written by add: a flat JSON object whose values are all
+	 * strings.
+	 *
+	 * @return the fields of the line, or null if it is malformed
+	 */
+	private static Map<String, String> parseLine(String line) {
+		Map<String, String> fields = new HashMap<>();
+		int[] pos = {skipSpaces(line, 0)};
+		if (pos[0] >= line.length() || line.charAt(pos[0]) != '{') {
+			return null;
+		}
+		pos[0] = skipSpaces(line, pos[0] + 1);
+		while (pos[0] < line.length() && line.charAt(pos[0]) != '}') {
+			String key = parseString(line, pos);
+			pos[0] = skipSpaces(line, pos[0]);
+			if (key == null || pos[0] >= line.length() || line.charAt(pos[0]) != ':') {
+				return null;
+			}
+			pos[0] = skipSpaces(line, pos[0] + 1);
+			String value = parseString(line, pos);
+			if (value == null) {
+				return null;
+			}
+			fields.put(key, value);
+			pos[0] = skipSpaces(line, pos[0]);
+			if (pos[0] < line.length() && line.charAt(pos[0]) == ',') {
+				pos[0] = skipSpaces(line, pos[0] + 1);
+			}
+		}
+		if (pos[0] >= line.length()) {
+			LOGGER.log(Level.WARNING, "Ignoring truncated manifest line: " + line);
+			return null;
+		}
+		return fields;
+	}
+
+	// Parses the string starting at pos[0] and moves pos[0] after it
+	private static String parseString(String line, int[] pos) {
+		int i = pos[0];
+		if (i >= line.length() || line.charAt(i) != '"') {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (i++; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				pos[0] = i + 1;
+				return sb.toString();
+			}
+			if (c == '\\') {
+				if (++i >= line.length()) {
+					return null;
+				}
+				c = line.charAt(i);
+				if (c == 'u') {
+					if (i + 4 >= line.length()) {
+						return null;
+					}
+					try {
+						c = (char) Integer.parseInt(line.substring(i + 1, i + 5), 16);
+					} catch (NumberFormatException ex) {
+						return null;
+					}
+					i += 4;
+				}
+			}
+			sb.append(c);
+		}
+		return null;
+	}
+
+	private static int skipSpaces(String line, int i) {
+		while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent cache of the histograms of the images, so that running several
+ * thresholding methods on the same collection decodes the images only once.
+ *
+ * Each image has one entry file in the cache folder, named after a hash of
+ * its absolute path. An entry is valid only if the size, the modification
+ * time and the content hash of the image are unchanged. The content hash is
+ * computed on the first, middle and last blocks of the file, so checking an
+ * entry reads at most a few hundred kB whatever the size of the image.
+ *
+ * Entry format: the magic "WTHC", a version byte, the size and modification
+ * time of the image, the 32 bytes of the content hash, the number of bins,
+ * the number of non-empty bins, then for each non-empty bin the distance to
+ * the previous one and its count. The integers after the hash are varints, so
+ * that the sparse 16bpp histograms take a few kB.
+ *
+ * The cache is a best effort: entries that can not be read or written are
+ * ignored with a warning. It can be shared by concurrent runs since entries
+ * are written to a temporary file first and then renamed.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class HistogramCache {
+
+	private static final Logger LOGGER = Logger.getLogger(HistogramCache.class.getName());
+
+	private static final byte[] MAGIC = "WTHC".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".hist";
+
+	// Size of each of the 3 blocks of the file hashed for the content hash
+	private static final int HASH_BLOCK_SIZE = 64 * 1024;
+
+	private final File folder;
+
+	/**
+	 * @param folder the cache folder, created if it does not exist
+	 * @throws IOException if the folder can not be created
+	 */
+	public HistogramCache(File folder) throws IOException {
+		if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+			throw new IOException("Can not create folder " + folder);
+		}
+		this.folder = folder;
+	}
+
+	/**
+	 * Returns the cached histogram of an image.
+	 *
+	 * @param image the image file
+	 * @return the histogram, or null if there is no valid entry for the image
+	 */
+	public int[] get(File image) {
+		File entry = getEntry(image);
+		if (!entry.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(entry.toPath())))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION) {
+				return null;
+			}
+			if (in.readLong() != image.length() || in.readLong() != image.lastModified()) {
+				return null;
+			}
+			byte[] hash = new byte[32];
+			in.readFully(hash);
+			if (!Arrays.equals(hash, contentHash(image))) {
+				return null;
+			}
+			int nbBins = (int) readVarLong(in);
+			if (nbBins != 256 && nbBins != 65536) {
+				return null;
+			}
+			int[] histogram = new int[nbBins];
+			int nbNonEmpty = (int) readVarLong(in);
+			int bin = -1;
+			for (int i = 0; i < nbNonEmpty; i++) {
+				bin += (int) readVarLong(in);
+				histogram[bin] = (int) readVarLong(in);
+			}
+			return histogram;
+		} catch (IOException | RuntimeException ex) {
+			LOGGER.log(Level.WARNING, "Ignoring invalid histogram cache entry " + entry
+					+ ": " + ex.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the histogram of an image in the cache.
+	 *
+	 * @param image the image file
+	 * @param histogram the histogram of the image (256 or 65536 bins)
+	 */
+	public void put(File image, int[] histogram) {
+		File entry = getEntry(image);
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(entry.getName(), ".tmp", folder);
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+				out.write(MAGIC);
+				out.writeByte(VERSION);
+				out.writeLong(image.length());
+				out.writeLong(image.lastModified());
+				out.write(contentHash(image));
+				writeVarLong(out, histogram.length);
+				int nbNonEmpty = 0;
+				for (int count : histogram) {
+					if (count != 0) nbNonEmpty++;
+				}
+				writeVarLong(out, nbNonEmpty);
+				int previous = -1;
+				for (int bin = 0; bin < histogram.length; bin++) {
+					if (histogram[bin] != 0) {
+						writeVarLong(out, bin - previous);
+						writeVarLong(out, histogram[bin]);
+						previous = bin;
+					}
+				}
+			}
+			Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Can not write histogram cache entry " + entry
+					+ ": " + ex.getMessage());
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	private File getEntry(File image) {
+		byte[] digest = sha256().digest(
+				image.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+		return new File(folder, toHex(digest, 16) + EXTENSION);
+	}
+
+	/**
+	 * Hash of the size and of the first, middle and last blocks of a file.
+	 */
+	private static byte[] contentHash(File file) throws IOException {
+		MessageDigest digest = sha256();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			long length = raf.length();
+			digest.update(Long.toString(length).getBytes(StandardCharsets.US_ASCII));
+			byte[] block = new byte[HASH_BLOCK_SIZE];
+			if (length <= 3L * HASH_BLOCK_SIZE) {
+				hashRange(raf, 0, length, block, digest);
+			} else {
+				hashRange(raf, 0, HASH_BLOCK_SIZE, block, digest);
+				hashRange(raf, (length - HASH_BLOCK_SIZE) / 2, HASH_BLOCK_SIZE, block, digest);
+				hashRange(raf, length - HASH_BLOCK_SIZE, HASH_BLOCK_SIZE, block, digest);
+			}
+		}
+		return digest.digest();
+	}
+
+	private static void hashRange(RandomAccessFile raf, long offset, long length, byte[] block,
+			MessageDigest digest) throws IOException {
+		raf.seek(offset);
+		while (length > 0) {
+			int n = raf.read(block, 0, (int) Math.min(block.length, length));
+			if (n < 0) {
+				throw new EOFException();
+			}
+			digest.update(block, 0, n);
+			length -= n;
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private static String toHex(byte[] bytes, int length) {
+		StringBuilder sb = new StringBuilder(2 * length);
+		for (int i = 0; i < length; i++) {
+			sb.append(String.format("%02x", bytes[i]));
+		}
+		return sb.toString();
+	}
+
+	static void writeVarLong(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+}
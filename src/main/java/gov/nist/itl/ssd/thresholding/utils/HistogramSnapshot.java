@@ -0,0 +1,208 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Histogram of a range of tiles of an image, written by one of the jobs
+ * computing the histogram of a large image in parallel. The snapshots of
+ * all the ranges are then merged into the histogram of the whole image.
+ *
+ * File format: the magic "WTHS", a version byte, the size and modification
+ * time of the image, the tile size, the number of tiles of the image, the
+ * range of tiles, the number of bins, the number of non-empty bins, then for
+ * each non-empty bin the distance to the previous one and its count. The
+ * integers after the modification time are varints, as in the histogram
+ * cache. The counts are longs, a range of tiles may hold more than 2^31
+ * pixels of the same value.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class HistogramSnapshot {
+
+	private static final byte[] MAGIC = "WTHS".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 1;
+
+	private final long imageSize;
+	private final long imageLastModified;
+	private final int tileSize;
+	private final int nbTiles;
+	private final int firstTile;
+	private final int endTile;
+	private final long[] histogram;
+
+	/**
+	 * @param image the image file
+	 * @param tileSize the size of the tiles the ranges are counted in
+	 * @param nbTiles the number of tiles of the image
+	 * @param firstTile the index of the first tile of the range, in row-major
+	 *                  order
+	 * @param endTile the index after the last tile of the range
+	 * @param histogram the histogram of the tiles of the range (256 or 65536
+	 *                  bins)
+	 */
+	public HistogramSnapshot(File image, int tileSize, int nbTiles, int firstTile, int endTile,
+			long[] histogram) {
+		this(image.length(), image.lastModified(), tileSize, nbTiles, firstTile, endTile, histogram);
+	}
+
+	private HistogramSnapshot(long imageSize, long imageLastModified, int tileSize, int nbTiles,
+			int firstTile, int endTile, long[] histogram) {
+		this.imageSize = imageSize;
+		this.imageLastModified = imageLastModified;
+		this.tileSize = tileSize;
+		this.nbTiles = nbTiles;
+		this.firstTile = firstTile;
+		this.endTile = endTile;
+		this.histogram = histogram;
+	}
+
+	public int getFirstTile() {
+		return firstTile;
+	}
+
+	public int getEndTile() {
+		return endTile;
+	}
+
+	/**
+	 * Writes the snapshot to a file.
+	 */
+	public void write(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(file.toPath())))) {
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(imageSize);
+			out.writeLong(imageLastModified);
+			HistogramCache.writeVarLong(out, tileSize);
+			HistogramCache.writeVarLong(out, nbTiles);
+			HistogramCache.writeVarLong(out, firstTile);
+			HistogramCache.writeVarLong(out, endTile);
+			HistogramCache.writeVarLong(out, histogram.length);
+			int nbNonEmpty = 0;
+			for (long count : histogram) {
+				if (count != 0) nbNonEmpty++;
+			}
+			HistogramCache.writeVarLong(out, nbNonEmpty);
+			int previous = -1;
+			for (int bin = 0; bin < histogram.length; bin++) {
+				if (histogram[bin] != 0) {
+					HistogramCache.writeVarLong(out, bin - previous);
+					HistogramCache.writeVarLong(out, histogram[bin]);
+					previous = bin;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a snapshot written by write.
+	 *
+	 * @throws IOException if the file is not a valid snapshot
+	 */
+	public static HistogramSnapshot read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION) {
+				throw new IOException(file.getName() + " is not a histogram snapshot");
+			}
+			long imageSize = in.readLong();
+			long imageLastModified = in.readLong();
+			int tileSize = (int) HistogramCache.readVarLong(in);
+			int nbTiles = (int) HistogramCache.readVarLong(in);
+			int firstTile = (int) HistogramCache.readVarLong(in);
+			int endTile = (int) HistogramCache.readVarLong(in);
+			int nbBins = (int) HistogramCache.readVarLong(in);
+			if ((nbBins != 256 && nbBins != 65536) || firstTile >= endTile || endTile > nbTiles) {
+				throw new IOException("Invalid histogram snapshot " + file.getName());
+			}
+			long[] histogram = new long[nbBins];
+			int nbNonEmpty = (int) HistogramCache.readVarLong(in);
+			int bin = -1;
+			for (int i = 0; i < nbNonEmpty; i++) {
+				bin += (int) HistogramCache.readVarLong(in);
+				if (bin < 0 || bin >= nbBins) {
+					throw new IOException("Invalid histogram snapshot " + file.getName());
+				}
+				histogram[bin] = HistogramCache.readVarLong(in);
+			}
+			return new HistogramSnapshot(imageSize, imageLastModified, tileSize, nbTiles,
+					firstTile, endTile, histogram);
+		}
+	}
+
+	/**
+	 * Merges the snapshots of an image into the histogram of the whole image.
+	 * The snapshots must have been computed from the current version of the
+	 * image with the same tile size, and cover each of its tiles exactly once.
+	 *
+	 * @param image the image file
+	 * @param snapshots the snapshots of the image
+	 * @return the histogram of the image
+	 * @throws IOException if the snapshots do not match the image or do not
+	 *                     cover all its tiles exactly once
+	 */
+	public static long[] merge(File image, List<HistogramSnapshot> snapshots) throws IOException {
+		if (snapshots.isEmpty()) {
+			throw new IOException("No histogram snapshot of " + image.getName());
+		}
+		List<HistogramSnapshot> sorted = new ArrayList<>(snapshots);
+		sorted.sort(Comparator.comparingInt(HistogramSnapshot::getFirstTile));
+		HistogramSnapshot reference = sorted.get(0);
+		long[] merged = new long[reference.histogram.length];
+		int nextTile = 0;
+		for (HistogramSnapshot snapshot : sorted) {
+			if (snapshot.imageSize != image.length()
+					|| snapshot.imageLastModified != image.lastModified()) {
+				throw new IOException("The histogram snapshot of the tiles [" + snapshot.firstTile
+						+ ", " + snapshot.endTile + "[ was computed from another version of "
+						+ image.getName());
+			}
+			if (snapshot.tileSize != reference.tileSize || snapshot.nbTiles != reference.nbTiles
+					|| snapshot.histogram.length != merged.length) {
+				throw new IOException("The histogram snapshots of " + image.getName()
+						+ " were computed with different tile sizes");
+			}
+			if (snapshot.firstTile != nextTile) {
+				throw new IOException("The histogram snapshots of " + image.getName()
+						+ (snapshot.firstTile > nextTile ? " miss the tiles [" : " overlap on the tiles [")
+						+ Math.min(nextTile, snapshot.firstTile) + ", "
+						+ Math.max(nextTile, snapshot.firstTile) + "[");
+			}
+			for (int i = 0; i < merged.length; i++) {
+				merged[i] += snapshot.histogram[i];
+			}
+			nextTile = snapshot.endTile;
+		}
+		if (nextTile != reference.nbTiles) {
+			throw new IOException("The histogram snapshots of " + image.getName()
+					+ " miss the tiles [" + nextTile + ", " + reference.nbTiles + "[");
+		}
+		return merged;
+	}
+}
@@ -0,0 +1,656 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ReaderWrapper;
+
+/**
+ * Reader decoding the pixels of plain tiled or stripped TIFF files itself,
+ * from a memory mapping of the file, instead of through the Bio-Formats
+ * stack. The metadata still come from the wrapped Bio-Formats reader.
+ *
+ * The fast path handles the full resolution of single plane 8 or 16 bits
+ * grayscale images, uncompressed, LZW or deflate compressed, with or without
+ * horizontal predictor: the layout of the tiledtiff images of WIPP and of
+ * the images written by the TiledTiffWriter. Uncompressed pixels are copied
+ * from the mapping into the caller's buffer, and a compressed tile covering
+ * the whole request is decoded directly into it. Any other file, plane,
+ * series or resolution is read by the wrapped reader.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class MappedTiffReader extends ReaderWrapper {
+
+	private static final Logger LOGGER = Logger.getLogger(MappedTiffReader.class.getName());
+
+	// TIFF tags
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int PHOTOMETRIC_INTERPRETATION = 262;
+	private static final int FILL_ORDER = 266;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int ROWS_PER_STRIP = 278;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int PLANAR_CONFIGURATION = 284;
+	private static final int PREDICTOR = 317;
+	private static final int TILE_WIDTH = 322;
+	private static final int TILE_LENGTH = 323;
+	private static final int TILE_OFFSETS = 324;
+	private static final int TILE_BYTE_COUNTS = 325;
+	private static final int SAMPLE_FORMAT = 339;
+
+	// TIFF compressions
+	private static final int NONE = 1;
+	private static final int LZW = 5;
+	private static final int DEFLATE = 8;
+	private static final int ADOBE_DEFLATE = 32946;
+
+	// The file is mapped by segments of 1 GB, each one extended by the
+	// largest tile so that every tile is entirely in one segment
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	private final File file;
+	// Null if the file is read by the wrapped reader
+	private final Layout layout;
+	// Buffers reused for the tiles that are not decoded in place
+	private byte[] tileBuf = new byte[0];
+	private byte[] compressedBuf = new byte[0];
+	private final Inflater inflater = new Inflater();
+
+	/**
+	 * Layout of the first image of a TIFF file.
+	 */
+	private static class Layout {
+		int width;
+		int height;
+		int bpp;
+		boolean littleEndian;
+		int compression;
+		boolean predictor;
+		// Tiles, or strips as tiles as wide as the image
+		boolean strips;
+		int tileWidth;
+		int tileHeight;
+		int nXTiles;
+		long[] offsets;
+		long[] byteCounts;
+		MappedByteBuffer[] segments;
+
+		/**
+		 * @return the number of rows stored in the tiles of a row of tiles:
+		 *         the tiles are padded to their full height, but not the
+		 *         last strip
+		 */
+		int getRows(int tileRow) {
+			return strips ? Math.min(tileHeight, height - tileRow * tileHeight) : tileHeight;
+		}
+	}
+
+	/**
+	 * @param reader the Bio-Formats reader opened on the file
+	 * @param file the file
+	 */
+	public MappedTiffReader(IFormatReader reader, File file) {
+		super(reader);
+		this.file = file;
+		Layout parsed = null;
+		try {
+			parsed = parse(reader, file);
+		} catch (IOException | RuntimeException ex) {
+			LOGGER.log(Level.FINE, "Cannot parse " + file.getName() + ": " + ex.getMessage());
+		}
+		this.layout = parsed;
+		LOGGER.log(Level.FINE, file.getName() + (layout != null ? " is read from a memory mapping"
+				: " is read by Bio-Formats"));
+	}
+
+	/**
+	 * @return true if the pixels of the full resolution are decoded from the
+	 *         memory mapping, false if they are decoded by Bio-Formats or if
+	 *         the reader is closed
+	 */
+	public boolean isMapped() {
+		return layout != null && layout.segments != null;
+	}
+
+	@Override
+	public byte[] openBytes(int no, int x, int y, int w, int h) throws FormatException, IOException {
+		if (!isFastPath(no)) {
+			return super.openBytes(no, x, y, w, h);
+		}
+		return openBytes(no, new byte[w * h * layout.bpp], x, y, w, h);
+	}
+
+	@Override
+	public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+			throws FormatException, IOException {
+		if (!isFastPath(no)) {
+			return super.openBytes(no, buf, x, y, w, h);
+		}
+		if (x < 0 || y < 0 || w < 1 || h < 1 || x + w > layout.width || y + h > layout.height
+				|| (long) w * h * layout.bpp > buf.length) {
+			throw new FormatException("Invalid region " + x + "," + y + " " + w + "x" + h
+					+ " of " + file.getName());
+		}
+		int bpp = layout.bpp;
+		int tw = layout.tileWidth;
+		int th = layout.tileHeight;
+		for (int ty = y / th; ty <= (y + h - 1) / th; ty++) {
+			for (int tx = x / tw; tx <= (x + w - 1) / tw; tx++) {
+				int tile = ty * layout.nXTiles + tx;
+				int x0 = Math.max(x, tx * tw);
+				int x1 = Math.min(x + w, (tx + 1) * tw);
+				int y0 = Math.max(y, ty * th);
+				int y1 = Math.min(y + h, (ty + 1) * th);
+				int rowBytes = (x1 - x0) * bpp;
+				ByteBuffer segment = getSegment(layout.offsets[tile]);
+				int position = getPosition(layout.offsets[tile]);
+
+				if (layout.compression == NONE && !layout.predictor) {
+					// Copied from the mapping
+					for (int row = y0; row < y1; row++) {
+						segment.get(position + ((row - ty * th) * tw + x0 - tx * tw) * bpp,
+								buf, ((row - y) * w + x0 - x) * bpp, rowBytes);
+					}
+					continue;
+				}
+
+				int tileRows = layout.getRows(ty);
+				int tileBytes = tw * tileRows * bpp;
+				if (x == tx * tw && w == tw && y == ty * th && h == tileRows) {
+					// The tile covers the whole request: decoded in place
+					decodeTile(tile, segment, position, buf, tileBytes);
+					continue;
+				}
+				if (tileBuf.length < tileBytes) {
+					tileBuf = new byte[tileBytes];
+				}
+				decodeTile(tile, segment, position, tileBuf, tileBytes);
+				for (int row = y0; row < y1; row++) {
+					System.arraycopy(tileBuf, ((row - ty * th) * tw + x0 - tx * tw) * bpp,
+							buf, ((row - y) * w + x0 - x) * bpp, rowBytes);
+				}
+			}
+		}
+		return buf;
+	}
+
+	@Override
+	public void close(boolean fileOnly) throws IOException {
+		if (!fileOnly) {
+			release();
+		}
+		super.close(fileOnly);
+	}
+
+	@Override
+	public void close() throws IOException {
+		release();
+		super.close();
+	}
+
+	/**
+	 * Drops the references to the mappings, so that they can be unmapped
+	 * without waiting for this reader to be collected.
+	 */
+	private void release() {
+		inflater.end();
+		if (layout != null) {
+			layout.segments = null;
+		}
+		tileBuf = new byte[0];
+		compressedBuf = new byte[0];
+	}
+
+	private boolean isFastPath(int no) {
+		return isMapped() && no == 0 && getSeries() == 0 && getResolution() == 0;
+	}
+
+	private ByteBuffer getSegment(long offset) {
+		return layout.segments[(int) (offset / SEGMENT_SIZE)];
+	}
+
+	private static int getPosition(long offset) {
+		return (int) (offset % SEGMENT_SIZE);
+	}
+
+	/**
+	 * Decodes a tile into the first tileBytes bytes of a buffer.
+	 */
+	private void decodeTile(int tile, ByteBuffer segment, int position, byte[] dst, int tileBytes)
+			throws FormatException {
+		int byteCount = (int) layout.byteCounts[tile];
+		switch (layout.compression) {
+			case NONE:
+				segment.get(position, dst, 0, tileBytes);
+				break;
+			case LZW:
+				if (compressedBuf.length < byteCount) {
+					compressedBuf = new byte[byteCount];
+				}
+				segment.get(position, compressedBuf, 0, byteCount);
+				decodeLzw(compressedBuf, byteCount, dst, tileBytes);
+				break;
+			default:
+				inflater.reset();
+				inflater.setInput(segment.slice(position, byteCount));
+				try {
+					int n = 0;
+					while (n < tileBytes && !inflater.finished() && !inflater.needsInput()) {
+						int inflated = inflater.inflate(dst, n, tileBytes - n);
+						if (inflated == 0) {
+							// A stream needing a preset dictionary makes no
+							// progress
+							throw new FormatException("Cannot inflate tile " + tile + " in "
+									+ file.getName() + (inflater.needsDictionary()
+											? ": a preset dictionary is needed" : ""));
+						}
+						n += inflated;
+					}
+					if (n < tileBytes) {
+						throw new FormatException("Truncated tile " + tile + " in " + file.getName());
+					}
+				} catch (DataFormatException ex) {
+					throw new FormatException("Invalid tile " + tile + " in " + file.getName(), ex);
+				}
+		}
+		if (layout.predictor) {
+			undoPredictor(dst, tileBytes);
+		}
+	}
+
+	/**
+	 * Decodes TIFF LZW data: codes of 9 to 12 bits, most significant bit
+	 * first, with the code width increased one code early. Each code of the
+	 * table is a run of the output already decoded, so the strings are copied
+	 * from the output instead of being rebuilt from a prefix table.
+	 */
+	private void decodeLzw(byte[] src, int srcLength, byte[] dst, int dstLength)
+			throws FormatException {
+		int[] offsets = new int[4096];
+		int[] lengths = new int[4096];
+		int in = 0;
+		int out = 0;
+		int bits = 0;
+		int nbBits = 0;
+		int codeWidth = 9;
+		int next = 258;
+		int previousOffset = -1;
+		int previousLength = 0;
+		while (out < dstLength) {
+			while (nbBits < codeWidth) {
+				if (in >= srcLength) {
+					throw new FormatException("Truncated LZW data in " + file.getName());
+				}
+				bits = (bits << 8) | (src[in++] & 0xFF);
+				nbBits += 8;
+			}
+			int code = (bits >>> (nbBits - codeWidth)) & ((1 << codeWidth) - 1);
+			nbBits -= codeWidth;
+			if (code == 257) {
+				break;
+			}
+			if (code == 256) {
+				codeWidth = 9;
+				next = 258;
+				previousOffset = -1;
+				continue;
+			}
+
+			int start = out;
+			if (code < 256) {
+				dst[out++] = (byte) code;
+			} else if (code < next && previousOffset >= 0) {
+				int length = lengths[code];
+				if (out + length > dstLength) {
+					throw new FormatException("Invalid LZW data in " + file.getName());
+				}
+				System.arraycopy(dst, offsets[code], dst, out, length);
+				out += length;
+			} else if (code == next && previousOffset >= 0) {
+				// The previous string followed by its first byte
+				if (out + previousLength + 1 > dstLength) {
+					throw new FormatException("Invalid LZW data in " + file.getName());
+				}
+				System.arraycopy(dst, previousOffset, dst, out, previousLength);
+				out += previousLength;
+				dst[out++] = dst[previousOffset];
+			} else {
+				throw new FormatException("Invalid LZW code " + code + " in " + file.getName());
+			}
+
+			// The new string is the previous one followed by the first byte
+			// of this one, which are contiguous in the output
+			if (previousOffset >= 0 && next < 4096) {
+				offsets[next] = previousOffset;
+				lengths[next] = previousLength + 1;
+				next++;
+				if (next == (1 << codeWidth) - 1 && codeWidth < 12) {
+					codeWidth++;
+				}
+			}
+			previousOffset = start;
+			previousLength = out - start;
+		}
+		if (out < dstLength) {
+			throw new FormatException("Truncated LZW data in " + file.getName());
+		}
+	}
+
+	/**
+	 * Undoes the horizontal differencing of the rows of a tile.
+	 */
+	private void undoPredictor(byte[] tile, int tileBytes) {
+		int rowBytes = layout.tileWidth * layout.bpp;
+		for (int row = 0; row + rowBytes <= tileBytes; row += rowBytes) {
+			if (layout.bpp == 1) {
+				for (int i = row + 1; i < row + rowBytes; i++) {
+					tile[i] += tile[i - 1];
+				}
+			} else {
+				int lo = layout.littleEndian ? 0 : 1;
+				int hi = 1 - lo;
+				int previous = (tile[row + lo] & 0xFF) | (tile[row + hi] & 0xFF) << 8;
+				for (int i = row + 2; i < row + rowBytes; i += 2) {
+					previous += (tile[i + lo] & 0xFF) | (tile[i + hi] & 0xFF) << 8;
+					tile[i + lo] = (byte) previous;
+					tile[i + hi] = (byte) (previous >> 8);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses the first IFD of a file and maps the file if its layout is
+	 * supported and matches the metadata of the Bio-Formats reader.
+	 *
+	 * @return the layout of the file, or null if it must be read by the
+	 *         Bio-Formats reader
+	 */
+	private static Layout parse(IFormatReader reader, File file) throws IOException {
+		int pixelType = reader.getPixelType();
+		if ((pixelType != FormatTools.UINT8 && pixelType != FormatTools.UINT16)
+				|| reader.getSeriesCount() != 1 || reader.getImageCount() != 1 || reader.isRGB()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			Ifd ifd = readFirstIfd(channel);
+			if (ifd == null) {
+				return null;
+			}
+			ByteOrder order = ifd.order;
+			boolean bigTiff = ifd.bigTiff;
+			int entrySize = ifd.entrySize;
+			int nbEntries = ifd.nbEntries;
+			ByteBuffer entries = ifd.entries;
+
+			Layout layout = new Layout();
+			layout.littleEndian = order == ByteOrder.LITTLE_ENDIAN;
+			long[] stripOffsets = null;
+			long[] stripByteCounts = null;
+			int rowsPerStrip = Integer.MAX_VALUE;
+			int bitsPerSample = -1;
+			layout.compression = NONE;
+			for (int i = 0; i < nbEntries; i++) {
+				int entry = i * entrySize;
+				int tag = entries.getShort(entry) & 0xFFFF;
+				long[] values = readValues(channel, entries, entry, bigTiff, order);
+				if (values == null) {
+					// Type not used by the tags read here
+					continue;
+				}
+				switch (tag) {
+					case IMAGE_WIDTH: layout.width = (int) values[0]; break;
+					case IMAGE_LENGTH: layout.height = (int) values[0]; break;
+					case BITS_PER_SAMPLE: bitsPerSample = (int) values[0]; break;
+					case COMPRESSION: layout.compression = (int) values[0]; break;
+					case PREDICTOR:
+						if (values[0] != 1 && values[0] != 2) {
+							return null;
+						}
+						layout.predictor = values[0] == 2;
+						break;
+					case ROWS_PER_STRIP: rowsPerStrip = (int) Math.min(Integer.MAX_VALUE, values[0]); break;
+					case TILE_WIDTH: layout.tileWidth = (int) values[0]; break;
+					case TILE_LENGTH: layout.tileHeight = (int) values[0]; break;
+					case TILE_OFFSETS: layout.offsets = values; break;
+					case TILE_BYTE_COUNTS: layout.byteCounts = values; break;
+					case STRIP_OFFSETS: stripOffsets = values; break;
+					case STRIP_BYTE_COUNTS: stripByteCounts = values; break;
+					case SAMPLES_PER_PIXEL:
+					case PLANAR_CONFIGURATION:
+					case FILL_ORDER:
+					case SAMPLE_FORMAT:
+						if (values[0] != 1) {
+							return null;
+						}
+						break;
+					case PHOTOMETRIC_INTERPRETATION:
+						// White is zero images are inverted by Bio-Formats
+						if (values[0] != 1) {
+							return null;
+						}
+						break;
+					default:
+						break;
+				}
+			}
+
+			if (layout.offsets == null) {
+				// Strips are read as tiles as wide as the image
+				layout.offsets = stripOffsets;
+				layout.byteCounts = stripByteCounts;
+				layout.strips = true;
+				layout.tileWidth = layout.width;
+				layout.tileHeight = Math.min(rowsPerStrip, layout.height);
+			}
+			layout.bpp = bitsPerSample / 8;
+			if (layout.offsets == null || layout.byteCounts == null
+					|| layout.offsets.length != layout.byteCounts.length
+					|| layout.width != reader.getSizeX() || layout.height != reader.getSizeY()
+					|| layout.bpp != FormatTools.getBytesPerPixel(pixelType)
+					|| bitsPerSample != 8 * layout.bpp
+					|| layout.littleEndian != reader.isLittleEndian()
+					|| layout.tileWidth < 1 || layout.tileHeight < 1
+					|| (layout.compression != NONE && layout.compression != LZW
+							&& layout.compression != DEFLATE && layout.compression != ADOBE_DEFLATE)) {
+				return null;
+			}
+			layout.nXTiles = (layout.width + layout.tileWidth - 1) / layout.tileWidth;
+			int nYTiles = (layout.height + layout.tileHeight - 1) / layout.tileHeight;
+			if ((long) layout.nXTiles * nYTiles != layout.offsets.length
+					|| (long) layout.tileWidth * layout.tileHeight * layout.bpp > Integer.MAX_VALUE / 2) {
+				return null;
+			}
+
+			// Every tile must be in the file, and an uncompressed tile must
+			// hold all its pixels
+			long maxByteCount = 0;
+			for (int tile = 0; tile < layout.offsets.length; tile++) {
+				long rows = layout.getRows(tile / layout.nXTiles);
+				long expected = layout.compression == NONE
+						? rows * layout.tileWidth * layout.bpp : 1;
+				if (layout.offsets[tile] < 0 || layout.byteCounts[tile] < expected
+						|| layout.offsets[tile] + layout.byteCounts[tile] > fileSize) {
+					return null;
+				}
+				maxByteCount = Math.max(maxByteCount, layout.byteCounts[tile]);
+			}
+			if (maxByteCount > SEGMENT_SIZE) {
+				return null;
+			}
+
+			int nbSegments = (int) ((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			layout.segments = new MappedByteBuffer[nbSegments];
+			for (int i = 0; i < nbSegments; i++) {
+				long start = i * SEGMENT_SIZE;
+				long size = Math.min(fileSize - start, SEGMENT_SIZE + maxByteCount);
+				layout.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			}
+			return layout;
+		}
+	}
+
+	/**
+	 * Reads the dimensions of the first image of a TIFF file from its first
+	 * IFD, without mapping the file or reading the tile offsets.
+	 *
+	 * @param file the file
+	 * @return the width, the height and the bits per sample of the image, or
+	 *         null if the file is not a TIFF file
+	 * @throws IOException if the file can not be read
+	 */
+	public static int[] readDimensions(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			Ifd ifd = readFirstIfd(channel);
+			if (ifd == null) {
+				return null;
+			}
+			int[] dimensions = {-1, -1, 1};
+			for (int i = 0; i < ifd.nbEntries; i++) {
+				int entry = i * ifd.entrySize;
+				int tag = ifd.entries.getShort(entry) & 0xFFFF;
+				int index = tag == IMAGE_WIDTH ? 0 : tag == IMAGE_LENGTH ? 1
+						: tag == BITS_PER_SAMPLE ? 2 : -1;
+				if (index < 0) {
+					continue;
+				}
+				long[] values = readValues(channel, ifd.entries, entry, ifd.bigTiff, ifd.order);
+				if (values != null) {
+					dimensions[index] = (int) Math.min(Integer.MAX_VALUE, values[0]);
+				}
+			}
+			return dimensions[0] > 0 && dimensions[1] > 0 && dimensions[2] > 0 ? dimensions
+					: null;
+		}
+	}
+
+	/**
+	 * Entries of the first IFD of a TIFF file.
+	 */
+	private static class Ifd {
+		ByteOrder order;
+		boolean bigTiff;
+		int entrySize;
+		int nbEntries;
+		ByteBuffer entries;
+	}
+
+	/**
+	 * @return the entries of the first IFD of a file, or null if the file is
+	 *         not a TIFF file
+	 */
+	private static Ifd readFirstIfd(FileChannel channel) throws IOException {
+		ByteBuffer header = read(channel, 0, 16, ByteOrder.LITTLE_ENDIAN);
+		Ifd ifd = new Ifd();
+		if (header.get(0) == 'I' && header.get(1) == 'I') {
+			ifd.order = ByteOrder.LITTLE_ENDIAN;
+		} else if (header.get(0) == 'M' && header.get(1) == 'M') {
+			ifd.order = ByteOrder.BIG_ENDIAN;
+		} else {
+			return null;
+		}
+		header.order(ifd.order);
+		int version = header.getShort(2) & 0xFFFF;
+		ifd.bigTiff = version == 43;
+		if (version != 42 && !ifd.bigTiff) {
+			return null;
+		}
+		long ifdOffset = ifd.bigTiff ? header.getLong(8) : header.getInt(4) & 0xFFFFFFFFL;
+
+		// Entries: count, then tag, type, count and value or offset
+		ifd.entrySize = ifd.bigTiff ? 20 : 12;
+		ByteBuffer countBuf = read(channel, ifdOffset, ifd.bigTiff ? 8 : 2, ifd.order);
+		long nbEntries = ifd.bigTiff ? countBuf.getLong(0) : countBuf.getShort(0) & 0xFFFF;
+		if (nbEntries < 1 || nbEntries > 4096) {
+			return null;
+		}
+		ifd.nbEntries = (int) nbEntries;
+		ifd.entries = read(channel, ifdOffset + (ifd.bigTiff ? 8 : 2),
+				ifd.nbEntries * ifd.entrySize, ifd.order);
+		return ifd;
+	}
+
+	/**
+	 * @return the values of an IFD entry of type BYTE, SHORT, LONG or LONG8,
+	 *         or null for the other types
+	 */
+	private static long[] readValues(FileChannel channel, ByteBuffer entries, int entry,
+			boolean bigTiff, ByteOrder order) throws IOException {
+		int type = entries.getShort(entry + 2) & 0xFFFF;
+		int size;
+		switch (type) {
+			case 1: size = 1; break;
+			case 3: size = 2; break;
+			case 4: size = 4; break;
+			case 16: size = 8; break;
+			default: return null;
+		}
+		long count = bigTiff ? entries.getLong(entry + 4) : entries.getInt(entry + 4) & 0xFFFFFFFFL;
+		if (count < 1 || count * size > Integer.MAX_VALUE) {
+			return null;
+		}
+		int valueField = entry + (bigTiff ? 12 : 8);
+		ByteBuffer data;
+		int base;
+		if (count * size <= (bigTiff ? 8 : 4)) {
+			data = entries;
+			base = valueField;
+		} else {
+			long offset = bigTiff ? entries.getLong(valueField) : entries.getInt(valueField) & 0xFFFFFFFFL;
+			data = read(channel, offset, (int) (count * size), order);
+			base = 0;
+		}
+		long[] values = new long[(int) count];
+		for (int i = 0; i < values.length; i++) {
+			int position = base + i * size;
+			switch (size) {
+				case 1: values[i] = data.get(position) & 0xFF; break;
+				case 2: values[i] = data.getShort(position) & 0xFFFF; break;
+				case 4: values[i] = data.getInt(position) & 0xFFFFFFFFL; break;
+				default: values[i] = data.getLong(position); break;
+			}
+		}
+		return values;
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length, ByteOrder order)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length).order(order);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		return buf;
+	}
+}
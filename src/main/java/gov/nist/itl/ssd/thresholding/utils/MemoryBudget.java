@@ -0,0 +1,145 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Memory shared by the images processed at the same time. Each image
+ * reserves the memory it needs before being processed and releases it once
+ * done, so that the images processed concurrently never need more memory
+ * than the budget.
+ *
+ * A reservation larger than the whole budget is granted when nothing else is
+ * reserved, and then reserves the whole budget: such an image is processed
+ * alone instead of never.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class MemoryBudget {
+
+	private static final Logger LOGGER = Logger.getLogger(MemoryBudget.class.getName());
+
+	// Fraction of the memory available to the JVM given to the images, the
+	// rest is left to Bio-Formats, the output tiles and the garbage collector
+	public static final double DEFAULT_FRACTION = 0.7;
+
+	// Memory limit files of the cgroup of the process, v2 then v1
+	private static final String[] CGROUP_LIMITS = {
+			"/sys/fs/cgroup/memory.max",
+			"/sys/fs/cgroup/memory/memory.limit_in_bytes"};
+
+	private final long limit;
+	private long reserved = 0;
+
+	/**
+	 * @param limit the memory of the budget, in bytes
+	 */
+	public MemoryBudget(long limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("The memory budget must be positive");
+		}
+		this.limit = limit;
+	}
+
+	/**
+	 * Creates the default budget: a fraction of the maximum heap of the JVM,
+	 * or of the memory limit of the container if it is lower.
+	 */
+	public static MemoryBudget fromContainer() {
+		long available = Runtime.getRuntime().maxMemory();
+		long containerLimit = getContainerLimit();
+		if (containerLimit > 0 && containerLimit < available) {
+			available = containerLimit;
+		}
+		return new MemoryBudget((long) (available * DEFAULT_FRACTION));
+	}
+
+	/**
+	 * @return the memory limit of the cgroup of the process, in bytes, or -1
+	 *         if it is not limited or not a Linux container
+	 */
+	public static long getContainerLimit() {
+		for (String file : CGROUP_LIMITS) {
+			Path path = Paths.get(file);
+			if (!Files.isReadable(path)) {
+				continue;
+			}
+			try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.US_ASCII)) {
+				String line = reader.readLine();
+				if (line == null || line.trim().equals("max")) {
+					return -1;
+				}
+				long value = Long.parseLong(line.trim());
+				// cgroup v1 reports no limit as a value close to Long.MAX_VALUE
+				return value <= 0 || value >= Long.MAX_VALUE / 2 ? -1 : value;
+			} catch (IOException | NumberFormatException ex) {
+				LOGGER.log(Level.WARNING, "Can not read the memory limit in " + file + ": "
+						+ ex.getMessage());
+			}
+		}
+		return -1;
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Waits until one of the pending reservations fits in the free memory and
+	 * reserves it. The reservations are tried in order, so a list sorted by
+	 * decreasing size fills the budget with the largest ones first and the
+	 * remaining memory with the smaller ones.
+	 *
+	 * @param pending the sizes of the pending reservations, in bytes
+	 * @return the index in pending of the reservation made
+	 * @throws InterruptedException
+	 */
+	public synchronized int acquireFirstFitting(List<Long> pending) throws InterruptedException {
+		if (pending.isEmpty()) {
+			throw new IllegalArgumentException("No pending reservation");
+		}
+		while (true) {
+			for (int i = 0; i < pending.size(); i++) {
+				long bytes = clamp(pending.get(i));
+				if (reserved + bytes <= limit) {
+					reserved += bytes;
+					return i;
+				}
+			}
+			wait();
+		}
+	}
+
+	/**
+	 * Releases a reservation made by acquireFirstFitting.
+	 *
+	 * @param bytes the size of the reservation, as given when it was made
+	 */
+	public synchronized void release(long bytes) {
+		reserved -= clamp(bytes);
+		notifyAll();
+	}
+
+	private long clamp(long bytes) {
+		return Math.max(0, Math.min(limit, bytes));
+	}
+}
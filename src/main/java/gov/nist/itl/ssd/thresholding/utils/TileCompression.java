@@ -0,0 +1,109 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import loci.formats.FormatException;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.LZWCodec;
+
+/**
+ * Compression schemes supported by the TiledTiffWriter.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public enum TileCompression {
+
+	UNCOMPRESSED(1, "none"),
+	// Same codec as the one used by the Bio-Formats TIFF writers
+	LZW(5, "lzw"),
+	// Adobe Deflate, whose speed and ratio depend on the compression level
+	ZLIB(8, "zlib");
+
+	// Compression level used when none is given, the zlib default
+	public static final int DEFAULT_LEVEL = 6;
+
+	private final int tiffCode;
+	private final String name;
+
+	private TileCompression(int tiffCode, String name) {
+		this.tiffCode = tiffCode;
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * @param text the name of the compression, as given on the command line
+	 * @return the matching compression, or null if no compression has this name
+	 */
+	public static TileCompression fromString(String text) {
+		for (TileCompression compression : values()) {
+			if (compression.name.equalsIgnoreCase(text)) {
+				return compression;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the value of the TIFF Compression tag for this scheme
+	 */
+	public int getTiffCode() {
+		return tiffCode;
+	}
+
+	/**
+	 * Compresses a tile. This method is thread safe.
+	 *
+	 * @param tile the uncompressed tile
+	 * @param level the compression level, from 1 (fastest) to 9 (smallest),
+	 *              only used by ZLIB
+	 * @return the compressed tile, which may be the input array itself
+	 * @throws IOException
+	 */
+	public byte[] compress(byte[] tile, int level) throws IOException {
+		switch (this) {
+			case ZLIB:
+				Deflater deflater = new Deflater(level);
+				try {
+					deflater.setInput(tile);
+					deflater.finish();
+					ByteArrayOutputStream out = new ByteArrayOutputStream(tile.length / 4 + 64);
+					byte[] chunk = new byte[65536];
+					while (!deflater.finished()) {
+						int n = deflater.deflate(chunk);
+						out.write(chunk, 0, n);
+					}
+					return out.toByteArray();
+				} finally {
+					deflater.end();
+				}
+			case LZW:
+				try {
+					return new LZWCodec().compress(tile, CodecOptions.getDefaultOptions());
+				} catch (FormatException ex) {
+					throw new IOException("Cannot compress tile: " + ex.getMessage(), ex);
+				}
+			case UNCOMPRESSED:
+			default:
+				return tile;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Threads compressing the tiles of the TiledTiffWriters, and bound of the
+ * tiles waiting to be compressed or written, shared by all the writers using
+ * them. The memory held by the pending tiles does not depend on the number
+ * of images written at the same time.
+ *
+ * Each writer may always have one tile pending, so that a writer never waits
+ * for the tiles of another one: beyond it, a tile needs one of the shared
+ * slots, and a writer finding none writes its own pending tiles instead.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class TileEncoders implements Closeable {
+
+	private final ExecutorService threads;
+	private final int maxPendingTiles;
+	private final Semaphore slots;
+
+	/**
+	 * @param nbThreads the number of threads compressing the tiles
+	 * @param maxPendingTiles the max number of tiles waiting to be compressed
+	 *                        or written, in all the writers, besides the one
+	 *                        tile each writer may always have pending
+	 */
+	public TileEncoders(int nbThreads, int maxPendingTiles) {
+		this.threads = Executors.newFixedThreadPool(Math.max(1, nbThreads));
+		this.maxPendingTiles = Math.max(1, maxPendingTiles);
+		this.slots = new Semaphore(this.maxPendingTiles);
+	}
+
+	public int getMaxPendingTiles() {
+		return maxPendingTiles;
+	}
+
+	/**
+	 * @return the number of shared slots held by pending tiles
+	 */
+	public int getNbPendingTiles() {
+		return maxPendingTiles - slots.availablePermits();
+	}
+
+	/**
+	 * Takes a shared slot for a pending tile if one is free.
+	 *
+	 * @return true if a slot was taken, to be given back by releaseSlot
+	 */
+	boolean tryAcquireSlot() {
+		return slots.tryAcquire();
+	}
+
+	void releaseSlot() {
+		slots.release();
+	}
+
+	Future<byte[]> submit(Callable<byte[]> task) {
+		return threads.submit(task);
+	}
+
+	/**
+	 * Stops the threads, cancelling the compressions not yet done.
+	 */
+	@Override
+	public void close() {
+		threads.shutdownNow();
+	}
+}
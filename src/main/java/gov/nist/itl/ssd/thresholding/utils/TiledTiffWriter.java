@@ -0,0 +1,729 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import loci.common.services.ServiceException;
+import loci.formats.FormatTools;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.meta.OMEXMLMetadataRoot;
+import ome.xml.model.BinData;
+import ome.xml.model.Pixels;
+import ome.xml.model.TiffData;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.NonNegativeInteger;
+
+/**
+ * Writer of single plane tiled OME-TIFF images, compressing the tiles on a
+ * pool of worker threads.
+ *
+ * Tiles are given in row-major order. Each tile is compressed by the worker
+ * pool as soon as it is given, and the compressed tiles are appended to the
+ * file in order. The number of tiles waiting to be compressed or written is
+ * bounded by the TileEncoders, for all the writers sharing them, so the
+ * memory used depends neither on the size of the images nor on their number.
+ *
+ * The file has the same layout as the one written by the Bio-Formats
+ * OMETiffWriter: little endian, one IFD with the same tags, holding the
+ * OME-XML description, tiles padded to the tile size. It is written as a BigTIFF if it does not fit in a
+ * classic TIFF. 1bpp images are written as bilevel TIFF, 8 pixels per byte.
+ *
+ * Masks are mostly made of tiles whose bytes all have the same value, all 0
+ * or all 255. Such a uniform tile is compressed once per value and image,
+ * and written once: the following uniform tiles of the same value point to
+ * the same bytes of the file. In a fragment, whose tiles must be contiguous,
+ * they are written each time but not compressed again.
+ *
+ * A large image can also be written by several processes: each one writes
+ * the tiles of a range into a fragment, created by createFragment, and the
+ * fragments are then concatenated into the TIFF file by appendFragment,
+ * without compressing the tiles again. A fragment holds the compressed tiles
+ * after a 16 bytes header (the magic "WTTF" and the offset of its index), then
+ * its index: the number of tiles of the image, the range of the tiles, the
+ * size, tile size, bits per sample and compression of the image and the byte
+ * count of each tile.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class TiledTiffWriter implements Closeable {
+
+	// TIFF field types
+	private static final short ASCII = 2;
+	private static final short SHORT = 3;
+	private static final short LONG = 4;
+	private static final short RATIONAL = 5;
+	private static final short LONG8 = 16;
+
+	// TIFF tags
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int PHOTOMETRIC_INTERPRETATION = 262;
+	private static final int IMAGE_DESCRIPTION = 270;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int X_RESOLUTION = 282;
+	private static final int Y_RESOLUTION = 283;
+	private static final int PLANAR_CONFIGURATION = 284;
+	private static final int SOFTWARE = 305;
+	private static final int TILE_WIDTH = 322;
+	private static final int TILE_LENGTH = 323;
+	private static final int TILE_OFFSETS = 324;
+	private static final int TILE_BYTE_COUNTS = 325;
+	private static final int SAMPLE_FORMAT = 339;
+
+	// Room kept at the beginning of the file for a classic or a BigTIFF header
+	private static final int HEADER_SIZE = 16;
+
+	// ASCII values are NUL terminated
+	private static final byte[] SOFTWARE_VALUE = (FormatTools.CREATOR + '\0')
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] FRAGMENT_MAGIC = "WTTF".getBytes(StandardCharsets.US_ASCII);
+	private static final int FRAGMENT_INDEX_SIZE = 8 * 4;
+
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int tileSize;
+	private final int bitsPerSample;
+	private final int nXTiles;
+	private final int nYTiles;
+	private final TileCompression compression;
+	private final int compressionLevel;
+	private final byte[] description;
+	// Null if the writer only appends fragments
+	private final TileEncoders encoders;
+	// Range of the tiles written in a fragment, all the tiles otherwise
+	private final boolean fragment;
+	private final int firstTile;
+	private final int endTile;
+
+	private final ArrayDeque<PendingTile> pendingTiles = new ArrayDeque<>();
+	private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+	// Compressed uniform tiles, by byte value, and their offset in the file,
+	// -1 until written
+	private final AtomicReferenceArray<byte[]> uniformTiles = new AtomicReferenceArray<>(256);
+	private final long[] uniformOffsets = new long[256];
+	private final long[] tileOffsets;
+	private final long[] tileByteCounts;
+	private int nbSubmittedTiles;
+	private int nbWrittenTiles;
+	private long position = HEADER_SIZE;
+	// Time writeTile spent writing its pending tiles for lack of a free slot
+	private long waitNanos = 0;
+	// Writes a BigTIFF even if the file fits in a classic TIFF
+	boolean forceBigTiff = false;
+
+	/**
+	 * Creates the output file.
+	 *
+	 * @param file the output file
+	 * @param metadata the metadata of the image, its TiffData and BinData
+	 *                 elements are replaced to describe the output file
+	 * @param tileSize the width and height of the tiles, multiple of 16
+	 * @param compression the compression of the tiles
+	 * @param compressionLevel the compression level, from 1 (fastest) to 9
+	 *                         (smallest), used by ZLIB only
+	 * @param encoders the threads compressing the tiles, null for a writer
+	 *                 that only appends fragments
+	 * @throws IOException
+	 */
+	public TiledTiffWriter(File file, OMEXMLMetadata metadata, int tileSize,
+			TileCompression compression, int compressionLevel, TileEncoders encoders)
+			throws IOException {
+		this(file, metadata, tileSize, compression, compressionLevel, encoders, false, 0, -1);
+	}
+
+	/**
+	 * Creates a fragment holding the tiles of a range of an image, to be
+	 * appended to the TIFF file of the image by appendFragment. The tiles of
+	 * the range are given to writeTile as for a whole image.
+	 *
+	 * @param file the fragment file
+	 * @param metadata the metadata of the image
+	 * @param tileSize the width and height of the tiles, multiple of 16
+	 * @param compression the compression of the tiles
+	 * @param compressionLevel the compression level, used by ZLIB only
+	 * @param encoders the threads compressing the tiles
+	 * @param firstTile the index of the first tile of the range, in row-major
+	 *                  order
+	 * @param endTile the index after the last tile of the range
+	 * @return the writer of the fragment
+	 * @throws IOException
+	 */
+	public static TiledTiffWriter createFragment(File file, OMEXMLMetadata metadata, int tileSize,
+			TileCompression compression, int compressionLevel, TileEncoders encoders,
+			int firstTile, int endTile) throws IOException {
+		return new TiledTiffWriter(file, metadata, tileSize, compression, compressionLevel,
+				encoders, true, firstTile, endTile);
+	}
+
+	private TiledTiffWriter(File file, OMEXMLMetadata metadata, int tileSize,
+			TileCompression compression, int compressionLevel, TileEncoders encoders,
+			boolean fragment, int firstTile, int endTile) throws IOException {
+		if (tileSize <= 0 || tileSize % 16 != 0) {
+			throw new IllegalArgumentException("The tile size must be a multiple of 16: " + tileSize);
+		}
+		this.width = metadata.getPixelsSizeX(0).getValue();
+		this.height = metadata.getPixelsSizeY(0).getValue();
+		this.tileSize = tileSize;
+		this.bitsPerSample = getBitsPerSample(metadata.getPixelsType(0));
+		this.compression = compression;
+		this.compressionLevel = compressionLevel;
+		this.encoders = encoders;
+
+		this.nXTiles = (width + tileSize - 1) / tileSize;
+		this.nYTiles = (height + tileSize - 1) / tileSize;
+		this.tileOffsets = new long[nXTiles * nYTiles];
+		this.tileByteCounts = new long[nXTiles * nYTiles];
+
+		this.fragment = fragment;
+		if (!fragment) {
+			firstTile = 0;
+			endTile = tileOffsets.length;
+		} else if (firstTile < 0 || firstTile >= endTile || endTile > tileOffsets.length) {
+			throw new IllegalArgumentException("Invalid range of tiles [" + firstTile + ", "
+					+ endTile + "[, the image has " + tileOffsets.length + " tiles");
+		}
+		this.firstTile = firstTile;
+		this.endTile = endTile;
+		this.nbSubmittedTiles = firstTile;
+		this.nbWrittenTiles = firstTile;
+		Arrays.fill(uniformOffsets, -1);
+
+		this.description = fragment ? null : createDescription(metadata, file.getName());
+
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	public int getNXTiles() {
+		return nXTiles;
+	}
+
+	public int getNYTiles() {
+		return nYTiles;
+	}
+
+	public int getNbTiles() {
+		return tileOffsets.length;
+	}
+
+	/**
+	 * @return the size in bytes of an uncompressed tile
+	 */
+	public int getTileBytes() {
+		return (tileSize * bitsPerSample + 7) / 8 * tileSize;
+	}
+
+	/**
+	 * @return the number of tiles handed to writeTile and not yet written
+	 */
+	public int getNbPendingTiles() {
+		return pendingTiles.size();
+	}
+
+	/**
+	 * @return the time writeTile spent writing the pending tiles of this
+	 *         writer because all the slots of the encoders were taken, in
+	 *         nanoseconds: the compression and writing of the tiles were
+	 *         slower than their production
+	 */
+	public long getWaitNanos() {
+		return waitNanos;
+	}
+
+	/**
+	 * Returns a zeroed buffer of getTileBytes() bytes for the next tile. The
+	 * buffers given to writeTile are recycled once written.
+	 */
+	public byte[] newTileBuffer() {
+		byte[] buf = freeBuffers.poll();
+		return buf != null ? buf : new byte[getTileBytes()];
+	}
+
+	/**
+	 * Writes the next tile, in row-major order, starting from the first tile
+	 * of the range for a fragment. The rows of the tile are
+	 * getTileBytes() / tileSize bytes long, pixels of the edge tiles outside
+	 * of the image must be 0. The buffer must not be modified by the caller
+	 * after this call.
+	 *
+	 * @param tile the uncompressed tile, of getTileBytes() bytes
+	 * @throws IOException
+	 */
+	public void writeTile(final byte[] tile) throws IOException {
+		if (nbSubmittedTiles >= endTile) {
+			throw new IllegalStateException("All the tiles have already been written");
+		}
+		if (tile.length != getTileBytes()) {
+			throw new IllegalArgumentException("Tile of " + tile.length + " bytes, expected "
+					+ getTileBytes());
+		}
+		if (encoders == null) {
+			throw new IllegalStateException("This writer only appends fragments");
+		}
+		// The first pending tile needs no slot, the next ones wait for a free
+		// slot or for the pending tiles to be written
+		boolean slot = false;
+		if (!pendingTiles.isEmpty() && !(slot = encoders.tryAcquireSlot())) {
+			long start = System.nanoTime();
+			do {
+				writeNextPendingTile();
+			} while (!pendingTiles.isEmpty() && !(slot = encoders.tryAcquireSlot()));
+			waitNanos += System.nanoTime() - start;
+		}
+		final PendingTile pendingTile = new PendingTile(tile, slot);
+		pendingTile.encoded = encoders.submit(() -> compress(pendingTile));
+		pendingTiles.add(pendingTile);
+		nbSubmittedTiles++;
+	}
+
+	/**
+	 * Appends the tiles of a fragment, written by another writer of the same
+	 * image with the same tile size and compression. The fragments must be
+	 * appended in the order of their ranges, each one starting at the tile
+	 * after the last tile written.
+	 *
+	 * @param fragmentFile the fragment file
+	 * @throws IOException if the fragment is invalid or does not match the
+	 *                     image or the next tile
+	 */
+	public void appendFragment(File fragmentFile) throws IOException {
+		if (fragment) {
+			throw new IllegalStateException("Fragments can not be appended to a fragment");
+		}
+		while (!pendingTiles.isEmpty()) {
+			writeNextPendingTile();
+		}
+		try (FileChannel in = FileChannel.open(fragmentFile.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = readFully(in, 0, HEADER_SIZE);
+			byte[] magic = new byte[FRAGMENT_MAGIC.length];
+			header.get(magic);
+			header.position(8);
+			long indexOffset = header.getLong();
+			if (!Arrays.equals(magic, FRAGMENT_MAGIC) || indexOffset < HEADER_SIZE
+					|| indexOffset > in.size() - FRAGMENT_INDEX_SIZE) {
+				throw new IOException(fragmentFile.getName() + " is not a tile fragment");
+			}
+			ByteBuffer index = readFully(in, indexOffset, FRAGMENT_INDEX_SIZE);
+			int nbTiles = index.getInt();
+			int first = index.getInt();
+			int end = index.getInt();
+			if (nbTiles != tileOffsets.length || index.getInt() != width || index.getInt() != height
+					|| index.getInt() != tileSize || index.getInt() != bitsPerSample
+					|| index.getInt() != compression.getTiffCode()) {
+				throw new IOException(fragmentFile.getName() + " was written for another image "
+						+ "or with another tile size or compression");
+			}
+			if (first != nbWrittenTiles || end <= first || end > nbTiles) {
+				throw new IOException(fragmentFile.getName() + " holds the tiles [" + first + ", "
+						+ end + "[, expected tiles from " + nbWrittenTiles);
+			}
+			ByteBuffer byteCounts = readFully(in, indexOffset + FRAGMENT_INDEX_SIZE, 8L * (end - first));
+			long dataLength = indexOffset - HEADER_SIZE;
+			long tileOffset = position;
+			for (int tile = first; tile < end; tile++) {
+				tileOffsets[tile] = tileOffset;
+				tileByteCounts[tile] = byteCounts.getLong();
+				tileOffset += tileByteCounts[tile];
+			}
+			if (tileOffset - position != dataLength) {
+				throw new IOException("Corrupted tile fragment " + fragmentFile.getName());
+			}
+			// The compressed tiles are copied as is
+			for (long copied = 0; copied < dataLength; ) {
+				long n = in.transferTo(HEADER_SIZE + copied, dataLength - copied,
+						channel.position(position));
+				if (n <= 0) {
+					throw new IOException("Truncated tile fragment " + fragmentFile.getName());
+				}
+				copied += n;
+				position += n;
+			}
+			nbSubmittedTiles = end;
+			nbWrittenTiles = end;
+		}
+	}
+
+	/**
+	 * Writes the remaining tiles and the IFD, or the index of a fragment, then
+	 * closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			while (!pendingTiles.isEmpty()) {
+				writeNextPendingTile();
+			}
+			if (nbWrittenTiles != endTile) {
+				throw new IOException("Only " + (nbWrittenTiles - firstTile) + " tiles out of "
+						+ (endTile - firstTile) + " were written");
+			}
+			if (fragment) {
+				writeFragmentIndex();
+			} else {
+				writeIFD();
+			}
+		} finally {
+			for (PendingTile pendingTile : pendingTiles) {
+				pendingTile.encoded.cancel(true);
+				if (pendingTile.slot) {
+					encoders.releaseSlot();
+				}
+			}
+			pendingTiles.clear();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Compresses a pending tile, on an encoder thread. A uniform tile is
+	 * compressed the first time only.
+	 */
+	private byte[] compress(PendingTile pendingTile) throws IOException {
+		byte[] tile = pendingTile.tile;
+		int value = getUniformValue(tile);
+		if (value < 0) {
+			return compression.compress(tile, compressionLevel);
+		}
+		pendingTile.uniformValue = value;
+		byte[] encoded = uniformTiles.get(value);
+		if (encoded == null) {
+			// Compressed from a copy, the compression may return the tile itself
+			encoded = compression.compress(tile.clone(), compressionLevel);
+			if (!uniformTiles.compareAndSet(value, null, encoded)) {
+				encoded = uniformTiles.get(value);
+			}
+		}
+		return encoded;
+	}
+
+	/**
+	 * @return the value of all the bytes of a tile, or -1 if they differ
+	 */
+	private static int getUniformValue(byte[] tile) {
+		byte first = tile[0];
+		for (int i = 1; i < tile.length; i++) {
+			if (tile[i] != first) {
+				return -1;
+			}
+		}
+		return first & 0xFF;
+	}
+
+	/**
+	 * Waits for the compression of the oldest pending tile and appends it to
+	 * the file.
+	 */
+	private void writeNextPendingTile() throws IOException {
+		PendingTile pendingTile = pendingTiles.poll();
+		try {
+			writePendingTile(pendingTile);
+		} finally {
+			if (pendingTile.slot) {
+				encoders.releaseSlot();
+			}
+		}
+	}
+
+	private void writePendingTile(PendingTile pendingTile) throws IOException {
+		byte[] encoded;
+		try {
+			encoded = pendingTile.encoded.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing tiles", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Cannot compress tile: " + cause.getMessage(), cause);
+		}
+
+		int value = pendingTile.uniformValue;
+		if (value >= 0 && !fragment && uniformOffsets[value] >= 0) {
+			// Points to the same uniform tile written before
+			tileOffsets[nbWrittenTiles] = uniformOffsets[value];
+		} else {
+			if (value >= 0) {
+				uniformOffsets[value] = position;
+			}
+			tileOffsets[nbWrittenTiles] = position;
+			writeFully(ByteBuffer.wrap(encoded));
+		}
+		tileByteCounts[nbWrittenTiles] = encoded.length;
+		nbWrittenTiles++;
+
+		Arrays.fill(pendingTile.tile, (byte) 0);
+		freeBuffers.add(pendingTile.tile);
+	}
+
+	/**
+	 * Writes the index of a fragment after its tiles and the header pointing
+	 * to it.
+	 */
+	private void writeFragmentIndex() throws IOException {
+		long indexOffset = position;
+		ByteBuffer index = ByteBuffer.allocate(FRAGMENT_INDEX_SIZE + 8 * (endTile - firstTile))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		index.putInt(tileOffsets.length).putInt(firstTile).putInt(endTile)
+				.putInt(width).putInt(height).putInt(tileSize).putInt(bitsPerSample)
+				.putInt(compression.getTiffCode());
+		for (int tile = firstTile; tile < endTile; tile++) {
+			index.putLong(tileByteCounts[tile]);
+		}
+		index.flip();
+		writeFully(index);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(FRAGMENT_MAGIC).putInt(0).putLong(indexOffset);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+	}
+
+	private static ByteBuffer readFully(FileChannel in, long offset, long length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining()) {
+			if (in.read(buf, offset + buf.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Writes the IFD after the tiles and the header pointing to it.
+	 */
+	private void writeIFD() throws IOException {
+		int nbTiles = tileOffsets.length;
+		// Upper bound of the size of the IFD and of the values it points to
+		long ifdSize = 20 + 16 * 20L + description.length + SOFTWARE_VALUE.length
+				+ 16L * nbTiles + 64;
+		boolean bigTiff = forceBigTiff || position + ifdSize > 0xffffffffL;
+		short offsetType = bigTiff ? LONG8 : LONG;
+
+		// Same tags as the OMETiffWriter, in ascending order
+		List<IFDEntry> entries = new ArrayList<>();
+		entries.add(new IFDEntry(IMAGE_WIDTH, LONG, width));
+		entries.add(new IFDEntry(IMAGE_LENGTH, LONG, height));
+		entries.add(new IFDEntry(BITS_PER_SAMPLE, SHORT, bitsPerSample));
+		entries.add(new IFDEntry(COMPRESSION, SHORT, compression.getTiffCode()));
+		entries.add(new IFDEntry(PHOTOMETRIC_INTERPRETATION, SHORT, 1)); // BlackIsZero
+		entries.add(new IFDEntry(IMAGE_DESCRIPTION, description));
+		entries.add(new IFDEntry(SAMPLES_PER_PIXEL, SHORT, 1));
+		entries.add(new IFDEntry(X_RESOLUTION, RATIONAL, 1, 1));
+		entries.add(new IFDEntry(Y_RESOLUTION, RATIONAL, 1, 1));
+		entries.add(new IFDEntry(PLANAR_CONFIGURATION, SHORT, 1));
+		entries.add(new IFDEntry(SOFTWARE, SOFTWARE_VALUE));
+		entries.add(new IFDEntry(TILE_WIDTH, LONG, tileSize));
+		entries.add(new IFDEntry(TILE_LENGTH, LONG, tileSize));
+		entries.add(new IFDEntry(TILE_OFFSETS, offsetType, tileOffsets));
+		entries.add(new IFDEntry(TILE_BYTE_COUNTS, offsetType, tileByteCounts));
+		entries.add(new IFDEntry(SAMPLE_FORMAT, SHORT, 1)); // unsigned integer
+
+		int entrySize = bigTiff ? 20 : 12;
+		int countSize = bigTiff ? 8 : 2;
+		int offsetSize = bigTiff ? 8 : 4;
+
+		// Values that do not fit in the IFD entries are written before the IFD
+		long[] valueOffsets = new long[entries.size()];
+		for (int i = 0; i < entries.size(); i++) {
+			byte[] value = entries.get(i).value;
+			if (value.length > offsetSize) {
+				align();
+				valueOffsets[i] = position;
+				writeFully(ByteBuffer.wrap(value));
+			}
+		}
+		align();
+
+		ByteBuffer ifd = ByteBuffer.allocate(countSize + entries.size() * entrySize + offsetSize)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		putValue(ifd, entries.size(), countSize);
+		for (int i = 0; i < entries.size(); i++) {
+			IFDEntry entry = entries.get(i);
+			ifd.putShort((short) entry.tag);
+			ifd.putShort(entry.type);
+			putValue(ifd, entry.count, offsetSize);
+			if (entry.value.length > offsetSize) {
+				putValue(ifd, valueOffsets[i], offsetSize);
+			} else {
+				// Left-justified values are padded with zeros
+				ifd.put(entry.value);
+				ifd.put(new byte[offsetSize - entry.value.length]);
+			}
+		}
+		putValue(ifd, 0, offsetSize); // no next IFD
+		ifd.flip();
+		long ifdOffset = position;
+		writeFully(ifd);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte) 'I').put((byte) 'I');
+		if (bigTiff) {
+			header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(ifdOffset);
+		} else {
+			header.putShort((short) 42).putInt((int) ifdOffset);
+		}
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+	}
+
+	private static void putValue(ByteBuffer buf, long value, int size) {
+		switch (size) {
+			case 2:
+				buf.putShort((short) value);
+				break;
+			case 4:
+				buf.putInt((int) value);
+				break;
+			default:
+				buf.putLong(value);
+		}
+	}
+
+	// Offsets in a TIFF file should be word aligned
+	private void align() throws IOException {
+		if (position % 2 != 0) {
+			writeFully(ByteBuffer.wrap(new byte[1]));
+		}
+	}
+
+	private void writeFully(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			position += channel.write(buf, position);
+		}
+	}
+
+	/**
+	 * Builds the OME-XML description of the output file from the metadata of
+	 * the image, as done by the Bio-Formats OMETiffWriter.
+	 */
+	private static byte[] createDescription(OMEXMLMetadata metadata, String fileName) {
+		Pixels pixels = ((OMEXMLMetadataRoot) metadata.getRoot()).getImage(0).getPixels();
+		for (TiffData tiffData : pixels.copyTiffDataList()) {
+			pixels.removeTiffData(tiffData);
+		}
+		for (BinData binData : pixels.copyBinDataList()) {
+			pixels.removeBinData(binData);
+		}
+		metadata.setPixelsBigEndian(false, 0);
+
+		String uuid = "urn:uuid:" + UUID.randomUUID().toString();
+		metadata.setUUID(uuid);
+		metadata.setTiffDataIFD(new NonNegativeInteger(0), 0, 0);
+		metadata.setTiffDataFirstC(new NonNegativeInteger(0), 0, 0);
+		metadata.setTiffDataFirstZ(new NonNegativeInteger(0), 0, 0);
+		metadata.setTiffDataFirstT(new NonNegativeInteger(0), 0, 0);
+		metadata.setTiffDataPlaneCount(new NonNegativeInteger(1), 0, 0);
+		metadata.setUUIDFileName(fileName, 0, 0);
+		metadata.setUUIDValue(uuid, 0, 0);
+
+		try {
+			String xml = BioFormatsUtils.getOMEXML(metadata);
+			// ASCII values are NUL terminated
+			return (xml + '\0').getBytes(StandardCharsets.UTF_8);
+		} catch (ServiceException ex) {
+			throw new RuntimeException("Cannot create OME-XML description", ex);
+		}
+	}
+
+	private static int getBitsPerSample(PixelType pixelType) {
+		switch (pixelType) {
+			case BIT:
+				return 1;
+			case UINT8:
+				return 8;
+			case UINT16:
+				return 16;
+			default:
+				throw new UnsupportedOperationException("Unsupported pixel type: " + pixelType);
+		}
+	}
+
+	/**
+	 * Entry of the IFD, with its little endian value.
+	 */
+	private static class IFDEntry {
+		private final int tag;
+		private final short type;
+		private final long count;
+		private final byte[] value;
+
+		// ASCII value
+		private IFDEntry(int tag, byte[] value) {
+			this.tag = tag;
+			this.type = ASCII;
+			this.count = value.length;
+			this.value = value;
+		}
+
+		// SHORT, LONG or LONG8 values, or numerators and denominators of
+		// RATIONAL values
+		private IFDEntry(int tag, short type, long... values) {
+			int size = type == SHORT ? 2 : type == LONG8 ? 8 : 4;
+			ByteBuffer buf = ByteBuffer.allocate(values.length * size).order(ByteOrder.LITTLE_ENDIAN);
+			for (long value : values) {
+				putValue(buf, value, size);
+			}
+			this.tag = tag;
+			this.type = type;
+			this.count = type == RATIONAL ? values.length / 2 : values.length;
+			this.value = buf.array();
+		}
+	}
+
+	private static class PendingTile {
+		private final byte[] tile;
+		// Holds a slot of the encoders
+		private final boolean slot;
+		private Future<byte[]> encoded;
+		// Value of all the bytes of a uniform tile, set by its compression,
+		// -1 otherwise
+		private int uniformValue = -1;
+
+		private PendingTile(byte[] tile, boolean slot) {
+			this.tile = tile;
+			this.slot = slot;
+		}
+	}
+}
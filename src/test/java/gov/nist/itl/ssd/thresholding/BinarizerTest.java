@@ -0,0 +1,107 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Binarizes every 8bpp and 16bpp value and checks that the values above the
+ * threshold are set to the max value and the others to 0.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class BinarizerTest {
+
+	@ParameterizedTest
+	@ValueSource(doubles = {0, 254, 255, 100.5, -1.5})
+	void binarizes8BitsPixels(double threshold) {
+		Binarizer binarizer = new Binarizer(threshold, 8);
+		// Every value, after 2 pixels left untouched
+		byte[] pixels = new byte[2 + 256];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (byte) (i - 2);
+		}
+		binarizer.binarize(pixels, 2, pixels.length);
+
+		assertEquals((byte) -2, pixels[0]);
+		assertEquals((byte) -1, pixels[1]);
+		for (int value = 0; value < 256; value++) {
+			assertEquals(value > threshold ? (byte) 255 : 0, pixels[2 + value], "value " + value);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(doubles = {0, 254, 255, 100.5})
+	void binarizes8BitsBuffers(double threshold) {
+		for (boolean littleEndian : new boolean[] {true, false}) {
+			Binarizer binarizer = new Binarizer(threshold, 8);
+			// Every value, then a pixel left untouched
+			byte[] buf = new byte[256 + 1];
+			for (int value = 0; value < 256; value++) {
+				buf[value] = (byte) value;
+			}
+			buf[256] = (byte) 200;
+			binarizer.binarize(buf, 256, littleEndian);
+
+			for (int value = 0; value < 256; value++) {
+				assertEquals(value > threshold ? (byte) 255 : 0, buf[value], "value " + value);
+			}
+			assertEquals((byte) 200, buf[256]);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(doubles = {0, 65534, 65535, 1000.5, -1.5})
+	void binarizes16BitsPixels(double threshold) {
+		Binarizer binarizer = new Binarizer(threshold, 16);
+		short[] pixels = new short[2 + 65536];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) (i - 2);
+		}
+		binarizer.binarize(pixels, 2, pixels.length);
+
+		assertEquals((short) -2, pixels[0]);
+		assertEquals((short) -1, pixels[1]);
+		for (int value = 0; value < 65536; value++) {
+			assertEquals(value > threshold ? (short) 65535 : 0, pixels[2 + value], "value " + value);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(doubles = {0, 65534, 65535, 1000.5})
+	void binarizes16BitsBuffers(double threshold) {
+		for (boolean littleEndian : new boolean[] {true, false}) {
+			Binarizer binarizer = new Binarizer(threshold, 16);
+			// Every value, then a pixel left untouched
+			byte[] buf = new byte[2 * (65536 + 1)];
+			for (int value = 0; value <= 65536; value++) {
+				buf[2 * value + (littleEndian ? 0 : 1)] = (byte) value;
+				buf[2 * value + (littleEndian ? 1 : 0)] = (byte) (value >> 8);
+			}
+			buf[2 * 65536] = 0x12;
+			buf[2 * 65536 + 1] = 0x34;
+			binarizer.binarize(buf, 65536, littleEndian);
+
+			for (int value = 0; value < 65536; value++) {
+				int expected = value > threshold ? 0xff : 0;
+				assertEquals((byte) expected, buf[2 * value], "value " + value);
+				assertEquals((byte) expected, buf[2 * value + 1], "value " + value);
+			}
+			assertEquals(0x12, buf[2 * 65536]);
+			assertEquals(0x34, buf[2 * 65536 + 1]);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import gov.nist.itl.ssd.thresholding.utils.BioFormatsUtils;
+import gov.nist.itl.ssd.thresholding.utils.TileCompression;
+import gov.nist.itl.ssd.thresholding.utils.TileEncoders;
+import gov.nist.itl.ssd.thresholding.utils.TiledTiffWriter;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.MetadataTools;
+import loci.formats.ome.OMEXMLMetadata;
+
+/**
+ * Checks the packing of the binarized rows into the output formats, and the
+ * masks written by the processor in each format.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class OutputFormatTest {
+
+	private static final int[] WIDTHS = {1, 7, 8, 9, 13, 16, 17, 100};
+	// Bytes of a 1bpp row of a tile 128 pixels wide
+	private static final int ROW_BYTES = 16;
+
+	@TempDir
+	File folder;
+
+	@ParameterizedTest
+	@ValueSource(ints = {1, 2})
+	void packsBytesInOneBit(int srcStep) {
+		for (int width : WIDTHS) {
+			byte[] mask = randomMask(width, width);
+			// The row starts at pixel 3 of src
+			byte[] src = new byte[(3 + width) * srcStep];
+			for (int x = 0; x < width; x++) {
+				src[(3 + x) * srcStep] = mask[x];
+			}
+			// Row of a padded tile, after a byte left untouched
+			byte[] dst = new byte[1 + ROW_BYTES];
+			dst[0] = 0x55;
+			OutputFormat.OneBit.packRow(src, 3 * srcStep, srcStep, width, dst, 1);
+
+			assertUnpacks(mask, dst, 1, width);
+			assertEquals(0x55, dst[0]);
+		}
+	}
+
+	@Test
+	void packsShortsInOneBit() {
+		for (int width : WIDTHS) {
+			byte[] mask = randomMask(width, width + 1);
+			short[] src = new short[3 + width];
+			for (int x = 0; x < width; x++) {
+				src[3 + x] = mask[x] != 0 ? (short) 0xffff : 0;
+			}
+			byte[] dst = new byte[1 + ROW_BYTES];
+			dst[0] = 0x55;
+			OutputFormat.OneBit.packRow(src, 3, width, dst, 1);
+
+			assertUnpacks(mask, dst, 1, width);
+			assertEquals(0x55, dst[0]);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {1, 2})
+	void convertsBytesToEightBit(int srcStep) {
+		for (int width : WIDTHS) {
+			byte[] mask = randomMask(width, width + 2);
+			byte[] src = new byte[(3 + width) * srcStep];
+			for (int x = 0; x < width; x++) {
+				src[(3 + x) * srcStep] = mask[x];
+			}
+			// Padding of the tile after the row
+			byte[] dst = new byte[1 + width + 5];
+			OutputFormat.EightBit.packRow(src, 3 * srcStep, srcStep, width, dst, 1);
+
+			for (int x = 0; x < width; x++) {
+				assertEquals(mask[x], dst[1 + x], "pixel " + x + " of " + width);
+			}
+			assertEquals(0, dst[0]);
+			for (int i = 1 + width; i < dst.length; i++) {
+				assertEquals(0, dst[i]);
+			}
+		}
+	}
+
+	@Test
+	void convertsShortsToEightBit() {
+		for (int width : WIDTHS) {
+			byte[] mask = randomMask(width, width + 3);
+			short[] src = new short[3 + width];
+			for (int x = 0; x < width; x++) {
+				src[3 + x] = mask[x] != 0 ? (short) 0xffff : 0;
+			}
+			byte[] dst = new byte[1 + width + 5];
+			OutputFormat.EightBit.packRow(src, 3, width, dst, 1);
+
+			for (int x = 0; x < width; x++) {
+				assertEquals(mask[x], dst[1 + x], "pixel " + x + " of " + width);
+			}
+			for (int i = 1 + width; i < dst.length; i++) {
+				assertEquals(0, dst[i]);
+			}
+		}
+	}
+
+	@Test
+	void writesTheSameMaskInEveryFormat() throws Exception {
+		// 100 pixels wide: the last output tile holds 4 pixels of each row
+		int width = 100;
+		int height = 70;
+		File inputFolder = new File(folder, "input");
+		inputFolder.mkdirs();
+		byte[] pixels = new byte[width * height * 2];
+		new Random(5).nextBytes(pixels);
+		File image = new File(inputFolder, "image.ome.tif");
+		writeImage(image, "uint16", width, height, pixels);
+
+		for (boolean streaming : new boolean[] {false, true}) {
+			byte[] same = threshold(inputFolder, OutputFormat.Same, streaming, width, height);
+			byte[] eightBit = threshold(inputFolder, OutputFormat.EightBit, streaming, width, height);
+			byte[] oneBit = threshold(inputFolder, OutputFormat.OneBit, streaming, width, height);
+			for (int i = 0; i < width * height; i++) {
+				int value = (pixels[2 * i] & 0xff) | (pixels[2 * i + 1] & 0xff) << 8;
+				boolean foreground = value > 30000;
+				assertEquals(foreground ? (byte) 0xff : 0, same[2 * i], "pixel " + i);
+				assertEquals(foreground ? (byte) 0xff : 0, same[2 * i + 1], "pixel " + i);
+				assertEquals(foreground ? (byte) 0xff : 0, eightBit[i], "pixel " + i);
+				// Bilevel pixels are read back one per byte
+				assertEquals(foreground, oneBit[i] != 0, "pixel " + i);
+			}
+		}
+	}
+
+	/**
+	 * Thresholds the images of a folder at 30000 and reads back the mask.
+	 */
+	private byte[] threshold(File inputFolder, OutputFormat outputFormat, boolean streaming,
+			int width, int height) throws Exception {
+		File outputFolder = new File(folder, "output-" + outputFormat + "-" + streaming);
+		ThresholdingProcessor processor = new ThresholdingProcessor(inputFolder, outputFolder,
+				ThresholdingType.Manual, 30000, 2);
+		processor.outputFormat = outputFormat;
+		processor.streaming = streaming;
+		processor.tileSize = 32;
+		processor.runTresh();
+		return readImage(new File(outputFolder, "image.ome.tif"), width, height);
+	}
+
+	/**
+	 * @return a random mask of 0 and 0xff bytes
+	 */
+	private static byte[] randomMask(int width, long seed) {
+		Random random = new Random(seed);
+		byte[] mask = new byte[width];
+		for (int x = 0; x < width; x++) {
+			mask[x] = random.nextBoolean() ? (byte) 0xff : 0;
+		}
+		return mask;
+	}
+
+	/**
+	 * Checks the bits of a packed row, most significant bit first, and that
+	 * the padding bits after the row are 0.
+	 */
+	private static void assertUnpacks(byte[] mask, byte[] dst, int dstOffset, int width) {
+		for (int x = 0; x < ROW_BYTES * 8; x++) {
+			boolean bit = (dst[dstOffset + x / 8] & (0x80 >> (x % 8))) != 0;
+			assertEquals(x < width && mask[x] != 0, bit, "bit " + x + " of " + width);
+		}
+	}
+
+	private static void writeImage(File file, String pixelType, int width, int height,
+			byte[] pixels) throws Exception {
+		OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+		MetadataTools.populateMetadata(metadata, 0, file.getName(), true, "XYZCT", pixelType,
+				width, height, 1, 1, 1, 1);
+		int bpp = pixelType.equals("uint16") ? 2 : 1;
+		try (TileEncoders encoders = new TileEncoders(2, 4);
+				TiledTiffWriter writer = new TiledTiffWriter(file, metadata, 32,
+						TileCompression.LZW, 6, encoders)) {
+			for (int tile = 0; tile < writer.getNbTiles(); tile++) {
+				int tileX = tile % writer.getNXTiles() * 32;
+				int tileY = tile / writer.getNXTiles() * 32;
+				byte[] buf = writer.newTileBuffer();
+				for (int y = tileY; y < Math.min(height, tileY + 32); y++) {
+					int n = Math.min(width, tileX + 32) - tileX;
+					System.arraycopy(pixels, (y * width + tileX) * bpp, buf,
+							(y - tileY) * 32 * bpp, n * bpp);
+				}
+				writer.writeTile(buf);
+			}
+		}
+	}
+
+	/**
+	 * @return the pixels of an image read by Bio-Formats, in little endian
+	 */
+	private static byte[] readImage(File file, int width, int height) throws Exception {
+		try (IFormatReader reader = BioFormatsUtils.openReader(file.getAbsolutePath(),
+				BioFormatsUtils.createMetadata())) {
+			assertEquals(width, reader.getSizeX());
+			assertEquals(height, reader.getSizeY());
+			byte[] pixels = reader.openBytes(0, 0, 0, width, height);
+			if (FormatTools.getBytesPerPixel(reader.getPixelType()) == 2 && !reader.isLittleEndian()) {
+				for (int i = 0; i < pixels.length; i += 2) {
+					byte b = pixels[i];
+					pixels[i] = pixels[i + 1];
+					pixels[i + 1] = b;
+				}
+			}
+			return pixels;
+		}
+	}
+}
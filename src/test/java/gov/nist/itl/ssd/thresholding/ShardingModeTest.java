@@ -0,0 +1,143 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Checks that the shards partition the collection the same way in every run.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class ShardingModeTest {
+
+	@TempDir
+	File folder;
+
+	@ParameterizedTest
+	@EnumSource(ShardingMode.class)
+	void partitionsTheCollection(ShardingMode mode) throws IOException {
+		Random random = new Random(3);
+		File[] images = new File[40];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = createImage("image" + i + ".ome.tif", random.nextInt(5000));
+		}
+		File[] sortedImages = images.clone();
+		Arrays.sort(sortedImages, Comparator.comparing(File::getName));
+
+		for (int shardCount : new int[] {1, 2, 3, 7, 50}) {
+			List<File> shuffled = new ArrayList<>(Arrays.asList(images));
+			Collections.shuffle(shuffled, random);
+			List<File> all = new ArrayList<>();
+			Set<File> distinct = new HashSet<>();
+			for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+				File[] shard = mode.select(images, shardIndex, shardCount);
+				// Same shard from another call and from another order
+				assertArrayEquals(shard, mode.select(images, shardIndex, shardCount));
+				assertArrayEquals(shard, mode.select(shuffled.toArray(new File[0]), shardIndex,
+						shardCount));
+				File[] sortedShard = shard.clone();
+				Arrays.sort(sortedShard, Comparator.comparing(File::getName));
+				assertArrayEquals(sortedShard, shard);
+				all.addAll(Arrays.asList(shard));
+				distinct.addAll(Arrays.asList(shard));
+			}
+			assertEquals(images.length, all.size(), shardCount + " shards");
+			assertEquals(images.length, distinct.size(), shardCount + " shards");
+			all.sort(Comparator.comparing(File::getName));
+			assertArrayEquals(sortedImages, all.toArray(new File[0]));
+		}
+	}
+
+	@Test
+	void hashShardOfAnImageDoesNotDependOnTheOthers() throws IOException {
+		File[] images = new File[30];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = createImage("image" + i + ".ome.tif", i);
+		}
+		File[] half = Arrays.copyOf(images, 15);
+		for (int shardIndex = 0; shardIndex < 4; shardIndex++) {
+			List<File> shard = Arrays.asList(ShardingMode.Hash.select(images, shardIndex, 4));
+			for (File image : ShardingMode.Hash.select(half, shardIndex, 4)) {
+				assertTrue(shard.contains(image), image.getName());
+			}
+		}
+	}
+
+	@Test
+	void sizeShardsAreBalancedLargestFirst() throws IOException {
+		// Sizes 10 to 1, assigned from the largest to the least loaded shard,
+		// the first one on ties
+		File[] images = new File[10];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = createImage((char) ('a' + i) + ".ome.tif", 10 - i);
+		}
+		assertShard(ShardingMode.Size.select(images, 0, 3), "a", "f", "g");
+		assertShard(ShardingMode.Size.select(images, 1, 3), "b", "e", "h");
+		assertShard(ShardingMode.Size.select(images, 2, 3), "c", "d", "i", "j");
+
+		// The loads differ by less than the largest image
+		Random random = new Random(4);
+		images = new File[60];
+		long largest = 0;
+		for (int i = 0; i < images.length; i++) {
+			int size = 1 + random.nextInt(i < 5 ? 20000 : 2000);
+			images[i] = createImage("image" + i + ".ome.tif", size);
+			largest = Math.max(largest, size);
+		}
+		long minLoad = Long.MAX_VALUE;
+		long maxLoad = 0;
+		for (int shardIndex = 0; shardIndex < 4; shardIndex++) {
+			long load = 0;
+			for (File image : ShardingMode.Size.select(images, shardIndex, 4)) {
+				load += image.length();
+			}
+			minLoad = Math.min(minLoad, load);
+			maxLoad = Math.max(maxLoad, load);
+		}
+		assertTrue(maxLoad - minLoad <= largest, minLoad + " to " + maxLoad);
+	}
+
+	private static void assertShard(File[] shard, String... names) {
+		String[] actual = new String[shard.length];
+		for (int i = 0; i < shard.length; i++) {
+			actual[i] = shard[i].getName().replace(".ome.tif", "");
+		}
+		assertArrayEquals(names, actual);
+	}
+
+	private File createImage(String name, int size) throws IOException {
+		File image = new File(folder, name);
+		Files.write(image.toPath(), new byte[size]);
+		return image;
+	}
+}
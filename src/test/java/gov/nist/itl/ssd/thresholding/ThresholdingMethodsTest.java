@@ -0,0 +1,136 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Checks the threshold of every automatic method on fixed histograms against
+ * the thresholds computed by the former implementation of the methods, which
+ * scanned the histogram for every sum.
+ *
+ * The counts are small enough for the former int accumulators not to
+ * overflow: the thresholds differ where they did, on large 16bpp images.
+ *
+ * @author Peter Bajcsy <peter.bajcsy at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class ThresholdingMethodsTest {
+
+	private static final Map<String, int[]> HISTOGRAMS = new LinkedHashMap<>();
+	// Thresholds of the former implementation, in the order of METHODS
+	private static final Map<String, int[]> EXPECTED = new LinkedHashMap<>();
+
+	private static final ThresholdingType[] METHODS = {
+		ThresholdingType.IJDefault, ThresholdingType.Huang, ThresholdingType.Huang2,
+		ThresholdingType.Intermodes, ThresholdingType.IsoData, ThresholdingType.Li,
+		ThresholdingType.MaxEntropy, ThresholdingType.Mean, ThresholdingType.MinErrorI,
+		ThresholdingType.Minimum, ThresholdingType.Moments, ThresholdingType.Otsu,
+		ThresholdingType.Percentile, ThresholdingType.RenyiEntropy, ThresholdingType.Shanbhag,
+		ThresholdingType.Triangle, ThresholdingType.Yen};
+
+	static {
+		HISTOGRAMS.put("bimodal8", bimodal(256, 60, 10, 5000, 180, 15, 3000));
+		EXPECTED.put("bimodal8", new int[] {
+			120, 102, 119, 120, 120, 109, 90, 116, 108, 99, 150, 120, 76, 113, 161, 89, 80});
+		HISTOGRAMS.put("singleValued8", bins(256, 128, 1000));
+		EXPECTED.put("singleValued8", new int[] {
+			128, -1, 0, -1, -1, 0, -1, 128, 128, -1, -1, Integer.MIN_VALUE, 0, 0, -1, 126, -1});
+		HISTOGRAMS.put("adjacentBins8", bins(256, 100, 500, 101, 300));
+		EXPECTED.put("adjacentBins8", new int[] {
+			101, 100, 100, -1, -1, 100, -1, 100, 100, -1, 101, 100, 100, 0, 100, 103, -1});
+		HISTOGRAMS.put("bimodal16", bimodal(65536, 300, 30, 2000, 900, 80, 1000));
+		EXPECTED.put("bimodal16", new int[] {
+			600, 422, 599, 600, 600, 546, 843, 642, 464, 416, 764, 600, 807, 836, 847, 391, 848});
+		HISTOGRAMS.put("singleValued16", bins(65536, 30000, 2));
+		EXPECTED.put("singleValued16", new int[] {
+			32768, -1, 0, -1, -1, 0, -1, 30000, 30000, -1, -1, Integer.MIN_VALUE, 0, 0, -1, 29998,
+			-1});
+		HISTOGRAMS.put("adjacentBins16", bins(65536, 1000, 500, 1001, 300));
+		EXPECTED.put("adjacentBins16", new int[] {
+			1001, 1000, 1000, -1, -1, 1000, -1, 1000, 1000, -1, 1001, 1000, 1000, 0, 1000, 1003,
+			-1});
+		HISTOGRAMS.put("sparse16", sparse(65536, 2000, 12000, 97));
+		EXPECTED.put("sparse16", new int[] {
+			6620, 6171, 6171, -1, 6620, 6008, 6656, 6353, 5131, -1, 2000, 6559, 5977, 6781, 6753,
+			2196, 6656});
+	}
+
+	static List<Arguments> thresholds() {
+		List<Arguments> arguments = new ArrayList<>();
+		for (String histogram : HISTOGRAMS.keySet()) {
+			for (int i = 0; i < METHODS.length; i++) {
+				arguments.add(Arguments.of(histogram, METHODS[i], EXPECTED.get(histogram)[i]));
+			}
+		}
+		return arguments;
+	}
+
+	@ParameterizedTest(name = "{0} {1}")
+	@MethodSource("thresholds")
+	void sameThresholdAsFormerImplementation(String name, ThresholdingType type, int expected) {
+		int[] histogram = HISTOGRAMS.get(name).clone();
+		assertEquals(expected, ThresholdingMethods.compute(type, new HistogramStatistics(histogram)));
+		// The histogram is shared by the methods
+		assertArrayEquals(HISTOGRAMS.get(name), histogram);
+	}
+
+	/**
+	 * @return the sum of two rounded gaussians
+	 */
+	private static int[] bimodal(int nbBins, int mean1, int sd1, int count1,
+			int mean2, int sd2, int count2) {
+		int[] histogram = new int[nbBins];
+		for (int i = 0; i < nbBins; i++) {
+			histogram[i] = gaussian(i, mean1, sd1, count1) + gaussian(i, mean2, sd2, count2);
+		}
+		return histogram;
+	}
+
+	private static int gaussian(int i, int mean, int sd, int count) {
+		double z = (i - mean) / (double) sd;
+		return (int) Math.round(count * Math.exp(-z * z / 2));
+	}
+
+	/**
+	 * @param binsAndCounts pairs of bin and count
+	 */
+	private static int[] bins(int nbBins, int... binsAndCounts) {
+		int[] histogram = new int[nbBins];
+		for (int i = 0; i < binsAndCounts.length; i += 2) {
+			histogram[binsAndCounts[i]] = binsAndCounts[i + 1];
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return a histogram whose only non-empty bins are every step bins
+	 *         between first and last, higher below (first + last) / 3
+	 */
+	private static int[] sparse(int nbBins, int first, int last, int step) {
+		int[] histogram = new int[nbBins];
+		for (int i = first; i <= last; i += step) {
+			histogram[i] = 1 + (i * 7919) % 7 + (i < (first + last) / 3 ? 3 : 0);
+		}
+		return histogram;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Records images in a manifest and checks which ones are complete, after
+ * reloading the manifest.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class CompletionManifestTest {
+
+	private static final String METHOD = "Otsu";
+	private static final String SETTINGS = "format=same tilesize=1024 compression=lzw";
+
+	@TempDir
+	File folder;
+
+	private File manifestFile;
+	private File input;
+	private File output;
+
+	@BeforeEach
+	void createImages() throws IOException {
+		manifestFile = new File(folder, "manifest.jsonl");
+		input = createFile("input.ome.tif", "input pixels");
+		output = createFile("output.ome.tif", "output mask");
+	}
+
+	@Test
+	void recordsCompleteImages() throws IOException {
+		CompletionManifest manifest = new CompletionManifest(manifestFile);
+		assertFalse(manifest.isComplete(input, output, METHOD, SETTINGS, Double.NaN));
+		manifest.add(input, output, METHOD, SETTINGS, 42);
+		assertTrue(manifest.isComplete(input, output, METHOD, SETTINGS, Double.NaN));
+
+		manifest = new CompletionManifest(manifestFile);
+		assertTrue(manifest.isComplete(input, output, METHOD, SETTINGS, Double.NaN));
+		assertTrue(manifest.isComplete(input, output, METHOD, SETTINGS, 42));
+		assertFalse(manifest.isComplete(input, output, METHOD, SETTINGS, 43));
+		assertFalse(manifest.isComplete(input, output, "Li", SETTINGS, Double.NaN));
+		assertFalse(manifest.isComplete(input, output, METHOD, SETTINGS + " sampling=0.1",
+				Double.NaN));
+		assertFalse(manifest.isComplete(input, new File(folder, "other.ome.tif"), METHOD,
+				SETTINGS, Double.NaN));
+	}
+
+	@Test
+	void modifiedInputIsNotComplete() throws IOException {
+		new CompletionManifest(manifestFile).add(input, output, METHOD, SETTINGS, 42);
+
+		long mtime = input.lastModified();
+		assertTrue(input.setLastModified(mtime - 10000));
+		assertFalse(new CompletionManifest(manifestFile).isComplete(input, output, METHOD,
+				SETTINGS, Double.NaN));
+		assertTrue(input.setLastModified(mtime));
+		assertTrue(new CompletionManifest(manifestFile).isComplete(input, output, METHOD,
+				SETTINGS, Double.NaN));
+
+		// Same modification time, other size
+		Files.write(input.toPath(), "input pixels, modified".getBytes(StandardCharsets.UTF_8));
+		assertTrue(input.setLastModified(mtime));
+		assertFalse(new CompletionManifest(manifestFile).isComplete(input, output, METHOD,
+				SETTINGS, Double.NaN));
+	}
+
+	@Test
+	void modifiedOrMissingOutputIsNotComplete() throws IOException {
+		new CompletionManifest(manifestFile).add(input, output, METHOD, SETTINGS, 42);
+
+		// Same size, other content
+		Files.write(output.toPath(), "output MASK".getBytes(StandardCharsets.UTF_8));
+		assertFalse(new CompletionManifest(manifestFile).isComplete(input, output, METHOD,
+				SETTINGS, Double.NaN));
+
+		Files.write(output.toPath(), "output mask, longer".getBytes(StandardCharsets.UTF_8));
+		assertFalse(new CompletionManifest(manifestFile).isComplete(input, output, METHOD,
+				SETTINGS, Double.NaN));
+
+		assertTrue(output.delete());
+		assertFalse(new CompletionManifest(manifestFile).isComplete(input, output, METHOD,
+				SETTINGS, Double.NaN));
+	}
+
+	@Test
+	void ignoresTruncatedLine() throws IOException {
+		File input2 = createFile("input2.ome.tif", "other input pixels");
+		File output2 = createFile("output2.ome.tif", "other output mask");
+		CompletionManifest manifest = new CompletionManifest(manifestFile);
+		manifest.add(input, output, METHOD, SETTINGS, 42);
+		long firstLineLength = manifestFile.length();
+		manifest.add(input2, output2, METHOD, SETTINGS, 43);
+
+		// Crash in the middle of the second line
+		try (RandomAccessFile raf = new RandomAccessFile(manifestFile, "rw")) {
+			raf.setLength(firstLineLength + 20);
+		}
+		manifest = new CompletionManifest(manifestFile);
+		assertTrue(manifest.isComplete(input, output, METHOD, SETTINGS, Double.NaN));
+		assertFalse(manifest.isComplete(input2, output2, METHOD, SETTINGS, Double.NaN));
+		byte[] content = Files.readAllBytes(manifestFile.toPath());
+		assertEquals(firstLineLength + 21, content.length);
+		assertEquals('\n', content[content.length - 1]);
+
+		// The next entries are recorded after the truncated line
+		manifest.add(input2, output2, METHOD, SETTINGS, 43);
+		manifest = new CompletionManifest(manifestFile);
+		assertTrue(manifest.isComplete(input, output, METHOD, SETTINGS, Double.NaN));
+		assertTrue(manifest.isComplete(input2, output2, METHOD, SETTINGS, Double.NaN));
+	}
+
+	@Test
+	void escapesPaths() throws IOException {
+		File subFolder = new File(folder, "quote\"back\\slash\ttab\nnewline\u0001");
+		assertTrue(subFolder.mkdir());
+		File input2 = createFile(new File(subFolder, "in \"1\".ome.tif"), "input pixels");
+		File output2 = createFile("out\\\"\r.ome.tif", "output mask");
+		String settings = "{\"key\": \"value\\\"}\u001f";
+
+		new CompletionManifest(manifestFile).add(input2, output2, METHOD, settings, 42);
+		assertEquals(1, Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8).size());
+
+		CompletionManifest manifest = new CompletionManifest(manifestFile);
+		assertTrue(manifest.isComplete(input2, output2, METHOD, settings, Double.NaN));
+		assertFalse(manifest.isComplete(input, output, METHOD, settings, Double.NaN));
+	}
+
+	private File createFile(String name, String content) throws IOException {
+		return createFile(new File(folder, name), content);
+	}
+
+	private static File createFile(File file, String content) throws IOException {
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.CREATE_NEW);
+		return file;
+	}
+}
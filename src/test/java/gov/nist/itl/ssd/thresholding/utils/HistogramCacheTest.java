@@ -0,0 +1,255 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Stores histograms in the cache and checks when they are read back.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class HistogramCacheTest {
+
+	// Larger than the 3 hashed blocks of 64 kB
+	private static final int IMAGE_SIZE = 1024 * 1024;
+
+	@TempDir
+	File folder;
+
+	private File cacheFolder;
+	private File image;
+
+	@BeforeEach
+	void createImage() throws IOException {
+		cacheFolder = new File(folder, "cache");
+		image = new File(folder, "image.ome.tif");
+		byte[] content = new byte[IMAGE_SIZE];
+		new Random(1).nextBytes(content);
+		Files.write(image.toPath(), content);
+	}
+
+	@Test
+	void roundTrip8Bits() throws IOException {
+		int[] histogram = new int[256];
+		histogram[0] = 1;
+		histogram[1] = 127;
+		histogram[2] = 128;
+		histogram[100] = 1 << 20;
+		histogram[255] = Integer.MAX_VALUE;
+		checkRoundTrip(histogram);
+	}
+
+	@Test
+	void roundTrip16Bits() throws IOException {
+		// Sparse, with gaps of any length
+		int[] histogram = new int[65536];
+		Random random = new Random(2);
+		for (int bin = 0; bin < histogram.length; bin += 1 + random.nextInt(300)) {
+			histogram[bin] = random.nextInt(Integer.MAX_VALUE);
+		}
+		histogram[65535] = 3;
+		checkRoundTrip(histogram);
+
+		// Dense
+		for (int bin = 0; bin < histogram.length; bin++) {
+			histogram[bin] = 1 + random.nextInt(1000);
+		}
+		checkRoundTrip(histogram);
+
+		checkRoundTrip(new int[65536]);
+	}
+
+	@Test
+	void missesModifiedImage() throws IOException {
+		HistogramCache cache = new HistogramCache(cacheFolder);
+		int[] histogram = new int[256];
+		histogram[10] = 5;
+		long mtime = image.lastModified();
+
+		// Other modification time
+		cache.put(image, histogram);
+		assertTrue(image.setLastModified(mtime - 10000));
+		assertNull(cache.get(image));
+		assertTrue(image.setLastModified(mtime));
+		assertArrayEquals(histogram, cache.get(image));
+
+		// Same size and modification time, one byte modified in each of the
+		// hashed blocks, and out of them
+		for (long offset : new long[] {10, IMAGE_SIZE / 2, IMAGE_SIZE - 10, 100 * 1024}) {
+			assertTrue(image.setLastModified(mtime));
+			cache.put(image, histogram);
+			byte value = modifyByte(image, offset);
+			assertTrue(image.setLastModified(mtime));
+			if (offset == 100 * 1024) {
+				assertArrayEquals(histogram, cache.get(image));
+			} else {
+				assertNull(cache.get(image), "modified at " + offset);
+			}
+			modifyByte(image, offset, value);
+		}
+
+		// Other size
+		assertTrue(image.setLastModified(mtime));
+		cache.put(image, histogram);
+		try (RandomAccessFile raf = new RandomAccessFile(image, "rw")) {
+			raf.setLength(IMAGE_SIZE - 1);
+		}
+		assertTrue(image.setLastModified(mtime));
+		assertNull(cache.get(image));
+	}
+
+	@Test
+	void missesCorruptEntry() throws IOException {
+		HistogramCache cache = new HistogramCache(cacheFolder);
+		int[] histogram = new int[65536];
+		histogram[1000] = 7;
+		histogram[60000] = 9;
+		cache.put(image, histogram);
+		File entry = getEntry();
+		byte[] content = Files.readAllBytes(entry.toPath());
+
+		// Truncated in the header, in the hash and in the bins
+		for (int length : new int[] {3, 30, content.length - 1}) {
+			Files.write(entry.toPath(), Arrays.copyOf(content, length));
+			assertNull(cache.get(image), "truncated at " + length);
+		}
+
+		// Other magic and other version
+		for (int offset : new int[] {0, 4}) {
+			byte[] corrupt = content.clone();
+			corrupt[offset]++;
+			Files.write(entry.toPath(), corrupt);
+			assertNull(cache.get(image), "modified at " + offset);
+		}
+
+		Files.write(entry.toPath(), new byte[] {'n', 'o', 't', ' ', 'a', 'n', ' ', 'e', 'n'});
+		assertNull(cache.get(image));
+
+		Files.write(entry.toPath(), content);
+		assertArrayEquals(histogram, cache.get(image));
+	}
+
+	@Test
+	void missesForeignEntry() throws IOException {
+		HistogramCache cache = new HistogramCache(cacheFolder);
+		File other = new File(folder, "other.ome.tif");
+		Files.write(other.toPath(), new byte[] {1, 2, 3});
+		int[] histogram = new int[256];
+		histogram[10] = 5;
+		cache.put(other, histogram);
+		File saved = new File(folder, "other.hist");
+		Files.move(getEntry().toPath(), saved.toPath());
+
+		// Entry of the other image in place of the entry of the image
+		cache.put(image, histogram);
+		Files.move(saved.toPath(), getEntry().toPath(), StandardCopyOption.REPLACE_EXISTING);
+		assertNull(cache.get(image));
+		assertNull(new HistogramCache(cacheFolder).get(image));
+	}
+
+	@Test
+	void missesUnexpectedBinCount() throws IOException {
+		HistogramCache cache = new HistogramCache(cacheFolder);
+		cache.put(image, new int[1000]);
+		assertNotNull(getEntry());
+		assertNull(cache.get(image));
+	}
+
+	@Test
+	void varLongRoundTrip() throws IOException {
+		long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, 1L << 35,
+				Long.MAX_VALUE, -1};
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (long value : values) {
+			HistogramCache.writeVarLong(out, value);
+		}
+		// 1 byte up to 127, 2 bytes up to 16383
+		assertEquals(1, sizeOf(0));
+		assertEquals(1, sizeOf(127));
+		assertEquals(2, sizeOf(128));
+		assertEquals(2, sizeOf(16383));
+		assertEquals(3, sizeOf(16384));
+
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		for (long value : values) {
+			assertEquals(value, HistogramCache.readVarLong(in));
+		}
+		assertEquals(-1, in.read());
+	}
+
+	/**
+	 * Stores a histogram and reads it back from another cache on the same
+	 * folder.
+	 */
+	private void checkRoundTrip(int[] histogram) throws IOException {
+		new HistogramCache(cacheFolder).put(image, histogram);
+		assertArrayEquals(histogram, new HistogramCache(cacheFolder).get(image));
+	}
+
+	/**
+	 * @return the single entry of the cache
+	 */
+	private File getEntry() {
+		File[] entries = cacheFolder.listFiles((dir, name) -> name.endsWith(".hist"));
+		assertNotNull(entries);
+		assertEquals(1, entries.length);
+		return entries[0];
+	}
+
+	private static int sizeOf(long value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HistogramCache.writeVarLong(out, value);
+		return out.size();
+	}
+
+	/**
+	 * Increments a byte of a file.
+	 *
+	 * @return the former value of the byte
+	 */
+	private static byte modifyByte(File file, long offset) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(offset);
+			byte value = raf.readByte();
+			raf.seek(offset);
+			raf.writeByte(value + 1);
+			return value;
+		}
+	}
+
+	private static void modifyByte(File file, long offset, byte value) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(offset);
+			raf.writeByte(value);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Merges histogram snapshots of ranges of tiles of an image.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class HistogramSnapshotTest {
+
+	private static final int TILE_SIZE = 1024;
+	private static final int NB_TILES = 10;
+
+	@TempDir
+	File folder;
+
+	private File image;
+
+	@BeforeEach
+	void createImage() throws IOException {
+		image = new File(folder, "image.ome.tif");
+		Files.write(image.toPath(), new byte[] {1, 2, 3});
+	}
+
+	@Test
+	void mergesSnapshotsInAnyOrder() throws IOException {
+		List<HistogramSnapshot> snapshots = new ArrayList<>();
+		snapshots.add(snapshot(0, 3, 1));
+		snapshots.add(snapshot(3, 4, 2));
+		snapshots.add(snapshot(4, 10, 3));
+		long[] expected = new long[256];
+		expected[0] = 3;
+		expected[1] = 6;
+		expected[255] = 6L << 32;
+
+		assertArrayEquals(expected, HistogramSnapshot.merge(image, snapshots));
+		Collections.reverse(snapshots);
+		assertArrayEquals(expected, HistogramSnapshot.merge(image, snapshots));
+	}
+
+	@Test
+	void mergesSnapshotsReadBack() throws IOException {
+		List<HistogramSnapshot> snapshots = new ArrayList<>();
+		int[][] ranges = {{5, 10}, {0, 5}};
+		for (int[] range : ranges) {
+			File file = new File(folder, "snapshot-" + range[0] + ".hist");
+			snapshot(range[0], range[1], range[0] + 1).write(file);
+			snapshots.add(HistogramSnapshot.read(file));
+		}
+		long[] expected = new long[256];
+		expected[0] = 2;
+		expected[1] = 7;
+		expected[255] = 7L << 32;
+		assertArrayEquals(expected, HistogramSnapshot.merge(image, snapshots));
+	}
+
+	@Test
+	void rejectsMissingTiles() {
+		assertMergeFails("miss the tiles [3, 4[", snapshot(0, 3, 1), snapshot(4, 10, 1));
+		assertMergeFails("miss the tiles [0, 2[", snapshot(2, 10, 1));
+		assertMergeFails("miss the tiles [8, 10[", snapshot(0, 8, 1));
+		assertThrows(IOException.class,
+				() -> HistogramSnapshot.merge(image, Collections.<HistogramSnapshot>emptyList()));
+	}
+
+	@Test
+	void rejectsOverlappingTiles() {
+		assertMergeFails("overlap on the tiles [3, 5[", snapshot(0, 5, 1), snapshot(3, 10, 1));
+		assertMergeFails("overlap on the tiles [0, 10[", snapshot(0, 10, 1), snapshot(0, 10, 1));
+	}
+
+	@Test
+	void rejectsSnapshotsOfAnotherVersion() throws IOException {
+		HistogramSnapshot first = snapshot(0, 5, 1);
+		Files.write(image.toPath(), new byte[] {1, 2, 3, 4});
+		assertMergeFails("another version", first, snapshot(5, 10, 1));
+	}
+
+	@Test
+	void rejectsDifferentTileSizes() {
+		HistogramSnapshot other = new HistogramSnapshot(image, TILE_SIZE / 2, NB_TILES, 5, 10,
+				histogram(1));
+		assertMergeFails("different tile sizes", snapshot(0, 5, 1), other);
+	}
+
+	@Test
+	void rejectsInvalidFiles() throws IOException {
+		File file = new File(folder, "invalid.hist");
+		Files.write(file.toPath(), "WTHX".getBytes());
+		assertThrows(IOException.class, () -> HistogramSnapshot.read(file));
+	}
+
+	/**
+	 * @return a snapshot of a range of tiles, with one pixel of value 0,
+	 *         count pixels of value 1 and count * 2^32 pixels of value 255
+	 */
+	private HistogramSnapshot snapshot(int firstTile, int endTile, int count) {
+		return new HistogramSnapshot(image, TILE_SIZE, NB_TILES, firstTile, endTile,
+				histogram(count));
+	}
+
+	private static long[] histogram(int count) {
+		long[] histogram = new long[256];
+		histogram[0] = 1;
+		histogram[1] = count;
+		histogram[255] = (long) count << 32;
+		return histogram;
+	}
+
+	private void assertMergeFails(String message, HistogramSnapshot... snapshots) {
+		IOException ex = assertThrows(IOException.class,
+				() -> HistogramSnapshot.merge(image, Arrays.asList(snapshots)));
+		assertTrue(ex.getMessage().contains(message), ex.getMessage());
+	}
+}
@@ -0,0 +1,314 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import loci.formats.IFormatReader;
+import loci.formats.MetadataTools;
+import loci.formats.ome.OMEXMLMetadata;
+
+/**
+ * Checks that the MappedTiffReader decodes the same bytes as Bio-Formats, and
+ * leaves to Bio-Formats the files it does not handle.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class MappedTiffReaderTest {
+
+	private static final int WIDTH = 100;
+	private static final int HEIGHT = 70;
+	private static final int TILE_SIZE = 32;
+	private static final int PHOTOMETRIC_INTERPRETATION = 262;
+
+	private static TileEncoders encoders;
+
+	@TempDir
+	File folder;
+
+	@BeforeAll
+	static void startEncoders() {
+		encoders = new TileEncoders(2, 4);
+	}
+
+	@AfterAll
+	static void stopEncoders() {
+		encoders.close();
+	}
+
+	@Test
+	void decodesTiledImages() throws Exception {
+		for (TileCompression compression : TileCompression.values()) {
+			for (String pixelType : new String[] {"uint8", "uint16"}) {
+				File file = new File(folder, pixelType + "-" + compression + ".ome.tif");
+				writeTiled(file, pixelType, compression, false);
+				assertSameBytes(file, true);
+			}
+		}
+	}
+
+	@Test
+	void decodesTiledBigTiffImages() throws Exception {
+		for (TileCompression compression : TileCompression.values()) {
+			File file = new File(folder, "big-" + compression + ".ome.tif");
+			writeTiled(file, "uint16", compression, true);
+			assertSameBytes(file, true);
+		}
+	}
+
+	@Test
+	void decodesStrippedImages() throws Exception {
+		// No compression, LZW and deflate
+		for (String compression : new String[] {null, "LZW", "Deflate"}) {
+			for (int type : new int[] {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY}) {
+				File file = new File(folder, "stripped-" + compression + "-" + type + ".tif");
+				writeStripped(file, compression, 1, type);
+				assertSameBytes(file, true);
+			}
+		}
+	}
+
+	@Test
+	void readsDimensionsFromTheFirstIfd() throws Exception {
+		File tiled = new File(folder, "tiled.ome.tif");
+		writeTiled(tiled, "uint16", TileCompression.LZW, false);
+		assertArrayEquals(new int[] {WIDTH, HEIGHT, 16}, MappedTiffReader.readDimensions(tiled));
+
+		File big = new File(folder, "big.ome.tif");
+		writeTiled(big, "uint8", TileCompression.UNCOMPRESSED, true);
+		assertArrayEquals(new int[] {WIDTH, HEIGHT, 8}, MappedTiffReader.readDimensions(big));
+
+		File stripped = new File(folder, "stripped.tif");
+		writeStripped(stripped, "LZW", 1, BufferedImage.TYPE_USHORT_GRAY);
+		assertArrayEquals(new int[] {WIDTH, HEIGHT, 16}, MappedTiffReader.readDimensions(stripped));
+
+		File other = new File(folder, "other.tif");
+		Files.write(other.toPath(), "not a TIFF file, only text".getBytes(StandardCharsets.US_ASCII));
+		assertNull(MappedTiffReader.readDimensions(other));
+	}
+
+	@Test
+	void releasesTheMappingOnClose() throws Exception {
+		File file = new File(folder, "closed.ome.tif");
+		writeTiled(file, "uint8", TileCompression.UNCOMPRESSED, false);
+		IFormatReader reader = BioFormatsUtils.openReader(file.getAbsolutePath(),
+				BioFormatsUtils.createMetadata(), true);
+		assertTrue(((MappedTiffReader) reader).isMapped());
+		reader.close();
+		assertFalse(((MappedTiffReader) reader).isMapped());
+	}
+
+	@Test
+	void leavesMinIsWhiteImagesToBioFormats() throws Exception {
+		File file = new File(folder, "min-is-white.ome.tif");
+		writeTiled(file, "uint8", TileCompression.LZW, false);
+		setMinIsWhite(file);
+		assertSameBytes(file, false);
+	}
+
+	@Test
+	void leavesImagesOfSeveralPlanesToBioFormats() throws Exception {
+		File file = new File(folder, "planes.tif");
+		writeStripped(file, "LZW", 2, BufferedImage.TYPE_BYTE_GRAY);
+		assertSameBytes(file, false);
+	}
+
+	@Test
+	void leavesBilevelImagesToBioFormats() throws Exception {
+		File file = new File(folder, "bilevel.ome.tif");
+		writeTiled(file, "bit", TileCompression.UNCOMPRESSED, false);
+		assertSameBytes(file, false);
+	}
+
+	/**
+	 * Reads every plane of a file with and without the memory mapping: the
+	 * whole plane, each tile, and regions across tiles, partial edge tiles
+	 * included.
+	 */
+	private static void assertSameBytes(File file, boolean mapped) throws Exception {
+		try (IFormatReader plain = BioFormatsUtils.openReader(file.getAbsolutePath(),
+				BioFormatsUtils.createMetadata(), false);
+				IFormatReader reader = BioFormatsUtils.openReader(file.getAbsolutePath(),
+						BioFormatsUtils.createMetadata(), true)) {
+			assertTrue(reader instanceof MappedTiffReader);
+			assertEquals(mapped, ((MappedTiffReader) reader).isMapped(), file.getName());
+			int width = plain.getSizeX();
+			int height = plain.getSizeY();
+			int[][] regions = {
+					{0, 0, width, height},
+					{TILE_SIZE / 2, TILE_SIZE / 2, TILE_SIZE, TILE_SIZE},
+					{TILE_SIZE - 1, 0, 2, height},
+					{0, TILE_SIZE - 1, width, 2},
+					{width - 5, height - 3, 5, 3},
+					{1, 2, 1, 1}};
+			for (int no = 0; no < plain.getImageCount(); no++) {
+				for (int[] r : regions) {
+					assertRegion(plain, reader, no, r[0], r[1], r[2], r[3]);
+				}
+				for (int y = 0; y < height; y += TILE_SIZE) {
+					for (int x = 0; x < width; x += TILE_SIZE) {
+						assertRegion(plain, reader, no, x, y, Math.min(TILE_SIZE, width - x),
+								Math.min(TILE_SIZE, height - y));
+					}
+				}
+			}
+		}
+	}
+
+	private static void assertRegion(IFormatReader plain, IFormatReader reader, int no,
+			int x, int y, int w, int h) throws Exception {
+		String region = "plane " + no + ", region " + x + "," + y + " " + w + "x" + h;
+		byte[] expected = plain.openBytes(no, x, y, w, h);
+		assertArrayEquals(expected, reader.openBytes(no, x, y, w, h), region);
+		// Into a buffer larger than the region, as the tiles are read
+		byte[] buf = new byte[expected.length + 7];
+		reader.openBytes(no, buf, x, y, w, h);
+		for (int i = 0; i < expected.length; i++) {
+			if (buf[i] != expected[i]) {
+				fail(region + ": byte " + i + " differs when read into a buffer");
+			}
+		}
+	}
+
+	/**
+	 * @return the value of a pixel, noise on the left half of the image and a
+	 *         gradient on the right half
+	 */
+	private static int getPixel(int x, int y, int bits) {
+		int value = x < WIDTH / 2 ? (x * 73856093) ^ (y * 19349663) ^ (x * y * 83492791)
+				: (x + y) * 97;
+		return value & ((1 << bits) - 1);
+	}
+
+	/**
+	 * Writes an image with the TiledTiffWriter.
+	 */
+	private static void writeTiled(File file, String pixelType, TileCompression compression,
+			boolean bigTiff) throws IOException {
+		OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+		MetadataTools.populateMetadata(metadata, 0, file.getName(), true, "XYZCT", pixelType,
+				WIDTH, HEIGHT, 1, 1, 1, 1);
+		try (TiledTiffWriter writer = new TiledTiffWriter(file, metadata, TILE_SIZE, compression,
+				6, encoders)) {
+			writer.forceBigTiff = bigTiff;
+			int rowBytes = writer.getTileBytes() / TILE_SIZE;
+			for (int tile = 0; tile < writer.getNbTiles(); tile++) {
+				int tileX = tile % writer.getNXTiles() * TILE_SIZE;
+				int tileY = tile / writer.getNXTiles() * TILE_SIZE;
+				byte[] buf = writer.newTileBuffer();
+				for (int y = 0; y < Math.min(TILE_SIZE, HEIGHT - tileY); y++) {
+					for (int x = 0; x < Math.min(TILE_SIZE, WIDTH - tileX); x++) {
+						if (pixelType.equals("bit")) {
+							if (getPixel(tileX + x, tileY + y, 1) != 0) {
+								buf[y * rowBytes + x / 8] |= 0x80 >> (x % 8);
+							}
+						} else if (pixelType.equals("uint8")) {
+							buf[y * rowBytes + x] = (byte) getPixel(tileX + x, tileY + y, 8);
+						} else {
+							int value = getPixel(tileX + x, tileY + y, 16);
+							buf[y * rowBytes + 2 * x] = (byte) value;
+							buf[y * rowBytes + 2 * x + 1] = (byte) (value >> 8);
+						}
+					}
+				}
+				writer.writeTile(buf);
+			}
+		}
+	}
+
+	/**
+	 * Writes a stripped TIFF image with ImageIO.
+	 *
+	 * @param compression the ImageIO TIFF compression type, null for none
+	 * @param nbPlanes the number of identical planes
+	 * @param type the type of BufferedImage, 8 or 16 bits gray
+	 */
+	private static void writeStripped(File file, String compression, int nbPlanes, int type)
+			throws IOException {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+		WritableRaster raster = image.getRaster();
+		int bits = raster.getSampleModel().getSampleSize(0);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				raster.setSample(x, y, 0, getPixel(x, y, bits));
+			}
+		}
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+			writer.setOutput(out);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (compression == null) {
+				param.setCompressionMode(ImageWriteParam.MODE_DISABLED);
+			} else {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionType(compression);
+			}
+			writer.prepareWriteSequence(null);
+			for (int i = 0; i < nbPlanes; i++) {
+				writer.writeToSequence(new IIOImage(image, null, null), param);
+			}
+			writer.endWriteSequence();
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * Sets the PhotometricInterpretation of the first IFD of a classic
+	 * little endian TIFF file to WhiteIsZero.
+	 */
+	private static void setMinIsWhite(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			ByteBuffer tiff = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size())
+					.order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(42, tiff.getShort(2));
+			int ifd = tiff.getInt(4);
+			for (int i = 0; i < tiff.getShort(ifd); i++) {
+				int entry = ifd + 2 + i * 12;
+				if (tiff.getShort(entry) == PHOTOMETRIC_INTERPRETATION) {
+					tiff.putShort(entry + 8, (short) 0);
+					return;
+				}
+			}
+		}
+		fail("No PhotometricInterpretation in " + file.getName());
+	}
+}
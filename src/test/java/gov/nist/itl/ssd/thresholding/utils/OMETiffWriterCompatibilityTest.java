@@ -0,0 +1,266 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+
+import loci.formats.codec.CompressionType;
+import loci.formats.out.OMETiffWriter;
+
+/**
+ * Writes the same images with the Bio-Formats OMETiffWriter, as the plugin
+ * did before the TiledTiffWriter, and with the TiledTiffWriter, and checks
+ * that the files are equivalent: same decoded pixels, same IFD tags and
+ * values apart from the tile offsets and byte counts, and same OME-XML
+ * Pixels and TiffData elements.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class OMETiffWriterCompatibilityTest {
+
+	private static final int WIDTH = 100;
+	private static final int HEIGHT = 70;
+	private static final int TILE_SIZE = 32;
+
+	private static final int IMAGE_DESCRIPTION = 270;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int TILE_OFFSETS = 324;
+	private static final int TILE_BYTE_COUNTS = 325;
+
+	private static TileEncoders encoders;
+
+	@TempDir
+	File folder;
+
+	@BeforeAll
+	static void startEncoders() {
+		encoders = new TileEncoders(2, 4);
+	}
+
+	@AfterAll
+	static void stopEncoders() {
+		encoders.close();
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"uint8", "uint16", "bit"})
+	void sameFileAsOMETiffWriter(String pixelType) throws Exception {
+		byte[] pixels = createPixels(pixelType);
+
+		File expectedFile = new File(folder, "ome-" + pixelType + ".ome.tif");
+		writeWithOMETiffWriter(expectedFile, pixelType, pixels);
+		File actualFile = new File(folder, "tiled-" + pixelType + ".ome.tif");
+		try (TiledTiffWriter writer = new TiledTiffWriter(actualFile,
+				TiledTiffWriterTest.createMetadata(actualFile, pixelType, WIDTH, HEIGHT),
+				TILE_SIZE, TileCompression.LZW, 6, encoders)) {
+			TiledTiffWriterTest.writeTiles(writer, pixelType, WIDTH, HEIGHT, pixels, 0,
+					writer.getNbTiles());
+		}
+
+		assertArrayEquals(TiledTiffWriterTest.read(expectedFile, WIDTH, HEIGHT),
+				TiledTiffWriterTest.read(actualFile, WIDTH, HEIGHT));
+
+		Map<Integer, String> expectedTags = readTags(expectedFile);
+		Map<Integer, String> actualTags = readTags(actualFile);
+		assertEquals(expectedTags.keySet(), actualTags.keySet());
+		for (int tag : expectedTags.keySet()) {
+			if (tag != IMAGE_DESCRIPTION) {
+				assertEquals(expectedTags.get(tag), actualTags.get(tag), "tag " + tag);
+			}
+		}
+
+		Document expectedXml = parseXml(expectedTags.get(IMAGE_DESCRIPTION));
+		Document actualXml = parseXml(actualTags.get(IMAGE_DESCRIPTION));
+		assertEquals(getAttributes(expectedXml, "Pixels"), getAttributes(actualXml, "Pixels"));
+		assertEquals(getAttributes(expectedXml, "TiffData"), getAttributes(actualXml, "TiffData"));
+		assertEquals(expectedFile.getName(), getElement(expectedXml, "UUID").getAttribute("FileName"));
+		assertEquals(actualFile.getName(), getElement(actualXml, "UUID").getAttribute("FileName"));
+	}
+
+	/**
+	 * @return pixels whose left half is random and right half a pattern, one
+	 *         byte (0 or 1) per bilevel pixel, little endian for 16 bits
+	 */
+	private static byte[] createPixels(String pixelType) {
+		int bpp = pixelType.equals("uint16") ? 2 : 1;
+		byte[] pixels = new byte[WIDTH * HEIGHT * bpp];
+		Random random = new Random(7);
+		for (int i = 0; i < WIDTH * HEIGHT; i++) {
+			int value = pixelType.equals("bit") ? random.nextInt(2)
+					: (i % WIDTH) < WIDTH / 2 ? random.nextInt(bpp == 1 ? 256 : 65536) : i % 7;
+			pixels[i * bpp] = (byte) value;
+			if (bpp == 2) {
+				pixels[i * bpp + 1] = (byte) (value >> 8);
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * Writes an image tile by tile with the OMETiffWriter, configured as the
+	 * plugin configured it.
+	 */
+	private static void writeWithOMETiffWriter(File file, String pixelType, byte[] pixels)
+			throws Exception {
+		int bpp = pixelType.equals("uint16") ? 2 : 1;
+		try (OMETiffWriter imageWriter = new OMETiffWriter()) {
+			imageWriter.setMetadataRetrieve(
+					TiledTiffWriterTest.createMetadata(file, pixelType, WIDTH, HEIGHT));
+			imageWriter.setTileSizeX(TILE_SIZE);
+			imageWriter.setTileSizeY(TILE_SIZE);
+			imageWriter.setInterleaved(false);
+			imageWriter.setCompression(CompressionType.LZW.getCompression());
+			imageWriter.setId(file.getPath());
+
+			for (int tileY = 0; tileY < HEIGHT; tileY += TILE_SIZE) {
+				for (int tileX = 0; tileX < WIDTH; tileX += TILE_SIZE) {
+					int effTileSizeX = Math.min(TILE_SIZE, WIDTH - tileX);
+					int effTileSizeY = Math.min(TILE_SIZE, HEIGHT - tileY);
+					byte[] buf = new byte[effTileSizeX * effTileSizeY * bpp];
+					for (int y = 0; y < effTileSizeY; y++) {
+						System.arraycopy(pixels, ((tileY + y) * WIDTH + tileX) * bpp,
+								buf, y * effTileSizeX * bpp, effTileSizeX * bpp);
+					}
+					imageWriter.saveBytes(0, buf, tileX, tileY, effTileSizeX, effTileSizeY);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the tags of the first IFD of a TIFF or BigTIFF file.
+	 *
+	 * @return the type, count and values of each tag, the type and count only
+	 *         for the offsets and byte counts, and the string of an ASCII value
+	 */
+	private static Map<Integer, String> readTags(File file) throws Exception {
+		ByteBuffer tiff = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		boolean bigTiff = tiff.getShort(2) == 43;
+		int offsetSize = bigTiff ? 8 : 4;
+		int ifd = (int) (bigTiff ? tiff.getLong(8) : tiff.getInt(4) & 0xFFFFFFFFL);
+		long nbEntries = bigTiff ? tiff.getLong(ifd) : tiff.getShort(ifd) & 0xFFFF;
+
+		Map<Integer, String> tags = new TreeMap<>();
+		for (int i = 0; i < nbEntries; i++) {
+			int entry = ifd + (bigTiff ? 8 : 2) + i * (bigTiff ? 20 : 12);
+			int tag = tiff.getShort(entry) & 0xFFFF;
+			int type = tiff.getShort(entry + 2) & 0xFFFF;
+			int count = (int) (bigTiff ? tiff.getLong(entry + 4) : tiff.getInt(entry + 4));
+			String description = type + "x" + count;
+			if (tag == STRIP_OFFSETS || tag == STRIP_BYTE_COUNTS || tag == TILE_OFFSETS
+					|| tag == TILE_BYTE_COUNTS) {
+				tags.put(tag, description);
+				continue;
+			}
+
+			int valueSize = getTypeSize(type);
+			int values = entry + (bigTiff ? 12 : 8);
+			if (count * valueSize > offsetSize) {
+				values = (int) (bigTiff ? tiff.getLong(values) : tiff.getInt(values));
+			}
+			if (type == 2) {
+				// ASCII, without its NUL terminator
+				byte[] value = new byte[count];
+				tiff.position(values);
+				tiff.get(value);
+				String string = new String(value, StandardCharsets.UTF_8);
+				tags.put(tag, string.endsWith("\0") ? string.substring(0, string.length() - 1)
+						: string);
+				continue;
+			}
+			long[] decoded = new long[type == 5 ? 2 * count : count];
+			for (int j = 0; j < decoded.length; j++) {
+				int position = values + j * (type == 5 ? 4 : valueSize);
+				switch (type) {
+					case 1:
+						decoded[j] = tiff.get(position) & 0xFF;
+						break;
+					case 3:
+						decoded[j] = tiff.getShort(position) & 0xFFFF;
+						break;
+					case 16:
+						decoded[j] = tiff.getLong(position);
+						break;
+					default:
+						decoded[j] = tiff.getInt(position) & 0xFFFFFFFFL;
+				}
+			}
+			tags.put(tag, description + Arrays.toString(decoded));
+		}
+		return tags;
+	}
+
+	private static int getTypeSize(int type) {
+		switch (type) {
+			case 1:
+			case 2:
+				return 1;
+			case 3:
+				return 2;
+			case 5:
+			case 16:
+				return 8;
+			default:
+				return 4;
+		}
+	}
+
+	private static Document parseXml(String xml) throws Exception {
+		assertNotNull(xml, "No ImageDescription");
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		return factory.newDocumentBuilder().parse(
+				new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static Element getElement(Document xml, String name) {
+		Element element = (Element) xml.getElementsByTagNameNS("*", name).item(0);
+		assertNotNull(element, "No " + name + " element");
+		return element;
+	}
+
+	private static Map<String, String> getAttributes(Document xml, String name) {
+		NamedNodeMap attributes = getElement(xml, name).getAttributes();
+		Map<String, String> values = new TreeMap<>();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			values.put(attributes.item(i).getNodeName(), attributes.item(i).getNodeValue());
+		}
+		return values;
+	}
+}
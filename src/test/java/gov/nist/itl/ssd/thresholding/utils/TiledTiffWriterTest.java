@@ -0,0 +1,368 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.thresholding.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.MetadataTools;
+import loci.formats.ome.OMEXMLMetadata;
+
+/**
+ * Writes images with the TiledTiffWriter and reads them back with
+ * Bio-Formats.
+ *
+ * @author Mylene Simon <mylene.simon at nist.gov>
+ * @author Mohamed Ouladi <mohamed.ouladi at nist.gov>
+ */
+public class TiledTiffWriterTest {
+
+	private static final int TILE_OFFSETS = 324;
+
+	private static TileEncoders encoders;
+
+	@TempDir
+	File folder;
+
+	@BeforeAll
+	static void startEncoders() {
+		encoders = new TileEncoders(2, 4);
+	}
+
+	@AfterAll
+	static void stopEncoders() {
+		encoders.close();
+	}
+
+	@Test
+	void roundTrip8BitsClassic() throws Exception {
+		checkRoundTrip("uint8", 100, 70, 32, TileCompression.LZW, false);
+	}
+
+	@Test
+	void roundTrip16BitsClassic() throws Exception {
+		checkRoundTrip("uint16", 100, 70, 32, TileCompression.ZLIB, false);
+	}
+
+	@Test
+	void roundTrip1BitClassic() throws Exception {
+		checkRoundTrip("bit", 100, 70, 32, TileCompression.UNCOMPRESSED, false);
+	}
+
+	@Test
+	void roundTrip8BitsBigTiff() throws Exception {
+		checkRoundTrip("uint8", 100, 70, 32, TileCompression.ZLIB, true);
+	}
+
+	@Test
+	void roundTrip16BitsBigTiff() throws Exception {
+		checkRoundTrip("uint16", 100, 70, 32, TileCompression.LZW, true);
+	}
+
+	@Test
+	void roundTrip1BitBigTiff() throws Exception {
+		checkRoundTrip("bit", 100, 70, 32, TileCompression.LZW, true);
+	}
+
+	@Test
+	void roundTripSingleTile() throws Exception {
+		// Exact multiple of the tile size, a single tile stored in the IFD
+		checkRoundTrip("uint8", 48, 48, 48, TileCompression.UNCOMPRESSED, false);
+	}
+
+	@Test
+	void uniformTilesShareTheirOffset() throws Exception {
+		int width = 128;
+		int height = 96;
+		int tileSize = 32;
+		// Tiles all 0 or all 255, except the mixed tiles 5 and 6
+		byte[] pixels = new byte[width * height];
+		Random random = new Random(1);
+		int nXTiles = width / tileSize;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int tile = y / tileSize * nXTiles + x / tileSize;
+				pixels[y * width + x] = (byte) (tile == 5 || tile == 6 ? random.nextInt(2) * 255
+						: tile % 2 == 0 ? 0 : 255);
+			}
+		}
+
+		for (boolean bigTiff : new boolean[] {false, true}) {
+			File file = new File(folder, "uniform-" + bigTiff + ".ome.tif");
+			write(file, "uint8", width, height, tileSize, TileCompression.ZLIB, bigTiff, pixels);
+			assertArrayEquals(pixels, read(file, width, height));
+
+			long[] offsets = readTileOffsets(file);
+			assertEquals(12, offsets.length);
+			for (int tile = 2; tile < offsets.length; tile++) {
+				if (tile != 5 && tile != 6) {
+					assertEquals(offsets[tile % 2], offsets[tile], "offset of tile " + tile);
+				}
+			}
+			assertNotEquals(offsets[0], offsets[1]);
+			assertNotEquals(offsets[5], offsets[6]);
+			assertNotEquals(offsets[0], offsets[5]);
+		}
+	}
+
+	@Test
+	void assemblesFragments() throws Exception {
+		for (TileCompression compression : TileCompression.values()) {
+			byte[] pixels = randomPixels(100, 70, 1);
+			List<File> fragments = writeFragments("uint8", 100, 70, 32, compression, pixels,
+					0, 5, 6, 12);
+			File file = new File(folder, "assembled-" + compression + ".ome.tif");
+			assemble(file, "uint8", 100, 70, 32, compression, fragments);
+			assertArrayEquals(pixels, read(file, 100, 70));
+		}
+	}
+
+	@Test
+	void rejectsFragmentsOutOfOrder() throws Exception {
+		byte[] pixels = randomPixels(100, 70, 2);
+		List<File> fragments = writeFragments("uint8", 100, 70, 32, TileCompression.LZW, pixels,
+				0, 5, 6, 12);
+		File file = new File(folder, "assembled.ome.tif");
+
+		// Reversed, skipping a range, and repeating a range
+		assertAssembleFails("expected tiles from 0", file, TileCompression.LZW,
+				Arrays.asList(fragments.get(2), fragments.get(1), fragments.get(0)));
+		assertAssembleFails("expected tiles from 5", file, TileCompression.LZW,
+				Arrays.asList(fragments.get(0), fragments.get(2)));
+		assertAssembleFails("expected tiles from 5", file, TileCompression.LZW,
+				Arrays.asList(fragments.get(0), fragments.get(0)));
+	}
+
+	@Test
+	void rejectsFragmentsOfAnotherFormat() throws Exception {
+		byte[] pixels = randomPixels(100, 70, 3);
+		List<File> fragments = writeFragments("uint8", 100, 70, 32, TileCompression.ZLIB, pixels,
+				0, 12);
+		File file = new File(folder, "assembled.ome.tif");
+
+		assertAssembleFails("another tile size or compression", file, TileCompression.LZW,
+				fragments);
+		IOException ex = assertThrows(IOException.class,
+				() -> assemble(file, "uint8", 100, 70, 64, TileCompression.ZLIB, fragments));
+		assertTrue(ex.getMessage().contains("another image"), ex.getMessage());
+		ex = assertThrows(IOException.class,
+				() -> assemble(file, "uint16", 100, 70, 32, TileCompression.ZLIB, fragments));
+		assertTrue(ex.getMessage().contains("another image"), ex.getMessage());
+	}
+
+	private static void assertAssembleFails(String message, File file,
+			TileCompression compression, List<File> fragments) {
+		IOException ex = assertThrows(IOException.class,
+				() -> assemble(file, "uint8", 100, 70, 32, compression, fragments));
+		assertTrue(ex.getMessage().contains(message), ex.getMessage());
+	}
+
+	private static byte[] randomPixels(int width, int height, long seed) {
+		byte[] pixels = new byte[width * height];
+		new Random(seed).nextBytes(pixels);
+		return pixels;
+	}
+
+	/**
+	 * Writes an image with a pattern of pixels whose edge tiles are partial,
+	 * and checks the pixels read back by Bio-Formats.
+	 */
+	private void checkRoundTrip(String pixelType, int width, int height, int tileSize,
+			TileCompression compression, boolean bigTiff) throws Exception {
+		int bpp = pixelType.equals("uint16") ? 2 : 1;
+		byte[] pixels = new byte[width * height * bpp];
+		Random random = new Random(width * 31 + height);
+		for (int i = 0; i < width * height; i++) {
+			int value = pixelType.equals("bit") ? random.nextInt(2)
+					: (i % width) < width / 2 ? random.nextInt(bpp == 1 ? 256 : 65536) : i % 7;
+			pixels[i * bpp] = (byte) value;
+			if (bpp == 2) {
+				pixels[i * bpp + 1] = (byte) (value >> 8);
+			}
+		}
+
+		File file = new File(folder, pixelType + "-" + compression + "-" + bigTiff + ".ome.tif");
+		write(file, pixelType, width, height, tileSize, compression, bigTiff, pixels);
+
+		ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(file.toPath()), 0, 4)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals('I', header.get(0));
+		assertEquals(bigTiff ? 43 : 42, header.getShort(2));
+
+		byte[] actual = read(file, width, height);
+		if (pixelType.equals("bit")) {
+			// Bilevel pixels are read back one per byte
+			for (int i = 0; i < pixels.length; i++) {
+				assertEquals(pixels[i] != 0, actual[i] != 0, "pixel " + i);
+			}
+		} else {
+			assertArrayEquals(pixels, actual);
+		}
+	}
+
+	/**
+	 * Writes an image tile by tile.
+	 *
+	 * @param pixels the pixels, one byte per bilevel pixel, little endian
+	 *               for 16 bits images
+	 */
+	static void write(File file, String pixelType, int width, int height, int tileSize,
+			TileCompression compression, boolean bigTiff, byte[] pixels) throws IOException {
+		try (TiledTiffWriter writer = new TiledTiffWriter(file,
+				createMetadata(file, pixelType, width, height), tileSize, compression, 6, encoders)) {
+			writer.forceBigTiff = bigTiff;
+			writeTiles(writer, pixelType, width, height, pixels, 0, writer.getNbTiles());
+		}
+	}
+
+	/**
+	 * Writes a range of tiles of an image.
+	 */
+	static void writeTiles(TiledTiffWriter writer, String pixelType, int width, int height,
+			byte[] pixels, int firstTile, int endTile) throws IOException {
+		int bpp = pixelType.equals("uint16") ? 2 : 1;
+		int tileSize = writer.getTileSize();
+		int rowBytes = writer.getTileBytes() / tileSize;
+		for (int tile = firstTile; tile < endTile; tile++) {
+			int tileX = tile % writer.getNXTiles() * tileSize;
+			int tileY = tile / writer.getNXTiles() * tileSize;
+			byte[] buf = writer.newTileBuffer();
+			for (int y = tileY; y < Math.min(height, tileY + tileSize); y++) {
+				for (int x = tileX; x < Math.min(width, tileX + tileSize); x++) {
+					int i = (y * width + x) * bpp;
+					int row = (y - tileY) * rowBytes;
+					if (pixelType.equals("bit")) {
+						if (pixels[i] != 0) {
+							buf[row + (x - tileX) / 8] |= 0x80 >> ((x - tileX) % 8);
+						}
+					} else {
+						System.arraycopy(pixels, i, buf, row + (x - tileX) * bpp, bpp);
+					}
+				}
+			}
+			writer.writeTile(buf);
+		}
+	}
+
+	/**
+	 * Writes the fragments of the ranges of tiles of an image.
+	 *
+	 * @param cuts the first tile of each range, then the number of tiles
+	 */
+	private List<File> writeFragments(String pixelType, int width, int height, int tileSize,
+			TileCompression compression, byte[] pixels, int... cuts) throws IOException {
+		List<File> fragments = new ArrayList<>();
+		for (int i = 0; i + 1 < cuts.length; i++) {
+			File fragment = new File(folder, "image.tiles-" + cuts[i] + "-" + cuts[i + 1] + ".frag");
+			try (TiledTiffWriter writer = TiledTiffWriter.createFragment(fragment,
+					createMetadata(fragment, pixelType, width, height), tileSize, compression, 6,
+					encoders, cuts[i], cuts[i + 1])) {
+				writeTiles(writer, pixelType, width, height, pixels, cuts[i], cuts[i + 1]);
+			}
+			fragments.add(fragment);
+		}
+		return fragments;
+	}
+
+	/**
+	 * Assembles fragments in the given order into an image.
+	 */
+	private static void assemble(File file, String pixelType, int width, int height, int tileSize,
+			TileCompression compression, List<File> fragments) throws IOException {
+		try (TiledTiffWriter writer = new TiledTiffWriter(file,
+				createMetadata(file, pixelType, width, height), tileSize, compression, 6, null)) {
+			for (File fragment : fragments) {
+				writer.appendFragment(fragment);
+			}
+		}
+	}
+
+	static OMEXMLMetadata createMetadata(File file, String pixelType, int width, int height) {
+		OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+		MetadataTools.populateMetadata(metadata, 0, file.getName(), true, "XYZCT", pixelType,
+				width, height, 1, 1, 1, 1);
+		return metadata;
+	}
+
+	/**
+	 * @return the pixels of an image read by Bio-Formats, in little endian
+	 */
+	static byte[] read(File file, int width, int height) throws Exception {
+		try (IFormatReader reader = BioFormatsUtils.openReader(file.getAbsolutePath(),
+				BioFormatsUtils.createMetadata())) {
+			assertEquals(width, reader.getSizeX());
+			assertEquals(height, reader.getSizeY());
+			assertEquals(1, reader.getImageCount());
+			byte[] pixels = reader.openBytes(0, 0, 0, width, height);
+			if (FormatTools.getBytesPerPixel(reader.getPixelType()) == 2 && !reader.isLittleEndian()) {
+				for (int i = 0; i < pixels.length; i += 2) {
+					byte b = pixels[i];
+					pixels[i] = pixels[i + 1];
+					pixels[i + 1] = b;
+				}
+			}
+			return pixels;
+		}
+	}
+
+	/**
+	 * @return the TileOffsets of the first IFD of a little endian TIFF file
+	 */
+	private static long[] readTileOffsets(File file) throws IOException {
+		ByteBuffer tiff = ByteBuffer.wrap(Files.readAllBytes(file.toPath()))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		boolean bigTiff = tiff.getShort(2) == 43;
+		int ifd = (int) (bigTiff ? tiff.getLong(8) : tiff.getInt(4));
+		int nbEntries = (int) (bigTiff ? tiff.getLong(ifd) : tiff.getShort(ifd));
+		int entrySize = bigTiff ? 20 : 12;
+		int valueSize = bigTiff ? 8 : 4;
+		for (int i = 0; i < nbEntries; i++) {
+			int entry = ifd + (bigTiff ? 8 : 2) + i * entrySize;
+			if ((tiff.getShort(entry) & 0xFFFF) != TILE_OFFSETS) {
+				continue;
+			}
+			int count = (int) (bigTiff ? tiff.getLong(entry + 4) : tiff.getInt(entry + 4));
+			int values = entry + (bigTiff ? 12 : 8);
+			if (count > 1) {
+				values = (int) (bigTiff ? tiff.getLong(values) : tiff.getInt(values));
+			}
+			long[] offsets = new long[count];
+			for (int j = 0; j < count; j++) {
+				offsets[j] = bigTiff ? tiff.getLong(values + j * valueSize)
+						: tiff.getInt(values + j * valueSize) & 0xFFFFFFFFL;
+			}
+			return offsets;
+		}
+		return fail("No TileOffsets in " + file.getName());
+	}
+}